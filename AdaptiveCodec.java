@@ -0,0 +1,253 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * One-pass compression of a stream whose length is not known in advance (CompressedFormat.ADAPTIVE),
+ * such as a pipe from a running program.
+ * <br> 1. Both sides start with the same flat code, 8 bits for every byte value, and keep the
+ * same byte counts of everything coded so far.
+ * <br> 2. Whenever rebuildInterval bytes have been coded since the last rebuild (sooner at the
+ * start of the stream), both sides rebuild canonical codes from those counts and halve the
+ * counts, so the code follows changes in the data. A rebuild falls on the byte it is due at,
+ * even in the middle of a frame. No code table is ever written.
+ * <br> 3. Input is coded in frames of whatever the source has available, at most FRAME_SIZE bytes.
+ * Each frame is written and flushed as soon as it is read, so output never waits for more input.
+ * <br> 4. A frame whose codes would be no shorter than its bytes is stored as it is, so a frame
+ * never grows by more than its lengths.
+ * <p>
+ *     Layout: the magic bytes and format byte, the rebuild interval (4 bytes), then frames.
+ *     A frame is its original length and its compressed length (4 bytes each) followed by the
+ *     codes, padded to a whole byte, or by the original bytes if the two lengths are equal.
+ *     A frame with original length 0 ends the stream.
+ * </p>
+ */
+class AdaptiveCodec {
+
+    /** default number of bytes coded between code rebuilds. */
+    static final int DEFAULT_REBUILD_INTERVAL = 64 * 1024;
+    /** smallest and largest rebuild intervals the format accepts. */
+    static final int MIN_REBUILD_INTERVAL = 1 << 10;
+    static final int MAX_REBUILD_INTERVAL = 1 << 28;
+    /** largest number of original bytes in a frame. */
+    static final int FRAME_SIZE = 64 * 1024;
+    /** longest code used, so that the decode tables stay small. */
+    static final int MAX_CODE_LENGTH = 15;
+
+    private final int rebuildInterval;
+    private final long[] counts = new long[256];
+    private final CodeLengths codeLengths = new CodeLengths();
+    private final CodeTable codeTable = new CodeTable();
+    private DecodeTable decodeTable;
+    /** bytes coded since the last rebuild, and how many to code before the next one. */
+    private long sinceRebuild;
+    private long nextRebuild = MIN_REBUILD_INTERVAL;
+    /** buffers for coding a frame, allocated by the side that needs them. */
+    private ByteArrayOutputStream frameBytes;
+    private PackedBitOutputStream bits;
+    private byte[] frameCodes;
+
+    private AdaptiveCodec(int rebuildInterval) {
+        this.rebuildInterval = rebuildInterval;
+        Arrays.fill(counts, 1);
+        codeLengths.canonicalCode(counts, MAX_CODE_LENGTH, codeTable);
+    }
+
+    /**
+     * Compresses a stream until it ends.
+     * @param in the stream to compress.
+     * @param out the stream the compressed bytes are written to; it is flushed after every frame.
+     * @param rebuildInterval the number of bytes coded between code rebuilds.
+     * @throws IOException if a stream fails.
+     * @throws IllegalArgumentException if rebuildInterval is out of range.
+     */
+    static void compress(InputStream in, OutputStream out, int rebuildInterval) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        AdaptiveCodec codec = writeHeader(data, rebuildInterval);
+        byte[] frame = new byte[FRAME_SIZE];
+        int length;
+        while ((length = in.read(frame)) >= 0)
+            codec.writeFrame(frame, length, data);
+        writeEnd(data);
+    }
+
+    /**
+     * Decompresses a stream written by compress(), writing each frame as soon as it is decoded.
+     * @param in the compressed stream, positioned at its magic bytes.
+     * @param out the stream the original bytes are written to; it is flushed after every frame.
+     * @throws IOException if the compressed stream is corrupt or ends early, or a stream fails.
+     */
+    static void decompress(InputStream in, OutputStream out) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        AdaptiveCodec codec = readHeader(data);
+        byte[] frame = new byte[FRAME_SIZE];
+        int length;
+        while ((length = codec.readFrame(data, frame)) >= 0) {
+            out.write(frame, 0, length);
+            out.flush();
+        }
+    }
+
+    /**
+     * Writes the start of a compressed stream.
+     * @param data the stream to write to; it is flushed.
+     * @param rebuildInterval the number of bytes coded between code rebuilds.
+     * @return the codec that writes the stream's frames.
+     * @throws IOException if the stream fails.
+     * @throws IllegalArgumentException if rebuildInterval is out of range.
+     */
+    static AdaptiveCodec writeHeader(DataOutputStream data, int rebuildInterval) throws IOException {
+        if (rebuildInterval < MIN_REBUILD_INTERVAL || rebuildInterval > MAX_REBUILD_INTERVAL)
+            throw new IllegalArgumentException("Rebuild interval must be between "
+                    + MIN_REBUILD_INTERVAL + " and " + MAX_REBUILD_INTERVAL + " bytes");
+        data.writeInt((CompressedFormat.MAGIC << 8) | CompressedFormat.ADAPTIVE);
+        data.writeInt(rebuildInterval);
+        data.flush();
+        return new AdaptiveCodec(rebuildInterval);
+    }
+
+    /**
+     * Codes one frame, writes it and flushes the stream.
+     * @param frame the array holding the bytes.
+     * @param length the number of bytes, at most FRAME_SIZE; nothing is written for 0.
+     * @param data the stream to write to.
+     * @throws IOException if the stream fails.
+     */
+    void writeFrame(byte[] frame, int length, DataOutputStream data) throws IOException {
+        if (length == 0)
+            return;
+        if (frameBytes == null) {
+            frameBytes = new ByteArrayOutputStream(FRAME_SIZE);
+            bits = new PackedBitOutputStream(frameBytes, 16 * 1024);
+        }
+        for (int start = 0; start < length; ) {
+            int end = start + untilRebuild(length - start);
+            long[] codes = codeTable.codes;
+            int[] lengths = codeTable.lengths;
+            for (int i = start; i < end; i++) {
+                int symbol = frame[i] & 0xFF;
+                bits.writeBits(codes[symbol], lengths[symbol]);
+            }
+            update(frame, start, end - start);
+            start = end;
+        }
+        bits.alignToByte();
+        bits.flush();
+        data.writeInt(length);
+        if (frameBytes.size() < length) {
+            data.writeInt(frameBytes.size());
+            frameBytes.writeTo(data);
+        } else {
+            data.writeInt(length);
+            data.write(frame, 0, length);
+        }
+        frameBytes.reset();
+        data.flush();
+    }
+
+    /**
+     * Writes the end of a compressed stream and flushes it.
+     * @param data the stream to write to.
+     * @throws IOException if the stream fails.
+     */
+    static void writeEnd(DataOutputStream data) throws IOException {
+        data.writeInt(0);
+        data.flush();
+    }
+
+    /**
+     * Reads the start of a compressed stream written by writeHeader().
+     * @param data the stream positioned at its magic bytes.
+     * @return the codec that reads the stream's frames.
+     * @throws IOException if the stream is not in the adaptive format or ends early.
+     */
+    static AdaptiveCodec readHeader(DataInputStream data) throws IOException {
+        try {
+            int start = data.readInt();
+            if ((start >>> 8) != CompressedFormat.MAGIC || (start & 0xFF) != CompressedFormat.ADAPTIVE)
+                throw new IOException("Not a stream compressed with -adaptive");
+            int rebuildInterval = data.readInt();
+            if (rebuildInterval < MIN_REBUILD_INTERVAL || rebuildInterval > MAX_REBUILD_INTERVAL)
+                throw new IOException("Corrupt header: rebuild interval " + rebuildInterval);
+            return new AdaptiveCodec(rebuildInterval);
+        } catch (EOFException e) {
+            throw new IOException("Compressed stream ends before its header");
+        }
+    }
+
+    /**
+     * Reads and decodes the next frame.
+     * @param data the stream positioned at the frame.
+     * @param frame the array the bytes are stored in, at least FRAME_SIZE long.
+     * @return the number of bytes decoded, or -1 at the end of the stream.
+     * @throws IOException if the frame is corrupt or the stream ends early.
+     */
+    int readFrame(DataInputStream data, byte[] frame) throws IOException {
+        try {
+            int length = data.readInt();
+            if (length == 0)
+                return -1;
+            int compressedLength = data.readInt();
+            if (length < 0 || length > FRAME_SIZE || compressedLength < 0 || compressedLength > length)
+                throw new IOException("Corrupt frame of " + length + " bytes");
+            if (compressedLength == length) {
+                // a stored frame still counts towards the code, as it did when it was written
+                data.readFully(frame, 0, length);
+                update(frame, 0, length);
+                return length;
+            }
+            if (frameCodes == null)
+                // the codes of a frame that is not stored are shorter than its bytes
+                frameCodes = new byte[FRAME_SIZE];
+            data.readFully(frameCodes, 0, compressedLength);
+
+            PackedBitInputStream bits = new PackedBitInputStream(ByteBuffer.wrap(frameCodes, 0, compressedLength));
+            for (int start = 0; start < length; ) {
+                int end = start + untilRebuild(length - start);
+                DecodeTable table = decodeTable();
+                for (int i = start; i < end; i++)
+                    frame[i] = (byte) table.decode(bits);
+                update(frame, start, end - start);
+                start = end;
+            }
+            if (bits.bitPosition() > compressedLength * 8L)
+                throw new IOException("Corrupt frame: codes run past its end");
+            return length;
+        } catch (EOFException e) {
+            throw new IOException("Compressed stream ends before its last frame");
+        }
+    }
+
+    /** returns the decode table for the current code, building it the first time after a rebuild. */
+    private DecodeTable decodeTable() {
+        if (decodeTable == null)
+            decodeTable = new DecodeTable(codeTable);
+        return decodeTable;
+    }
+
+    /** returns how many of the next bytes are coded before the code is rebuilt, at most length. */
+    private int untilRebuild(int length) {
+        return (int) Math.min(length, nextRebuild - sinceRebuild);
+    }
+
+    /** counts coded bytes and rebuilds the code each time it is due, identically on both sides. */
+    private void update(byte[] frame, int offset, int length) {
+        while (length > 0) {
+            int counted = untilRebuild(length);
+            ByteCounter.count(frame, offset, counted, counts);
+            sinceRebuild += counted;
+            offset += counted;
+            length -= counted;
+            if (sinceRebuild < nextRebuild)
+                return;
+
+            codeLengths.canonicalCode(counts, MAX_CODE_LENGTH, codeTable);
+            decodeTable = null;
+            for (int i = 0; i < counts.length; i++)
+                counts[i] = Math.max(1, counts[i] >>> 1);
+            sinceRebuild = 0;
+            // rebuild often while little is known about the data, then every rebuildInterval bytes
+            nextRebuild = Math.min(rebuildInterval, nextRebuild * 2);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.InputMismatchException;
+
+class BitOutputStream extends FileOutputStream implements Serializable {
+
+    private int currentByte = 0;
+    private int numBits = 0;
+    boolean append;
+
+    public BitOutputStream(File f, boolean append) throws IOException {
+        super(f, append);
+        this.append = append;
+    }
+
+    public void writeInt(int count) throws IOException {
+        // extract each byte of the integer and write one by one
+        super.write((count >> 24) & 0xFF); //shift first byte to lsb
+        super.write((count >> 16) & 0xFF); // shift second byte to lsb
+        super.write((count >> 8) & 0xFF); // shift third byte to lsb
+        super.write(count & 0xFF); // shift fourth byte to lsb
+    }
+
+    public void writeBits(String bitString) throws IOException {
+        for (char b : bitString.toCharArray()) {
+
+            if (b == '0' || b == '1') {
+                numBits++;
+                int currentBit =  ( ((int)b)- 48);
+                currentByte = (currentByte << 1) | currentBit;
+                if (numBits == 8) {
+                    super.write(currentByte);
+                    numBits = 0;
+                    currentByte = 0;
+                }
+            } else {
+                throw new InputMismatchException("Input can only be '0' or '1'");
+            }
+
+        }
+    }
+
+    public void close() throws IOException {
+        if (numBits > 0) {
+            currentByte <<= (8 - numBits);
+            super.write(currentByte);
+        }
+        super.close();
+    }
+}
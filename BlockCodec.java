@@ -0,0 +1,507 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Encodes and decodes the independent blocks of the block format (CompressedFormat.BLOCKS).
+ * <p>
+ *     Each block starts with its code table: either a TABLE_LENGTHS byte and the canonical
+ *     code lengths, or a TABLE_REFERENCE byte and the number of an earlier block (4 bytes)
+ *     whose code lengths it uses. Its codes follow, padded to a whole byte. A block that Huffman
+ *     codes would not shrink has a TABLE_STORED byte and its original bytes instead, or a
+ *     TABLE_RUNS byte and its runs (see FallbackCodec). Blocks are encoded
+ *     separately, so they can be encoded on different threads; only the choice between
+ *     lengths and a reference is made in order, by the writer.
+ * </p>
+ * <p>
+ *     A table byte with the INTERLEAVED bit set marks a block whose codes are split across
+ *     STREAMS bitstreams: byte i of the block is coded in stream i % STREAMS. The codes start
+ *     with a jump table, the length in bytes of each stream (4 bytes each), followed by the
+ *     streams one after another, each padded to a whole byte. A single bitstream cannot be
+ *     decoded faster than one code after another, since each code starts where the one before
+ *     it ends; the decoder here follows the four streams at once, so the processor can work
+ *     on four codes at the same time on one thread.
+ * </p>
+ * <p>
+ *     A table byte with the TRANSFORMED bit set marks a block coded after a TransformPipeline,
+ *     such as bwt+mtf+rle0: the table byte is followed by the pipeline's stages and the number of
+ *     transformed bytes (4 bytes), then by the rest of the block as usual, coding the transformed
+ *     bytes instead of the original ones. The decoder applies the inverse stages afterwards.
+ * </p>
+ */
+class BlockCodec {
+
+    /** default number of original bytes in a block. */
+    static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+    /** smallest and largest block sizes the format accepts. */
+    static final int MIN_BLOCK_SIZE = 1 << 10;
+    static final int MAX_BLOCK_SIZE = 1 << 28;
+
+    /** first byte of a block whose code lengths follow. */
+    static final int TABLE_LENGTHS = 0;
+    /** first byte of a block that uses the code lengths of an earlier block. */
+    static final int TABLE_REFERENCE = 1;
+    /** first byte of a block stored as it is. */
+    static final int TABLE_STORED = 2;
+    /** first byte of a block stored as runs. */
+    static final int TABLE_RUNS = 3;
+    /** added to the table byte of a block whose codes are split across STREAMS bitstreams. */
+    static final int INTERLEAVED = 0x80;
+    /** added to the table byte of a block coded after a TransformPipeline. */
+    static final int TRANSFORMED = 0x40;
+    /** number of bitstreams of an interleaved block. */
+    static final int STREAMS = 4;
+    /** the most bytes of a block's table: its table byte, pipeline and code lengths. */
+    static final int MAX_TABLE_SIZE = 1 + (1 + TransformPipeline.MAX_STAGES + 4) + 1 + 2 * 256;
+
+    private static final VarHandle LONG_BIG_ENDIAN =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    /** per-thread scratch space, so that building the codes of a block allocates nothing. */
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private static class Scratch {
+        final long[] counts = new long[256];
+        final CodeLengths codeLengths = new CodeLengths();
+        final CodeTable codeTable = new CodeTable();
+        byte[] streams = new byte[0];
+    }
+
+    /** a block encoded without its table: the code lengths used, and the codes. */
+    static class EncodedBlock {
+        /** TABLE_LENGTHS for Huffman codes, TABLE_STORED or TABLE_RUNS. */
+        final int kind;
+        /** the code lengths, or null for a stored block or runs. */
+        final int[] lengths;
+        /** the codes, the original bytes or the runs. */
+        final byte[] codes;
+        /** true if codes holds a jump table and STREAMS bitstreams. */
+        final boolean interleaved;
+        /** the transforms applied before coding, or null for none. */
+        final TransformPipeline pipeline;
+        /** the number of transformed bytes coded, if pipeline is not null. */
+        final int transformedLength;
+
+        EncodedBlock(int[] lengths, byte[] codes, boolean interleaved) {
+            this(TABLE_LENGTHS, lengths, codes, interleaved);
+        }
+
+        EncodedBlock(int kind, int[] lengths, byte[] codes, boolean interleaved) {
+            this(kind, lengths, codes, interleaved, null, 0);
+        }
+
+        EncodedBlock(int kind, int[] lengths, byte[] codes, boolean interleaved, TransformPipeline pipeline,
+                     int transformedLength) {
+            this.kind = kind;
+            this.lengths = lengths;
+            this.codes = codes;
+            this.interleaved = interleaved;
+            this.pipeline = pipeline;
+            this.transformedLength = transformedLength;
+        }
+
+        /** returns the size of the block written with its own code lengths. */
+        long size() {
+            int symbols = 0;
+            if (lengths != null) {
+                for (int length : lengths) {
+                    if (length > 0)
+                        symbols++;
+                }
+            }
+            long size = 1 + ((lengths == null) ? 0 : 1 + 2 * symbols) + codes.length;
+            return (pipeline == null) ? size : size + pipeline.size() + 4;
+        }
+    }
+
+    /**
+     * Compresses one block.
+     * @param data the array holding the block.
+     * @param length the number of bytes of data in the block, at least 1.
+     * @param maxLength the longest code allowed, or 0 for no limit.
+     * @param cache if not null, the block is encoded with the cached table for its distribution
+     *              instead of its own optimal code.
+     * @return the code lengths used and the codes of the block, ending on a byte boundary.
+     * @throws IOException never in practice, the block is written to memory.
+     */
+    static EncodedBlock encodeBlock(byte[] data, int length, int maxLength, CodeTableCache cache) throws IOException {
+        return encodeBlock(data, length, maxLength, cache, false);
+    }
+
+    /**
+     * Compresses one block, optionally split across STREAMS interleaved bitstreams.
+     * @param data the array holding the block.
+     * @param length the number of bytes of data in the block, at least 1.
+     * @param maxLength the longest code allowed, or 0 for no limit.
+     * @param cache if not null, the block is encoded with the cached table for its distribution
+     *              instead of its own optimal code.
+     * @param interleaved true to write the jump table and STREAMS bitstreams instead of one.
+     * @return the code lengths used and the codes of the block, ending on a byte boundary, or
+     *         the block stored or as runs if Huffman codes would not pay off (see FallbackCodec).
+     * @throws IOException never in practice, the block is written to memory.
+     */
+    static EncodedBlock encodeBlock(byte[] data, int length, int maxLength, CodeTableCache cache,
+                                    boolean interleaved) throws IOException {
+        Scratch scratch = SCRATCH.get();
+        long[] counts = scratch.counts;
+        Arrays.fill(counts, 0);
+        ByteCounter.count(data, 0, length, counts);
+        CodeTable[] built = new CodeTable[1];
+        int choice = FallbackCodec.choose(data, 0, length, counts, () -> built[0] = (cache != null)
+                ? cache.encoderFor(counts, maxLength)
+                : scratch.codeLengths.canonicalCode(counts, maxLength, scratch.codeTable));
+        if (choice == FallbackCodec.STORED)
+            return new EncodedBlock(TABLE_STORED, null, Arrays.copyOf(data, length), false);
+        if (choice == FallbackCodec.RUNS) {
+            ByteArrayOutputStream runs = new ByteArrayOutputStream(64);
+            FallbackCodec.writeRuns(data, 0, length, runs);
+            return new EncodedBlock(TABLE_RUNS, null, runs.toByteArray(), false);
+        }
+        CodeTable codeTable = built[0];
+
+        long[] codes = codeTable.codes;
+        int[] lengths = codeTable.lengths;
+        if (interleaved)
+            return new EncodedBlock(lengths.clone(), encodeStreams(data, length, codes, lengths), true);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 2 + 64);
+        PackedBitOutputStream out = new PackedBitOutputStream(bytes, 16 * 1024);
+        for (int i = 0; i < length; i++) {
+            int symbol = data[i] & 0xFF;
+            out.writeBits(codes[symbol], lengths[symbol]);
+        }
+        out.close();
+        return new EncodedBlock(lengths.clone(), bytes.toByteArray(), false);
+    }
+
+    /**
+     * Compresses one block as it is and after each of several transform pipelines, and keeps the
+     * smallest.
+     * @param data the array holding the block.
+     * @param length the number of bytes of data in the block, at least 1.
+     * @param maxLength the longest code allowed, or 0 for no limit.
+     * @param cache if not null, the block is encoded with the cached table for its distribution
+     *              instead of its own optimal code.
+     * @param interleaved true to write the jump table and STREAMS bitstreams instead of one.
+     * @param candidates the pipelines to try, or null for none.
+     * @return the smallest encoding; its pipeline is null if the block is best coded as it is.
+     * @throws IOException never in practice, the block is written to memory.
+     */
+    static EncodedBlock encodeBlock(byte[] data, int length, int maxLength, CodeTableCache cache,
+                                    boolean interleaved, TransformPipeline[] candidates) throws IOException {
+        EncodedBlock best = encodeBlock(data, length, maxLength, cache, interleaved);
+        if (candidates == null)
+            return best;
+        for (TransformPipeline pipeline : candidates) {
+            byte[] transformed = pipeline.forward(data, length);
+            if (transformed == null || transformed.length == 0)
+                continue;
+            EncodedBlock encoded = encodeBlock(transformed, transformed.length, maxLength, cache, interleaved);
+            encoded = new EncodedBlock(encoded.kind, encoded.lengths, encoded.codes, encoded.interleaved,
+                    pipeline, transformed.length);
+            if (encoded.size() < best.size())
+                best = encoded;
+        }
+        return best;
+    }
+
+    /** writes the jump table and the STREAMS bitstreams of an interleaved block. */
+    private static byte[] encodeStreams(byte[] data, int length, long[] codes, int[] lengths) throws IOException {
+        ByteArrayOutputStream[] bytes = new ByteArrayOutputStream[STREAMS];
+        PackedBitOutputStream[] streams = new PackedBitOutputStream[STREAMS];
+        for (int s = 0; s < STREAMS; s++) {
+            bytes[s] = new ByteArrayOutputStream(length / (2 * STREAMS) + 64);
+            streams[s] = new PackedBitOutputStream(bytes[s], 16 * 1024);
+        }
+        for (int i = 0; i < length; i++) {
+            int symbol = data[i] & 0xFF;
+            streams[i % STREAMS].writeBits(codes[symbol], lengths[symbol]);
+        }
+
+        ByteArrayOutputStream block = new ByteArrayOutputStream(4 * STREAMS + length / 2 + 64);
+        PackedBitOutputStream out = new PackedBitOutputStream(block, 16 * 1024);
+        for (int s = 0; s < STREAMS; s++) {
+            streams[s].close();
+            out.writeInt(bytes[s].size());
+        }
+        for (int s = 0; s < STREAMS; s++)
+            out.write(bytes[s].toByteArray());
+        out.close();
+        return block.toByteArray();
+    }
+
+    /**
+     * Reads the table byte at the start of a block.
+     * @param in the stream positioned at the start of the block.
+     * @param block the number of this block.
+     * @return TABLE_LENGTHS or TABLE_REFERENCE, plus INTERLEAVED if the codes are interleaved,
+     *         or TABLE_STORED or TABLE_RUNS; plus TRANSFORMED if a pipeline follows.
+     * @throws IOException if the table byte is corrupt.
+     */
+    static int readTableByte(PackedBitInputStream in, int block) throws IOException {
+        int tableByte = in.read();
+        int kind = kind(tableByte);
+        if (tableByte < 0 || kind > TABLE_RUNS || ((tableByte & INTERLEAVED) != 0 && !hasCodes(tableByte)))
+            throw new IOException("Corrupt block " + block + ": bad table byte " + tableByte);
+        return tableByte;
+    }
+
+    /** returns TABLE_LENGTHS, TABLE_REFERENCE, TABLE_STORED or TABLE_RUNS, without the layout bits. */
+    static int kind(int tableByte) {
+        return tableByte & ~(INTERLEAVED | TRANSFORMED);
+    }
+
+    /**
+     * Returns true if a block has Huffman codes, and so a code table or a reference to one.
+     * @param tableByte the table byte of the block, returned by readTableByte().
+     * @return false for a stored block or runs.
+     */
+    static boolean hasCodes(int tableByte) {
+        return kind(tableByte) == TABLE_LENGTHS || kind(tableByte) == TABLE_REFERENCE;
+    }
+
+    /**
+     * Reads the start of a block's code table.
+     * @param in the stream positioned at the start of the block.
+     * @param block the number of this block.
+     * @return -1 if the code lengths follow, otherwise the number of the earlier block whose
+     *         code lengths this block uses.
+     * @throws IOException if the table byte or block number is corrupt.
+     */
+    static int readTableReference(PackedBitInputStream in, int block) throws IOException {
+        return readTableReference(in, block, readTableByte(in, block));
+    }
+
+    /**
+     * Reads the rest of a block's code table reference, after its table byte.
+     * @param in the stream positioned after the table byte.
+     * @param block the number of this block.
+     * @param tableByte the table byte returned by readTableByte().
+     * @return -1 if the code lengths follow, otherwise the number of the earlier block whose
+     *         code lengths this block uses.
+     * @throws IOException if the block number is corrupt.
+     */
+    static int readTableReference(PackedBitInputStream in, int block, int tableByte) throws IOException {
+        if (kind(tableByte) == TABLE_LENGTHS)
+            return -1;
+        int reference = in.readInt();
+        if (reference < 0 || reference >= block)
+            throw new IOException("Corrupt block " + block + ": bad table reference " + reference);
+        return reference;
+    }
+
+    /**
+     * Decompresses the codes of one block, after its table, and skips the padding after them.
+     * @param in the stream positioned after the block's table.
+     * @param table the decode table of the block.
+     * @param out the array the original bytes are written to.
+     * @param offset the index in out of the first byte of the block.
+     * @param length the number of original bytes in the block.
+     * @throws IOException if the block is corrupt or the stream ends early.
+     */
+    static void decodeBlock(PackedBitInputStream in, DecodeTable table, byte[] out, int offset, int length)
+            throws IOException {
+        for (int i = offset; i < offset + length; i++)
+            out[i] = (byte) table.decode(in);
+        in.alignToByte();
+    }
+
+    /**
+     * Decompresses the codes of one block after its table, in whichever layout its table byte gives.
+     * @param in the stream positioned after the block's table.
+     * @param tableByte the table byte of the block, returned by readTableByte().
+     * @param table the decode table of the block, or null if it has no codes.
+     * @param out the array the original bytes are written to.
+     * @param offset the index in out of the first byte of the block.
+     * @param length the number of original bytes in the block.
+     * @throws IOException if the block is corrupt or the stream ends early.
+     */
+    static void decodeBlock(PackedBitInputStream in, int tableByte, DecodeTable table, byte[] out, int offset,
+                            int length) throws IOException {
+        if (kind(tableByte) == TABLE_STORED)
+            in.readFully(out, offset, length);
+        else if (kind(tableByte) == TABLE_RUNS)
+            FallbackCodec.readRuns(in, out, offset, length);
+        else if ((tableByte & INTERLEAVED) != 0)
+            decodeInterleaved(in, table, out, offset, length);
+        else
+            decodeBlock(in, table, out, offset, length);
+    }
+
+    /** looks up the code lengths of an earlier block, for blocks that refer to them. */
+    interface TableLookup {
+        /**
+         * @param block the number of the earlier block.
+         * @return its code lengths, or null if it has none of its own.
+         * @throws IOException if the block cannot be read.
+         */
+        int[] lengths(int block) throws IOException;
+    }
+
+    /**
+     * Decompresses a whole block: its table byte, pipeline and code table, its codes, and the
+     * inverse of its transforms.
+     * @param in the stream positioned at the start of the block.
+     * @param block the number of this block.
+     * @param earlier the code lengths of earlier blocks, for a block that refers to them.
+     * @param out the array the original bytes are written to.
+     * @param offset the index in out of the first byte of the block.
+     * @param length the number of original bytes in the block.
+     * @return the code lengths written in this block, or null if it has none of its own.
+     * @throws IOException if the block is corrupt or the stream ends early.
+     */
+    static int[] decode(PackedBitInputStream in, int block, TableLookup earlier, byte[] out, int offset,
+                        int length) throws IOException {
+        int tableByte = readTableByte(in, block);
+        TransformPipeline pipeline = null;
+        int codedLength = length;
+        if ((tableByte & TRANSFORMED) != 0) {
+            pipeline = TransformPipeline.read(in, block);
+            codedLength = in.readInt();
+            // the encoder keeps the output of every stage within maxStageLength()
+            if (codedLength <= 0 || codedLength > TransformPipeline.maxStageLength(length))
+                throw new IOException("Corrupt block " + block + ": " + codedLength + " transformed bytes");
+        }
+
+        int[] lengths = null;
+        DecodeTable table = null;
+        if (hasCodes(tableByte)) {
+            int reference = readTableReference(in, block, tableByte);
+            lengths = (reference < 0) ? CompressedFormat.readCodeLengths(in) : earlier.lengths(reference);
+            if (lengths == null)
+                throw new IOException("Corrupt block " + block + ": refers to a block without code lengths");
+            table = CodeTableCache.SHARED.decoderFor(lengths);
+        }
+        if (pipeline == null) {
+            decodeBlock(in, tableByte, table, out, offset, length);
+        } else {
+            byte[] coded = new byte[codedLength];
+            decodeBlock(in, tableByte, table, coded, 0, codedLength);
+            byte[] original = pipeline.inverse(coded, codedLength, length);
+            if (original.length != length)
+                throw new IOException("Corrupt block " + block + ": " + pipeline + " restored " + original.length
+                        + " bytes instead of " + length);
+            System.arraycopy(original, 0, out, offset, length);
+        }
+        return (kind(tableByte) == TABLE_LENGTHS) ? lengths : null;
+    }
+
+    /**
+     * Reads the code lengths at the start of a block, skipping its pipeline.
+     * @param in the stream positioned at the start of the block.
+     * @param block the number of the block.
+     * @return its code lengths, or null if it has none of its own.
+     * @throws IOException if the table is corrupt.
+     */
+    static int[] readCodeLengths(PackedBitInputStream in, int block) throws IOException {
+        int tableByte = readTableByte(in, block);
+        if (kind(tableByte) != TABLE_LENGTHS)
+            return null;
+        if ((tableByte & TRANSFORMED) != 0) {
+            TransformPipeline.read(in, block);
+            in.readInt();
+        }
+        return CompressedFormat.readCodeLengths(in);
+    }
+
+    /**
+     * Decompresses the jump table and bitstreams of an interleaved block.
+     * <br> 1. Reads the streams into an array, checking their lengths against the block length.
+     * <br> 2. While every stream has 8 bytes left, decodes one byte from each stream per step:
+     * each reads the 8 bytes at its own bit position and looks its code up in the decode table.
+     * The four lookups do not depend on each other, only on the previous step of the same stream.
+     * <br> 3. Decodes the last few bytes of each stream one at a time, reading zeros past its end.
+     * <br> 4. Checks that each stream ended exactly on its last byte.
+     * @param in the stream positioned after the block's table.
+     * @param table the decode table of the block.
+     * @param out the array the original bytes are written to.
+     * @param offset the index in out of the first byte of the block.
+     * @param length the number of original bytes in the block.
+     * @throws IOException if the block is corrupt or the stream ends early.
+     */
+    static void decodeInterleaved(PackedBitInputStream in, DecodeTable table, byte[] out, int offset, int length)
+            throws IOException {
+        // no stream can hold more than its bytes' codes of MAX_CODE_LENGTH bits
+        long maxStreamLength = ((long) (length + STREAMS - 1) / STREAMS * DecodeTable.MAX_CODE_LENGTH + 7) / 8;
+        long[] ends = new long[STREAMS];
+        long total = 0;
+        for (int s = 0; s < STREAMS; s++) {
+            long streamLength = in.readInt() & 0xFFFFFFFFL;
+            if (streamLength > maxStreamLength)
+                throw new IOException("Corrupt block: stream " + s + " is " + streamLength + " bytes long");
+            total += streamLength;
+            ends[s] = total;
+        }
+
+        Scratch scratch = SCRATCH.get();
+        if (scratch.streams.length < total)
+            scratch.streams = new byte[(int) total];
+        byte[] streams = scratch.streams;
+        in.readFully(streams, 0, (int) total);
+
+        long bit0 = 0;
+        long bit1 = ends[0] * 8;
+        long bit2 = ends[1] * 8;
+        long bit3 = ends[2] * 8;
+        // the last bit position at which 8 bytes can be read without leaving the stream
+        long last0 = (ends[0] - 8) * 8;
+        long last1 = (ends[1] - 8) * 8;
+        long last2 = (ends[2] - 8) * 8;
+        long last3 = (ends[3] - 8) * 8;
+        int[] entries = table.entries;
+        int shift = 64 - table.tableBits;
+
+        int i = offset;
+        int end = offset + length;
+        while (end - i >= STREAMS && bit0 <= last0 && bit1 <= last1 && bit2 <= last2 && bit3 <= last3) {
+            long bits0 = (long) LONG_BIG_ENDIAN.get(streams, (int) (bit0 >>> 3)) << (bit0 & 7);
+            long bits1 = (long) LONG_BIG_ENDIAN.get(streams, (int) (bit1 >>> 3)) << (bit1 & 7);
+            long bits2 = (long) LONG_BIG_ENDIAN.get(streams, (int) (bit2 >>> 3)) << (bit2 & 7);
+            long bits3 = (long) LONG_BIG_ENDIAN.get(streams, (int) (bit3 >>> 3)) << (bit3 & 7);
+            int entry0 = entries[(int) (bits0 >>> shift)];
+            int entry1 = entries[(int) (bits1 >>> shift)];
+            int entry2 = entries[(int) (bits2 >>> shift)];
+            int entry3 = entries[(int) (bits3 >>> shift)];
+            // an entry below 1 is a long code or not a code, resolved by the slow path
+            if ((entry0 - 1 | entry1 - 1 | entry2 - 1 | entry3 - 1) < 0) {
+                entry0 = table.entry(bits0);
+                entry1 = table.entry(bits1);
+                entry2 = table.entry(bits2);
+                entry3 = table.entry(bits3);
+            }
+            out[i] = (byte) (entry0 >>> 8);
+            out[i + 1] = (byte) (entry1 >>> 8);
+            out[i + 2] = (byte) (entry2 >>> 8);
+            out[i + 3] = (byte) (entry3 >>> 8);
+            bit0 += entry0 & 0xFF;
+            bit1 += entry1 & 0xFF;
+            bit2 += entry2 & 0xFF;
+            bit3 += entry3 & 0xFF;
+            i += STREAMS;
+        }
+
+        long[] bits = {bit0, bit1, bit2, bit3};
+        for (; i < end; i++) {
+            int s = (i - offset) % STREAMS;
+            int entry = table.entry(peekBits(streams, bits[s], ends[s]));
+            out[i] = (byte) (entry >>> 8);
+            bits[s] += entry & 0xFF;
+        }
+        for (int s = 0; s < STREAMS; s++) {
+            if ((bits[s] + 7) / 8 != ends[s])
+                throw new IOException("Corrupt block: stream " + s + " does not end with its last code");
+        }
+    }
+
+    /** returns the 64 bits at a bit position, most significant first, with zeros from the end of the stream. */
+    private static long peekBits(byte[] streams, long bitPosition, long end) {
+        long bits = 0;
+        int position = (int) (bitPosition >>> 3);
+        for (int b = 0; b < 8; b++)
+            bits = (bits << 8) | ((position + b < end) ? streams[position + b] & 0xFF : 0);
+        return bits << (bitPosition & 7);
+    }
+}
@@ -0,0 +1,126 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The block index at the end of a file in the block format (CompressedFormat.BLOCKS).
+ * <p>
+ *     The index gives the position of every block in the compressed file and in the original
+ *     file, so any block can be read and decoded on its own: by several threads at once, or
+ *     just the blocks that cover a range of the original file.
+ * </p>
+ */
+class BlockIndex {
+
+    final CompressedFormat.Header header;
+    final long originalLength;
+    final int blockSize;
+    /** where each block starts in the compressed file. */
+    final long[] offsets;
+    final int[] compressedLengths;
+    /** where each block starts in the original file. */
+    final long[] originalOffsets;
+    final int[] originalLengths;
+
+    private BlockIndex(CompressedFormat.Header header, int blockSize, int blockCount) {
+        this.header = header;
+        this.originalLength = header.originalLength;
+        this.blockSize = blockSize;
+        offsets = new long[blockCount];
+        compressedLengths = new int[blockCount];
+        originalOffsets = new long[blockCount];
+        originalLengths = new int[blockCount];
+    }
+
+    /**
+     * Reads the header, trailer and block index of a file in the block format and checks
+     * that they agree with each other and with the size of the file.
+     * @param channel the compressed file.
+     * @return the block index.
+     * @throws IOException if the file is not in the block format or its index is corrupt.
+     */
+    static BlockIndex read(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < CompressedFormat.HEADER_SIZE + 4 + CompressedFormat.TRAILER_SIZE)
+            throw new IOException("Not a compressed file");
+
+        ByteBuffer start = read(channel, 0, CompressedFormat.HEADER_SIZE + 4);
+        if (CompressedFormat.readFormat(start) != CompressedFormat.BLOCKS)
+            throw new IOException("Not a file in the block format");
+        CompressedFormat.Header header = CompressedFormat.readHeader(start, CompressedFormat.BLOCKS);
+        long originalLength = header.originalLength;
+        int blockSize = start.getInt(CompressedFormat.HEADER_SIZE);
+        if (blockSize < BlockCodec.MIN_BLOCK_SIZE || blockSize > BlockCodec.MAX_BLOCK_SIZE)
+            throw new IOException("Corrupt header");
+
+        ByteBuffer trailer = read(channel, fileSize - CompressedFormat.TRAILER_SIZE, CompressedFormat.TRAILER_SIZE);
+        int blockCount = trailer.getInt();
+        long indexOffset = trailer.getLong();
+        if (blockCount != (originalLength + blockSize - 1) / blockSize
+                || indexOffset + (long) blockCount * CompressedFormat.INDEX_ENTRY_SIZE
+                        + CompressedFormat.TRAILER_SIZE != fileSize)
+            throw new IOException("Corrupt block index");
+
+        BlockIndex index = new BlockIndex(header, blockSize, blockCount);
+        ByteBuffer entries = read(channel, indexOffset, blockCount * CompressedFormat.INDEX_ENTRY_SIZE);
+        long expectedOffset = CompressedFormat.HEADER_SIZE + 4;
+        for (int block = 0; block < blockCount; block++) {
+            index.offsets[block] = entries.getLong();
+            index.compressedLengths[block] = entries.getInt();
+            index.originalLengths[block] = entries.getInt();
+            index.originalOffsets[block] = (long) block * blockSize;
+            if (index.offsets[block] != expectedOffset || index.compressedLengths[block] <= 0
+                    || index.originalLengths[block] != Math.min(blockSize, originalLength - index.originalOffsets[block]))
+                throw new IOException("Corrupt block index entry " + block);
+            expectedOffset += index.compressedLengths[block];
+        }
+        if (expectedOffset != indexOffset)
+            throw new IOException("Corrupt block index");
+        return index;
+    }
+
+    /** returns the number of blocks in the file. */
+    int blockCount() {
+        return offsets.length;
+    }
+
+    /**
+     * Returns the block that holds a byte of the original file.
+     * @param position the position of the byte in the original file, less than originalLength.
+     * @return the number of the block.
+     */
+    int blockAt(long position) {
+        return (int) (position / blockSize);
+    }
+
+    /**
+     * Reads and decodes one block. Reads are positional, so threads may decode blocks of the
+     * same channel at once.
+     * @param channel the compressed file.
+     * @param block the number of the block.
+     * @return the original bytes of the block.
+     * @throws IOException if the block is corrupt or cannot be read.
+     */
+    byte[] decodeBlock(FileChannel channel, int block) throws IOException {
+        PackedBitInputStream in = readBlock(channel, block, compressedLengths[block]);
+        byte[] original = new byte[originalLengths[block]];
+        // only the table at the start of a referenced block is needed
+        BlockCodec.decode(in, block, reference -> BlockCodec.readCodeLengths(readBlock(channel, reference,
+                Math.min(compressedLengths[reference], BlockCodec.MAX_TABLE_SIZE)), reference),
+                original, 0, original.length);
+        return original;
+    }
+
+    /** reads the first length bytes of a block. */
+    private PackedBitInputStream readBlock(FileChannel channel, int block, int length) throws IOException {
+        byte[] payload = new byte[length];
+        CompressFile.readFully(channel, payload, offsets[block]);
+        return new PackedBitInputStream(ByteBuffer.wrap(payload));
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        CompressFile.readFully(channel, bytes, position);
+        return ByteBuffer.wrap(bytes);
+    }
+}
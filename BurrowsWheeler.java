@@ -0,0 +1,235 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The Burrows-Wheeler transform: the bytes of a block sorted by what follows them, which groups
+ * bytes that occur in the same context into runs.
+ * <br> 1. Sorts the suffixes of the block, with an end marker smaller than any byte, by induced
+ * sorting (SA-IS), which takes time proportional to the length of the block.
+ * <br> 2. Writes the byte before each suffix in sorted order, skipping the end marker, and
+ * records the position the end marker had (the primary index).
+ * <br> 3. The inverse follows the last-to-first mapping from the end marker back to the start.
+ * <p>
+ *     Layout: the primary index (4 bytes), then as many bytes as the block had.
+ * </p>
+ */
+class BurrowsWheeler implements Transform {
+
+    static final int ID = 1;
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public String name() {
+        return "bwt";
+    }
+
+    @Override
+    public byte[] forward(byte[] data, int length) {
+        int[] suffixes = suffixArray(data, length);
+        byte[] out = new byte[4 + length];
+        int primary = 0;
+        int j = 4;
+        // suffixes[0] is the end marker on its own, preceded by the last byte
+        for (int i = 0; i <= length; i++) {
+            int position = suffixes[i];
+            if (position == 0)
+                primary = i;
+            else
+                out[j++] = data[position - 1];
+        }
+        out[0] = (byte) (primary >>> 24);
+        out[1] = (byte) (primary >>> 16);
+        out[2] = (byte) (primary >>> 8);
+        out[3] = (byte) primary;
+        return out;
+    }
+
+    @Override
+    public byte[] inverse(byte[] data, int length, int maxLength) throws IOException {
+        if (length < 4)
+            throw new IOException("Corrupt transform: no primary index");
+        int n = length - 4;
+        if (n > maxLength)
+            throw new IOException("Corrupt transform: " + n + " bytes where at most " + maxLength + " fit");
+        int primary = ((data[0] & 0xFF) << 24) | ((data[1] & 0xFF) << 16) | ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+        // the end marker is never in row 0, which holds the end marker's own suffix, unless the block is empty
+        if ((n == 0) ? primary != 0 : primary < 1 || primary > n)
+            throw new IOException("Corrupt transform: primary index " + primary);
+        if (n == 0)
+            return new byte[0];
+
+        // row r of the sorted rotations (0 to n) ends with last(r); row primary ends with the end marker
+        int[] start = new int[257];
+        for (int i = 4; i < length; i++)
+            start[(data[i] & 0xFF) + 1]++;
+        start[0] = 1; // the end marker sorts first
+        for (int c = 1; c < 257; c++)
+            start[c] += start[c - 1];
+        // next[r] is the row that starts with the last byte of row r
+        int[] next = new int[n + 1];
+        int[] seen = Arrays.copyOf(start, 256);
+        for (int r = 0; r <= n; r++) {
+            if (r == primary)
+                continue;
+            int c = data[4 + r - ((r > primary) ? 1 : 0)] & 0xFF;
+            next[r] = seen[c]++;
+        }
+
+        byte[] out = new byte[n];
+        int row = 0;
+        for (int k = n - 1; k >= 0; k--) {
+            if (row == primary)
+                throw new IOException("Corrupt transform: end reached early");
+            out[k] = data[4 + row - ((row > primary) ? 1 : 0)];
+            row = next[row];
+        }
+        if (row != primary)
+            throw new IOException("Corrupt transform: the rows do not form one cycle");
+        return out;
+    }
+
+    /**
+     * Returns the suffix array of a block followed by an end marker smaller than any byte.
+     * @param data the array holding the block.
+     * @param length the number of bytes of the block.
+     * @return the starting positions of the length + 1 suffixes in sorted order; the first is length.
+     */
+    static int[] suffixArray(byte[] data, int length) {
+        int[] text = new int[length + 1];
+        for (int i = 0; i < length; i++)
+            text[i] = (data[i] & 0xFF) + 1;
+        int[] suffixes = new int[length + 1];
+        sais(text, suffixes, length + 1, 257);
+        return suffixes;
+    }
+
+    /**
+     * Sorts the suffixes of text by induced sorting. The last character of text must be smaller than
+     * every other one and occur only there.
+     * @param text the characters, 0 to alphabetSize - 1.
+     * @param suffixes the array the sorted starting positions are stored in.
+     * @param n the number of characters.
+     * @param alphabetSize one more than the largest character.
+     */
+    private static void sais(int[] text, int[] suffixes, int n, int alphabetSize) {
+        if (n == 1) {
+            suffixes[0] = 0;
+            return;
+        }
+        // S-type suffixes are smaller than the suffix after them, L-type larger
+        boolean[] sType = new boolean[n];
+        sType[n - 1] = true;
+        for (int i = n - 2; i >= 0; i--)
+            sType[i] = text[i] < text[i + 1] || (text[i] == text[i + 1] && sType[i + 1]);
+        int[] bucket = new int[alphabetSize];
+
+        // 1. sort the LMS substrings by inducing from their unsorted positions
+        bucketEnds(text, bucket, n, alphabetSize);
+        Arrays.fill(suffixes, 0, n, -1);
+        for (int i = 1; i < n; i++) {
+            if (isLms(sType, i))
+                suffixes[--bucket[text[i]]] = i;
+        }
+        induce(text, suffixes, sType, bucket, n, alphabetSize);
+
+        // 2. name the LMS substrings, equal ones alike, and sort the string of names recursively
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            if (isLms(sType, suffixes[i]))
+                suffixes[m++] = suffixes[i];
+        }
+        Arrays.fill(suffixes, m, n, -1);
+        int names = 0;
+        int previous = -1;
+        for (int i = 0; i < m; i++) {
+            int position = suffixes[i];
+            boolean differs = false;
+            for (int d = 0; ; d++) {
+                if (previous == -1 || text[position + d] != text[previous + d]
+                        || sType[position + d] != sType[previous + d]) {
+                    differs = true;
+                    break;
+                }
+                if (d > 0 && (isLms(sType, position + d) || isLms(sType, previous + d)))
+                    break;
+            }
+            if (differs) {
+                names++;
+                previous = position;
+            }
+            // LMS positions are at least 2 apart, so position / 2 is unique
+            suffixes[m + (position >> 1)] = names - 1;
+        }
+        int[] reduced = new int[m];
+        for (int i = n - 1, j = m - 1; i >= m; i--) {
+            if (suffixes[i] >= 0)
+                reduced[j--] = suffixes[i];
+        }
+        int[] reducedSuffixes = new int[m];
+        if (names < m) {
+            sais(reduced, reducedSuffixes, m, names);
+        } else {
+            for (int i = 0; i < m; i++)
+                reducedSuffixes[reduced[i]] = i;
+        }
+
+        // 3. place the LMS suffixes in their sorted order and induce the rest from them
+        int[] lms = new int[m];
+        for (int i = 1, j = 0; i < n; i++) {
+            if (isLms(sType, i))
+                lms[j++] = i;
+        }
+        bucketEnds(text, bucket, n, alphabetSize);
+        Arrays.fill(suffixes, 0, n, -1);
+        for (int i = m - 1; i >= 0; i--) {
+            int position = lms[reducedSuffixes[i]];
+            suffixes[--bucket[text[position]]] = position;
+        }
+        induce(text, suffixes, sType, bucket, n, alphabetSize);
+    }
+
+    /** sorts the L-type suffixes from left to right, then the S-type ones from right to left. */
+    private static void induce(int[] text, int[] suffixes, boolean[] sType, int[] bucket, int n, int alphabetSize) {
+        bucketStarts(text, bucket, n, alphabetSize);
+        for (int i = 0; i < n; i++) {
+            int j = suffixes[i] - 1;
+            if (j >= 0 && !sType[j])
+                suffixes[bucket[text[j]]++] = j;
+        }
+        bucketEnds(text, bucket, n, alphabetSize);
+        for (int i = n - 1; i >= 0; i--) {
+            int j = suffixes[i] - 1;
+            if (j >= 0 && sType[j])
+                suffixes[--bucket[text[j]]] = j;
+        }
+    }
+
+    private static boolean isLms(boolean[] sType, int i) {
+        return i > 0 && sType[i] && !sType[i - 1];
+    }
+
+    private static void bucketStarts(int[] text, int[] bucket, int n, int alphabetSize) {
+        Arrays.fill(bucket, 0);
+        for (int i = 0; i < n; i++)
+            bucket[text[i]]++;
+        for (int c = 0, sum = 0; c < alphabetSize; c++) {
+            int count = bucket[c];
+            bucket[c] = sum;
+            sum += count;
+        }
+    }
+
+    private static void bucketEnds(int[] text, int[] bucket, int n, int alphabetSize) {
+        Arrays.fill(bucket, 0);
+        for (int i = 0; i < n; i++)
+            bucket[text[i]]++;
+        for (int c = 0, sum = 0; c < alphabetSize; c++) {
+            sum += bucket[c];
+            bucket[c] = sum;
+        }
+    }
+}
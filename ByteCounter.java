@@ -0,0 +1,175 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.IntStream;
+import java.util.zip.Checksum;
+
+/**
+ * Counts how often each byte value occurs, the first pass of every two-pass compressor.
+ * <br> 1. Counts into HISTOGRAMS interleaved sub-histograms, consecutive bytes going to different
+ * ones, and adds them up at the end. In low-entropy data such as DNA the same byte comes again
+ * and again; with a single histogram each increment of its counter waits for the previous one
+ * to be stored and loaded again, while here they mostly go to different counters.
+ * <br> 2. An array is counted a byte load at a time, 8 bytes per iteration. A direct buffer,
+ * whose single byte reads cost more, is read 8 bytes at a time as a long and the bytes taken
+ * out with shifts.
+ * <br> 3. Splits inputs of PARALLEL_THRESHOLD bytes or more into slices counted on the common
+ * fork/join pool, each into its own counts, which are merged at the end.
+ * <p>
+ *     The sub-histograms are ints, which cannot overflow: an array or buffer holds fewer than
+ *     2^31 bytes, and each sub-histogram counts only a fraction of them. They are allocated by
+ *     each call, which costs less than it saves: the compiler then knows their length and
+ *     drops the bounds check of every increment.
+ * </p>
+ * <p>
+ *     Measured with HuffmanBenchmark on one core, counting an array is about 1.3 times as fast
+ *     as a single histogram on uniform bytes, 1.5 times on fasta.txt and 3.4 times on a single
+ *     repeated byte. A direct buffer is counted about as fast as a single histogram on uniform
+ *     bytes and 3 times as fast on a single repeated byte.
+ * </p>
+ */
+class ByteCounter {
+
+    /** number of interleaved sub-histograms. */
+    static final int HISTOGRAMS = 4;
+    /** smallest input split across threads by countParallel(), and the smallest slice. */
+    static final int PARALLEL_THRESHOLD = 4 << 20;
+    /** inputs shorter than this are counted with a plain loop, which costs less to set up. */
+    private static final int SMALL = 1024;
+
+    private ByteCounter() {
+    }
+
+    /**
+     * Adds the bytes of part of an array to counts.
+     * @param data the array.
+     * @param offset the index of the first byte.
+     * @param length the number of bytes.
+     * @param counts the count of each byte value, which the bytes are added to.
+     */
+    static void count(byte[] data, int offset, int length, long[] counts) {
+        int end = offset + length;
+        if (length < SMALL) {
+            for (int i = offset; i < end; i++)
+                counts[data[i] & 0xFF]++;
+            return;
+        }
+
+        int[] histograms = new int[HISTOGRAMS * 256];
+        int i = offset;
+        for (; i < end - 7; i += 8) {
+            histograms[data[i] & 0xFF]++;
+            histograms[256 + (data[i + 1] & 0xFF)]++;
+            histograms[512 + (data[i + 2] & 0xFF)]++;
+            histograms[768 + (data[i + 3] & 0xFF)]++;
+            histograms[data[i + 4] & 0xFF]++;
+            histograms[256 + (data[i + 5] & 0xFF)]++;
+            histograms[512 + (data[i + 6] & 0xFF)]++;
+            histograms[768 + (data[i + 7] & 0xFF)]++;
+        }
+        for (; i < end; i++)
+            histograms[data[i] & 0xFF]++;
+        merge(histograms, counts);
+    }
+
+    /**
+     * Adds the bytes between the position and limit of a buffer to counts, without moving its
+     * position. A heap buffer is counted in place from its array.
+     * @param data the bytes to count.
+     * @param counts the count of each byte value, which the bytes are added to.
+     */
+    static void count(ByteBuffer data, long[] counts) {
+        if (data.hasArray()) {
+            count(data.array(), data.arrayOffset() + data.position(), data.remaining(), counts);
+            return;
+        }
+        int end = data.limit();
+        if (data.remaining() < SMALL) {
+            for (int i = data.position(); i < end; i++)
+                counts[data.get(i) & 0xFF]++;
+            return;
+        }
+
+        ByteBuffer bytes = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int[] histograms = new int[HISTOGRAMS * 256];
+        int i = bytes.position();
+        for (; i < end - 7; i += 8) {
+            long word = bytes.getLong(i);
+            histograms[(int) word & 0xFF]++;
+            histograms[256 + ((int) (word >>> 8) & 0xFF)]++;
+            histograms[512 + ((int) (word >>> 16) & 0xFF)]++;
+            histograms[768 + ((int) (word >>> 24) & 0xFF)]++;
+            histograms[(int) (word >>> 32) & 0xFF]++;
+            histograms[256 + ((int) (word >>> 40) & 0xFF)]++;
+            histograms[512 + ((int) (word >>> 48) & 0xFF)]++;
+            histograms[768 + (int) (word >>> 56)]++;
+        }
+        for (; i < end; i++)
+            histograms[bytes.get(i) & 0xFF]++;
+        merge(histograms, counts);
+    }
+
+    /**
+     * Adds the bytes between the position and limit of a buffer to counts like count(ByteBuffer, long[]),
+     * splitting a large buffer into slices that are counted on several threads.
+     * @param data the bytes to count.
+     * @param counts the count of each byte value, which the bytes are added to.
+     */
+    static void countParallel(ByteBuffer data, long[] counts) {
+        int slices = Math.min(Runtime.getRuntime().availableProcessors(), data.remaining() / PARALLEL_THRESHOLD);
+        if (slices <= 1) {
+            count(data, counts);
+            return;
+        }
+        long sliceSize = (data.remaining() + slices - 1) / slices;
+        long[] total = IntStream.range(0, slices).parallel()
+                .mapToObj(slice -> {
+                    int from = (int) (data.position() + slice * sliceSize);
+                    int to = (int) Math.min(data.limit(), from + sliceSize);
+                    long[] sliceCounts = new long[256];
+                    count(data.duplicate().limit(to).position(from), sliceCounts);
+                    return sliceCounts;
+                })
+                .reduce(new long[256], ByteCounter::sum);
+        for (int b = 0; b < 256; b++)
+            counts[b] += total[b];
+    }
+
+    /**
+     * Counts the bytes of a whole file, memory-mapped a region at a time and counted on several
+     * threads, while the calling thread computes the checksum of the same region.
+     * @param channel the file, read from its start to its end.
+     * @param checksum updated with every byte of the file, or null.
+     * @return the count of each byte value.
+     * @throws IOException if the file cannot be mapped.
+     */
+    static long[] count(FileChannel channel, Checksum checksum) throws IOException {
+        long[] counts = new long[256];
+        long size = channel.size();
+        for (long position = 0; position < size; position += MappedInputStream.MAP_SIZE) {
+            ByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(MappedInputStream.MAP_SIZE, size - position));
+            CompletableFuture<Void> counted = CompletableFuture.runAsync(() -> countParallel(region, counts));
+            if (checksum != null)
+                checksum.update(region.duplicate());
+            counted.join();
+        }
+        return counts;
+    }
+
+    /** adds the sub-histograms to counts. */
+    private static void merge(int[] histograms, long[] counts) {
+        for (int b = 0; b < 256; b++)
+            counts[b] += (long) histograms[b] + histograms[256 + b] + histograms[512 + b] + histograms[768 + b];
+    }
+
+    /** returns the sum of the counts of two slices. */
+    private static long[] sum(long[] a, long[] b) {
+        long[] sum = new long[256];
+        for (int i = 0; i < 256; i++)
+            sum[i] = a[i] + b[i];
+        return sum;
+    }
+}
@@ -0,0 +1,200 @@
+import java.util.Arrays;
+
+/**
+ * Builds Huffman code lengths directly from character counts, for the canonical format where
+ * only the lengths are stored.
+ * <p>
+ *     huffman() builds the optimal code with primitive arrays instead of HuffmanTree objects.
+ *     An instance keeps its scratch arrays, so once created it builds code after code without
+ *     allocating; it is not thread-safe, each thread needs its own.
+ * </p>
+ * <p>
+ *     packageMerge() finds the best code whose lengths do not exceed a limit. Bounded lengths
+ *     keep every code inside the bit accumulators and keep decode tables small, at a small
+ *     cost in compression on very skewed input.
+ * </p>
+ */
+class CodeLengths {
+
+    // scratch space: node i < n is the i-th smallest character, node n + j the j-th merged node
+    private final long[] keys = new long[256];
+    private final long[] weights = new long[511];
+    private final int[] parents = new int[511];
+    private final int[] lengths = new int[256];
+
+    /**
+     * Computes optimal (Huffman) code lengths using the two-queue method.
+     * <br> 1. Sorts the characters that occur by count, as primitive keys (count << 8 | character).
+     * <br> 2. Merged nodes are created in order of weight, so they form a second sorted queue;
+     * each step merges the two smallest fronts of the two queues, in linear time.
+     * <br> 3. A pass from the root down gives each node its depth, which is its code length.
+     * @param counts the number of times each character occurs, each less than 2^55.
+     * @param lengths filled with the code length of each character, 0 for characters that do not occur.
+     * @return lengths.
+     */
+    int[] huffman(long[] counts, int[] lengths) {
+        int n = 0;
+        for (int symbol = 0; symbol < counts.length; symbol++) {
+            if (counts[symbol] > 0)
+                keys[n++] = (counts[symbol] << 8) | symbol;
+        }
+        Arrays.sort(keys, 0, n);
+        Arrays.fill(lengths, 0);
+        if (n == 1)
+            lengths[(int) keys[0] & 0xFF] = 1;
+        if (n <= 1)
+            return lengths;
+
+        for (int i = 0; i < n; i++)
+            weights[i] = keys[i] >>> 8;
+        int nextLeaf = 0;
+        int nextNode = n;
+        int root = 2 * n - 2;
+        for (int node = n; node <= root; node++) {
+            int first = (nextLeaf < n && (nextNode >= node || weights[nextLeaf] <= weights[nextNode]))
+                    ? nextLeaf++ : nextNode++;
+            int second = (nextLeaf < n && (nextNode >= node || weights[nextLeaf] <= weights[nextNode]))
+                    ? nextLeaf++ : nextNode++;
+            weights[node] = weights[first] + weights[second];
+            parents[first] = node;
+            parents[second] = node;
+        }
+
+        // parents always come after their children, so walking down from the root sees them first
+        parents[root] = 0; // reused as the depth of each node from here on
+        for (int node = root - 1; node >= 0; node--)
+            parents[node] = parents[parents[node]] + 1;
+        for (int i = 0; i < n; i++)
+            lengths[(int) keys[i] & 0xFF] = parents[i];
+        return lengths;
+    }
+
+    /**
+     * Fills a code table with the canonical code for a set of counts, limited to maxLength bits,
+     * without allocating unless the limit is reached.
+     * @param counts the number of times each character occurs.
+     * @param maxLength the longest code allowed, or 0 for the longest code the decoder handles.
+     * @param table the table to fill.
+     * @return table.
+     */
+    CodeTable canonicalCode(long[] counts, int maxLength, CodeTable table) {
+        HuffmanMetrics.CODE_TABLES_BUILT.increment();
+        int limit = DecodeTable.MAX_CODE_LENGTH;
+        if (maxLength > 0)
+            limit = Math.min(maxLength, limit);
+        int[] codeLengths = huffman(counts, lengths);
+        for (int length : codeLengths) {
+            if (length > limit) {
+                codeLengths = packageMerge(counts, limit);
+                break;
+            }
+        }
+        return table.assignCanonical(codeLengths);
+    }
+
+    /**
+     * Computes optimal code lengths that are at most maxLength bits, using the package-merge
+     * algorithm.
+     * <br> 1. Sorts the characters that occur by count, smallest first.
+     * <br> 2. Starting from that list, maxLength - 1 times: pairs up neighbouring items into
+     * packages and merges the packages back into the sorted characters.
+     * <br> 3. Selects the 2n - 2 smallest items of the last list and walks back down the levels;
+     * every time a character is among the selected items its code gets one bit longer.
+     * @param counts the number of times each character occurs.
+     * @param maxLength the longest code allowed, at least 8 so that 256 characters fit.
+     * @return the code length of each character, 0 for characters that do not occur.
+     * @throws IllegalArgumentException if the characters cannot fit in codes of maxLength bits.
+     */
+    static int[] packageMerge(long[] counts, int maxLength) {
+        int[] lengths = new int[counts.length];
+        int[] symbols = sortedSymbols(counts);
+        int n = symbols.length;
+        if (n == 0)
+            return lengths;
+        if (n == 1) {
+            lengths[symbols[0]] = 1;
+            return lengths;
+        }
+        if (maxLength < 1 || maxLength < 32 - Integer.numberOfLeadingZeros(n - 1))
+            throw new IllegalArgumentException(n + " characters do not fit in codes of " + maxLength + " bits");
+
+        // weights[level][i] is the weight of the i-th item of a level, leaf[level][i] whether it is a character
+        int size = 2 * n - 2;
+        long[][] weights = new long[maxLength][];
+        boolean[][] leaf = new boolean[maxLength][];
+        weights[0] = new long[n];
+        leaf[0] = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            weights[0][i] = counts[symbols[i]];
+            leaf[0][i] = true;
+        }
+
+        for (int level = 1; level < maxLength; level++) {
+            long[] previous = weights[level - 1];
+            int packages = previous.length / 2;
+            int length = Math.min(size, n + packages);
+            weights[level] = new long[length];
+            leaf[level] = new boolean[length];
+
+            int nextLeaf = 0;
+            int nextPackage = 0;
+            for (int i = 0; i < length; i++) {
+                long packageWeight = (nextPackage < packages)
+                        ? previous[2 * nextPackage] + previous[2 * nextPackage + 1] : Long.MAX_VALUE;
+                if (nextLeaf < n && counts[symbols[nextLeaf]] <= packageWeight) {
+                    weights[level][i] = counts[symbols[nextLeaf++]];
+                    leaf[level][i] = true;
+                } else {
+                    weights[level][i] = packageWeight;
+                    nextPackage++;
+                }
+            }
+        }
+
+        // the selected items of a level are always its first `selected`, and its characters are
+        // the smallest ones, so counting them is enough to know whose code grows
+        int selected = size;
+        for (int level = maxLength - 1; level >= 0 && selected > 0; level--) {
+            int leaves = 0;
+            for (int i = 0; i < selected; i++) {
+                if (leaf[level][i])
+                    leaves++;
+            }
+            for (int i = 0; i < leaves; i++)
+                lengths[symbols[i]]++;
+            selected = 2 * (selected - leaves);
+        }
+        return lengths;
+    }
+
+    /**
+     * Returns the characters that occur, in ascending order of count.
+     * @param counts the number of times each character occurs.
+     * @return the characters with a non-zero count, smallest count first.
+     */
+    static int[] sortedSymbols(long[] counts) {
+        int n = 0;
+        for (long count : counts) {
+            if (count > 0)
+                n++;
+        }
+        int[] symbols = new int[n];
+        int next = 0;
+        for (int symbol = 0; symbol < counts.length; symbol++) {
+            if (counts[symbol] > 0)
+                symbols[next++] = symbol;
+        }
+
+        // insertion sort, there are at most 256 characters
+        for (int i = 1; i < n; i++) {
+            int symbol = symbols[i];
+            int j = i - 1;
+            while (j >= 0 && counts[symbols[j]] > counts[symbol]) {
+                symbols[j + 1] = symbols[j];
+                j--;
+            }
+            symbols[j + 1] = symbol;
+        }
+        return symbols;
+    }
+}
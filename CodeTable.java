@@ -0,0 +1,127 @@
+import java.util.Arrays;
+
+/**
+ * Primitive form of the Huffman code key used on the encoding hot path.
+ * <br> 1. codes[c] holds the Huffman code of byte value c, right-aligned in a long.
+ * <br> 2. lengths[c] holds how many bits of codes[c] are used (0 if c does not occur).
+ * <p>
+ *     Unlike the String[] returned by HuffmanTree.getCode(), writing a code from this table
+ *     is a pair of array loads, with no string appends or char-to-bit conversions per symbol.
+ * </p>
+ */
+class CodeTable {
+
+    /** the longest code a table can hold, one full long. */
+    static final int MAX_CODE_LENGTH = 64;
+
+    final long[] codes = new long[256];
+    final int[] lengths = new int[256];
+    int maxLength;
+
+    // scratch space of assignCanonical()
+    private final int[] lengthCounts = new int[MAX_CODE_LENGTH + 1];
+    private final long[] nextCode = new long[MAX_CODE_LENGTH + 1];
+
+    /**
+     * Builds the code table of a Huffman Tree. Going left appends a 0 and going right appends a 1,
+     * the same codes that HuffmanTree.assignCode() produces as strings.
+     * @param root the root of the Huffman Tree, or null for an empty tree.
+     * @return the table of codes for each character in the tree.
+     * @throws IllegalStateException if the tree is deeper than MAX_CODE_LENGTH.
+     */
+    static CodeTable fromTree(HuffmanTree.HuffmanNode root) {
+        CodeTable table = new CodeTable();
+        if (root != null)
+            table.assignCode(root, 0L, 0);
+        return table;
+    }
+
+    /**
+     * Builds the canonical code table for a set of code lengths. Codes are handed out in order of
+     * length, and characters of the same length get consecutive codes in character order, so the
+     * lengths alone are enough to rebuild the same table when decompressing.
+     * @param lengths the code length of each character, 0 for characters that do not occur.
+     * @return the table of canonical codes.
+     */
+    static CodeTable canonical(int[] lengths) {
+        CodeTable table = new CodeTable();
+        table.assignCanonical(lengths);
+        return table;
+    }
+
+    /**
+     * Replaces the codes of this table with the canonical codes for a set of code lengths,
+     * see canonical(). Allocates nothing, so a table can be reused for block after block.
+     * @param lengths the code length of each character, 0 for characters that do not occur.
+     * @return this table.
+     * @throws IllegalArgumentException if a length is longer than MAX_CODE_LENGTH.
+     */
+    CodeTable assignCanonical(int[] lengths) {
+        maxLength = 0;
+        Arrays.fill(lengthCounts, 0);
+        for (int length : lengths) {
+            if (length > MAX_CODE_LENGTH)
+                throw new IllegalArgumentException("Huffman code longer than " + MAX_CODE_LENGTH + " bits");
+            maxLength = Math.max(maxLength, length);
+            lengthCounts[length]++;
+        }
+        lengthCounts[0] = 0;
+
+        // nextCode[len] is the first code of that length, one past the last shorter code shifted left
+        long code = 0;
+        for (int length = 1; length <= maxLength; length++) {
+            code = (code + lengthCounts[length - 1]) << 1;
+            nextCode[length] = code;
+        }
+
+        for (int symbol = 0; symbol < lengths.length; symbol++) {
+            int length = lengths[symbol];
+            codes[symbol] = (length > 0) ? nextCode[length]++ : 0;
+            this.lengths[symbol] = length;
+        }
+        return this;
+    }
+
+    /**
+     * Helper method of fromTree(), walks the tree carrying the code built so far.
+     * @param node the current node.
+     * @param code the bits of the path from the root to node.
+     * @param length the number of bits in the path.
+     */
+    private void assignCode(HuffmanTree.HuffmanNode node, long code, int length) {
+        if (node.left != null) {
+            if (length == MAX_CODE_LENGTH)
+                throw new IllegalStateException("Huffman code longer than " + MAX_CODE_LENGTH + " bits");
+            assignCode(node.left, code << 1, length + 1);
+            assignCode(node.right, (code << 1) | 1, length + 1);
+        } else {
+            codes[node.data] = code;
+            lengths[node.data] = length;
+            maxLength = Math.max(maxLength, length);
+        }
+    }
+
+    /**
+     * Returns the number of bits needed to encode a message with the given byte counts.
+     * @param counts the number of times each byte value occurs in the message.
+     * @return the length of the encoded message in bits.
+     */
+    long encodedLength(long[] counts) {
+        long bits = 0;
+        for (int i = 0; i < counts.length; i++)
+            bits += counts[i] * lengths[i];
+        return bits;
+    }
+
+    /**
+     * Returns the number of bits needed to encode a message with the given character counts.
+     * @param counts the number of times each character occurs in the message.
+     * @return the length of the encoded message in bits.
+     */
+    long encodedLength(int[] counts) {
+        long bits = 0;
+        for (int i = 0; i < counts.length; i++)
+            bits += (long) counts[i] * lengths[i];
+        return bits;
+    }
+}
@@ -0,0 +1,186 @@
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, least-recently-used cache of built code tables, shared by every thread in the JVM.
+ * <br> 1. Encoder tables are keyed by a quantized byte histogram: the share of each dominant byte
+ * value, one whose ideal code is at most DOMINANT_BITS long, rounded to a whole bit of ideal code
+ * length, and the total share of all the other values, which the table codes alike. Which rare
+ * values happen to occur does not change the key, so inputs with nearly the same distribution
+ * share one key, and so one table, without building it again.
+ * <br> 2. Decoder tables are keyed by their code lengths, so blocks and files that use the same
+ * code skip rebuilding the lookup table.
+ * <p>
+ *     The table for a key is built from the key itself, never from the counts of whichever input
+ *     happened to miss first, so compressed output does not depend on what the cache holds.
+ *     Cached tables are never modified and may be used by several threads at once.
+ * </p>
+ */
+class CodeTableCache {
+
+    /** the cache shared by compression and decompression. */
+    static final CodeTableCache SHARED = new CodeTableCache(256);
+    /** byte values whose ideal code is longer than this, in bits, are keyed together as rare. */
+    static final int DOMINANT_BITS = 8;
+
+    private final Map<ByteBuffer, CodeTable> encoders;
+    private final Map<ByteBuffer, DecodeTable> decoders;
+    private final AtomicLong encoderHits = new AtomicLong();
+    private final AtomicLong encoderMisses = new AtomicLong();
+    private final AtomicLong decoderHits = new AtomicLong();
+    private final AtomicLong decoderMisses = new AtomicLong();
+
+    /**
+     * Constructs an empty cache.
+     * @param capacity the number of encoder tables and of decoder tables kept, each.
+     */
+    CodeTableCache(int capacity) {
+        encoders = lruMap(capacity);
+        decoders = lruMap(capacity);
+    }
+
+    /**
+     * Returns the encoder table for the quantized histogram of a set of counts, building it on a miss.
+     * @param counts the number of times each byte value occurs, at least one non-zero.
+     * @param maxLength the longest code allowed, or 0 for the longest code the decoder handles.
+     * @return a canonical code table with a code for every byte value that occurs, and for every
+     *         rare one if any occurs; it must not be modified.
+     */
+    CodeTable encoderFor(long[] counts, int maxLength) {
+        byte[] buckets = quantize(counts, maxLength);
+        ByteBuffer key = ByteBuffer.wrap(buckets);
+        CodeTable table;
+        synchronized (encoders) {
+            table = encoders.get(key);
+        }
+        if (table != null) {
+            encoderHits.incrementAndGet();
+            return table;
+        }
+
+        encoderMisses.incrementAndGet();
+        long[] representative = new long[counts.length];
+        int dominant = 0;
+        for (int symbol = 0; symbol < counts.length; symbol++) {
+            if (buckets[symbol] != 0) {
+                representative[symbol] = 1L << (48 - buckets[symbol]);
+                dominant++;
+            }
+        }
+        // the rare values' share is split evenly between every value that is not dominant
+        int rare = buckets[counts.length];
+        if (rare != 0 && dominant < counts.length) {
+            long share = Math.max(1, (1L << Math.max(0, 48 - rare)) / (counts.length - dominant));
+            for (int symbol = 0; symbol < counts.length; symbol++) {
+                if (buckets[symbol] == 0)
+                    representative[symbol] = share;
+            }
+        }
+        table = new CodeLengths().canonicalCode(representative, maxLength, new CodeTable());
+        synchronized (encoders) {
+            encoders.put(key, table);
+        }
+        return table;
+    }
+
+    /**
+     * Returns the decoder table for a set of code lengths, building it on a miss.
+     * @param lengths the code length of each byte value.
+     * @return the decode table; it must not be modified.
+     */
+    DecodeTable decoderFor(int[] lengths) {
+        ByteBuffer key = lengthsKey(lengths);
+        DecodeTable table;
+        synchronized (decoders) {
+            table = decoders.get(key);
+        }
+        if (table != null) {
+            decoderHits.incrementAndGet();
+            return table;
+        }
+
+        decoderMisses.incrementAndGet();
+        table = new DecodeTable(CodeTable.canonical(lengths));
+        synchronized (decoders) {
+            decoders.put(key, table);
+        }
+        return table;
+    }
+
+    /** returns the number of encoder tables found in the cache. */
+    long encoderHits() {
+        return encoderHits.get();
+    }
+
+    /** returns the number of encoder tables that had to be built. */
+    long encoderMisses() {
+        return encoderMisses.get();
+    }
+
+    /** returns the number of decoder tables found in the cache. */
+    long decoderHits() {
+        return decoderHits.get();
+    }
+
+    /** returns the number of decoder tables that had to be built. */
+    long decoderMisses() {
+        return decoderMisses.get();
+    }
+
+    /**
+     * Returns a key that is equal for equal code lengths.
+     * @param lengths the code length of each byte value, each less than 256.
+     * @return the lengths as a buffer of bytes.
+     */
+    static ByteBuffer lengthsKey(int[] lengths) {
+        byte[] key = new byte[lengths.length];
+        for (int i = 0; i < lengths.length; i++)
+            key[i] = (byte) lengths[i];
+        return ByteBuffer.wrap(key);
+    }
+
+    /**
+     * Quantizes counts to the ideal code length of each dominant byte value, log2(total / count),
+     * rounded to whole bits and plus one: bucket 1 is the most frequent possible, and 0 means the
+     * value is rare or does not occur.
+     * The byte after the values' buckets holds the bucket of the rare values' total count, 0 if
+     * none occurs, and the last byte holds maxLength, since it changes the table.
+     */
+    private static byte[] quantize(long[] counts, int maxLength) {
+        long total = 0;
+        for (long count : counts)
+            total += count;
+
+        byte[] buckets = new byte[counts.length + 2];
+        long rare = 0;
+        for (int symbol = 0; symbol < counts.length; symbol++) {
+            if (counts[symbol] > 0) {
+                int bits = bits(total, counts[symbol]);
+                if (bits <= DOMINANT_BITS)
+                    buckets[symbol] = (byte) (1 + bits);
+                else
+                    rare += counts[symbol];
+            }
+        }
+        if (rare > 0)
+            buckets[counts.length] = (byte) Math.min(47, 1 + bits(total, rare));
+        buckets[counts.length + 1] = (byte) maxLength;
+        return buckets;
+    }
+
+    /** returns log2(total / count) rounded to whole bits. */
+    private static int bits(long total, long count) {
+        return (int) Math.round(Math.log((double) total / count) / Math.log(2));
+    }
+
+    private static <V> Map<ByteBuffer, V> lruMap(int capacity) {
+        return new LinkedHashMap<ByteBuffer, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, V> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+}
@@ -1,6 +1,17 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Scanner;
-import java.util.InputMismatchException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
 
 /**
  * Module 15, Programming Project:
@@ -12,35 +23,173 @@ import java.util.InputMismatchException;
  */
 public class CompressFile {
 
+    /** size of the chunks the streaming compressor reads the source file in. */
+    static final int BUFFER_SIZE = 64 * 1024;
+
     /**
      * This main method ensures that the program works from the commmand line.
      * @author Vincent Tran
      * @param args user should provide the complete path to an input file and output file
-     *             seperated with a space.*/
+     *             seperated with a space. By default the file's bytes are compressed exactly, with the
+     *             compact canonical code header (-canonical). It can be preceded by -legacy to compress
+     *             it as text with the serialized tree, or -stream to write that layout for the file's
+     *             exact bytes without loading the file into memory.
+     *             -maxlen N writes canonical codes of at most N bits.
+     *             -blocks compresses independent blocks (-blocksize bytes, 1M by default)
+     *             on -threads threads, with -tablecache sharing code tables between similar blocks
+     *             and -interleave splitting each block into 4 bitstreams that decode side by side.
+     *             -transform PIPELINES tries each block after transforms such as bwt+mtf+rle0 or dna
+     *             (',' between candidates, or auto) and keeps whichever is smallest.
+     *             -dict TABLE compresses with a code table trained beforehand by
+     *             -train TABLE (SampleFile)..., which writes no code header at all.
+     *             -adaptive compresses in one pass with codes rebuilt every -rebuild bytes (64K by
+     *             default); without file names it compresses standard input to standard output.
+     *             -order1 codes each byte with a table chosen by the byte before it.
+     *             -metrics prints the phase timings and sizes of the run as a JSON line to standard error.*/
     public static void main(String[] args) {
-        if(args.length == 2) {
-            File inputFile = new File(args[0]);
-            File outputFile = new File(args[1]);
+        boolean streaming = false;
+        boolean legacy = false;
+        boolean blocks = false;
+        int maxLength = 0;
+        int blockSize = BlockCodec.DEFAULT_BLOCK_SIZE;
+        int threads = Runtime.getRuntime().availableProcessors();
+        CodeTableCache cache = null;
+        boolean interleaved = false;
+        TransformPipeline[] transforms = null;
+        File dictionary = null;
+        File trainTable = null;
+        boolean adaptive = false;
+        boolean order1 = false;
+        boolean metrics = false;
+        int rebuildInterval = AdaptiveCodec.DEFAULT_REBUILD_INTERVAL;
+        int i = 0;
+        try {
+            while (i < args.length && args[i].startsWith("-")) {
+                if (args[i].equals("-stream")) {
+                    streaming = true;
+                } else if (args[i].equals("-legacy")) {
+                    legacy = true;
+                } else if (args[i].equals("-canonical")) {
+                    legacy = false;
+                } else if (args[i].equals("-maxlen") && i + 1 < args.length) {
+                    maxLength = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-blocks")) {
+                    blocks = true;
+                } else if (args[i].equals("-tablecache")) {
+                    blocks = true;
+                    cache = CodeTableCache.SHARED;
+                } else if (args[i].equals("-interleave")) {
+                    blocks = true;
+                    interleaved = true;
+                } else if (args[i].equals("-transform") && i + 1 < args.length) {
+                    blocks = true;
+                    try {
+                        transforms = TransformPipeline.parse(args[++i]);
+                    } catch (IllegalArgumentException e) {
+                        System.out.println(e.getMessage());
+                        printUsage();
+                        return;
+                    }
+                } else if (args[i].equals("-blocksize") && i + 1 < args.length) {
+                    blocks = true;
+                    blockSize = parseSize(args[++i]);
+                } else if (args[i].equals("-threads") && i + 1 < args.length) {
+                    blocks = true;
+                    threads = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-dict") && i + 1 < args.length) {
+                    dictionary = new File(args[++i]);
+                } else if (args[i].equals("-train") && i + 1 < args.length) {
+                    trainTable = new File(args[++i]);
+                } else if (args[i].equals("-order1")) {
+                    order1 = true;
+                } else if (args[i].equals("-metrics")) {
+                    metrics = true;
+                } else if (args[i].equals("-adaptive")) {
+                    adaptive = true;
+                } else if (args[i].equals("-rebuild") && i + 1 < args.length) {
+                    adaptive = true;
+                    rebuildInterval = parseSize(args[++i]);
+                } else {
+                    System.out.println("Unknown option: " + args[i]);
+                    printUsage();
+                    return;
+                }
+                i++;
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Not a number: " + args[i]);
+            printUsage();
+            return;
+        }
+
+        if (adaptive && args.length - i == 0) {
+            // standard output carries the compressed stream, so nothing else may be printed to it
+            try {
+                AdaptiveCodec.compress(System.in, System.out, rebuildInterval);
+            }
+            catch (Exception e) {
+                System.err.println(e);
+            }
+        }
+        else if (trainTable != null && args.length - i > 0) {
+            File[] samples = new File[args.length - i];
+            for (int j = 0; j < samples.length; j++)
+                samples[j] = new File(args[i + j]);
+            try {
+                trainTable(trainTable, samples, (maxLength > 0) ? maxLength : StaticTable.DEFAULT_MAX_LENGTH);
+            }
+            catch (Exception e) {
+                System.out.println(e);
+            }
+        }
+        else if(trainTable == null && args.length - i == 2) {
+            File inputFile = new File(args[i]);
+            File outputFile = new File(args[i + 1]);
 
             try {
-                compressFile(inputFile, outputFile);
+                if (adaptive)
+                    compressFileAdaptive(inputFile, outputFile, rebuildInterval);
+                else if (dictionary != null)
+                    compressFileDictionary(inputFile, outputFile, StaticTable.load(dictionary));
+                else if (blocks)
+                    compressFileBlocks(inputFile, outputFile, blockSize, threads, maxLength, cache, interleaved,
+                            transforms);
+                else if (streaming)
+                    compressFileStreaming(inputFile, outputFile);
+                else if (legacy)
+                    compressFile(inputFile, outputFile);
+                else if (order1)
+                    compressFileContext(inputFile, outputFile, maxLength);
+                else
+                    compressFileCanonical(inputFile, outputFile, maxLength);
+                if (metrics && HuffmanMetrics.GLOBAL.lastRun() != null)
+                    System.err.println(HuffmanMetrics.GLOBAL.lastRun().toJson());
             }
             catch (Exception e) {
                 System.out.println(e);
             }
         }
         else {
-            System.out.println("Usage: java CompressFile.java (InputFile) (OutputFile)");
+            printUsage();
         }
     }
 
+    private static void printUsage() {
+        System.out.println("Usage: java CompressFile.java [-legacy | -stream | -canonical | -order1"
+                + " | -blocks [-blocksize SIZE] [-threads N] [-tablecache] [-interleave] [-transform PIPELINES]"
+                + " | -dict TABLE] [-maxlen N] [-metrics]"
+                + " (InputFile) (OutputFile)");
+        System.out.println("       java CompressFile.java -adaptive [-rebuild SIZE] [(InputFile) (OutputFile)]");
+        System.out.println("       java CompressFile.java -train TABLE [-maxlen N] (SampleFile)...");
+    }
+
     /**
      * This is the method which calls to all other methods to read the file, calculate frequencies
      * of characters within the file, construct a huffman tree, get the codes that correspond to each character,
-     * construct the message in the Huffman encoding and output the tree and message to the target file
-     * in that order.
+     * construct the message in the Huffman encoding and output the header, tree and message to the target file
+     * in that order (the tree format, see CompressedFormat).
      * @param source the source file the user wishes to compress.
-     * @param target the intended location of the compressed contents.
+     * @param target the intended location of the compressed contents, replaced if it exists.
      * @throws IOException to handle any missing files being put at source/target.
      * @throws ClassNotFoundException to deal with typecasting errors.
      * @author Vincent Tran
@@ -49,51 +198,595 @@ public class CompressFile {
     public static void compressFile(File source, File target) throws IOException, ClassNotFoundException {
 
         /* Author: Vincent
-        readFile(): returns a String containing the full file's text.
-        */
-        String messageInput = readFile(source);
-
-        /* Author: Vincent
-        calculateFrequencies(): takes messageInput (full file's text in a string)
-        returns an array of the frequencies of each ASCII character in the messageInput.
+        calculateFrequencies(): reads the file's text a chunk at a time, so it is never held whole,
+        and returns an array of the frequencies of each ASCII character in it, adding them to the
+        checksum stored in the header.
         */
-        int[] frequencies = calculateFrequencies(messageInput); // similar to my getCharacterFrequency method
+        HuffmanMetrics.Run run = HuffmanMetrics.start("compress", "legacy");
+        Checksum checksum = CompressedFormat.newChecksum();
+        long[] frequencies;
+        try (Reader text = openText(source)) {
+            frequencies = calculateFrequencies(text, checksum);
+        }
+        run.phase(HuffmanMetrics.Phase.COUNT);
 
         /* Author: Arshmeet
-        getHuffmanTree(): takes the array of frequenices of each character.
-        returns a huffman tree object.
+        getHuffmanTree(): takes the array of frequenices of each character, scaled to fit the tree's weights.
+        returns a huffman tree object, or null for an empty file.
         */
-        HuffmanTree hf = getHuffmanTree(frequencies);
+        HuffmanTree hf = getHuffmanTree(toTreeWeights(frequencies));
 
-        /* Author: Arshmeet
-        getCode(): takes the huffman tree object's root.
-        returns a key of the huffman codes for each ASCII character in the original file.
+        /*
+        CodeTable.fromTree(): takes the huffman tree object's root.
+        returns the huffman code and code length of each ASCII character in the original file,
+        as primitive arrays instead of the strings from getCode().
          */
-        String[] charKey = hf.getCode(hf.root); // calls assignCode
+        CodeTable codeTable = CodeTable.fromTree((hf == null) ? null : hf.root);
+        run.phase(HuffmanMetrics.Phase.BUILD_TABLE);
+        run.code(frequencies, codeTable);
 
-        /* Author: Vincent
-        writeMessage() takes the array of codes for each character and the input message
-        returns the encoded method that we want to put into the output file. */
-        String outputMessage = writeMessage(charKey, messageInput);
+        /*
+        encodedLength(): the frequencies give the length of the encoded message up front,
+        so it does not have to be built as a string before it is written. */
+        long messageLength = codeTable.encodedLength(frequencies);
 
         /* Author: Arshmeet
-        - constructs a BitOutputStream object (which extends FileOutputStream)
-        - - creates in append mode.
-        - constructs an ObjectOutputStream wrapping around the BitOutputStream
-        - writes the Huffman Tree Object, length of the message outputted and message outputted
-        in that order.
+        - constructs a PackedBitOutputStream around a FileOutputStream
+        - writes the header (see CompressedFormat) with the number of characters and their checksum,
+        then the Huffman Tree Object, length of the message outputted and message outputted
+        in that order, reading the text a second time.
         */
-        BitOutputStream bos = new BitOutputStream(target, true);
-        ObjectOutputStream oos = new ObjectOutputStream(bos);
-        oos.writeObject(hf);
-        bos.writeInt(outputMessage.length());
-        bos.writeBits(outputMessage);
-        
-        System.out.println("Message outputted successfully."); 
-        
-        oos.flush();
-        bos.flush();
-        oos.close();
+        long originalLength = 0;
+        for (long frequency : frequencies)
+            originalLength += frequency;
+        try (PackedBitOutputStream bos = openTarget(target, source.length());
+             Reader text = openText(source)) {
+            CompressedFormat.writeHeader(bos, CompressedFormat.TREE, originalLength, (int) checksum.getValue());
+            writeTree(bos, hf, messageLength);
+            run.phase(HuffmanMetrics.Phase.WRITE);
+            writeMessage(codeTable, text, bos);
+            run.phase(HuffmanMetrics.Phase.ENCODE);
+
+            System.out.println("Message outputted successfully.");
+        }
+        run.phase(HuffmanMetrics.Phase.WRITE);
+        run.finish(source.length(), target.length());
+    }
+
+    /**
+     * Writes a Java-serialized Huffman Tree preceded by its length, then the length of the
+     * message, so that a reader can deserialize the tree from exactly its own bytes.
+     * @param out the stream to write to, positioned after the header.
+     * @param hf the tree, or null for an empty message.
+     * @param messageLength the length of the encoded message in bits.
+     * @throws IOException if the stream fails.
+     */
+    static void writeTree(PackedBitOutputStream out, HuffmanTree hf, long messageLength) throws IOException {
+        ByteArrayOutputStream tree = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(tree)) {
+            oos.writeObject(hf);
+        }
+        out.writeInt(tree.size());
+        tree.writeTo(out);
+        out.writeBits(messageLength, 64);
+    }
+
+    /**
+     * Opens a file as text in the platform's character set, as readFile() reads it.
+     * @param source the file to read.
+     * @return a buffered reader of the file's characters.
+     * @throws IOException if the file cannot be opened.
+     */
+    static Reader openText(File source) throws IOException {
+        return new BufferedReader(new InputStreamReader(MappedInputStream.open(source)), BUFFER_SIZE);
+    }
+
+    /**
+     * Compresses a file of any size while keeping memory use bounded.
+     * <br> 1. Pass one reads the source in chunks of BUFFER_SIZE bytes and counts each byte value.
+     * <br> 2. Builds the Huffman Tree and its codes from those counts, as compressFile() does.
+     * <br> 3. Pass two re-reads the source and writes the code of each byte straight to the target.
+     * <br> Neither the file's text nor the encoded message is ever held as a String. The output has
+     * the layout of compressFile() but codes the file's exact bytes rather than its text, so it is
+     * marked with the TREE_BYTES format and decompressed to the same bytes. The checksum in its
+     * header is computed in pass one.
+     * @param source the source file the user wishes to compress.
+     * @param target the intended location of the compressed contents, replaced if it exists.
+     * @throws IOException if a file cannot be read or written.
+     */
+    public static void compressFileStreaming(File source, File target) throws IOException {
+        HuffmanMetrics.Run run = HuffmanMetrics.start("compress", "stream");
+        Checksum checksum = CompressedFormat.newChecksum();
+        long[] counts = calculateFrequencies(source, checksum);
+        run.phase(HuffmanMetrics.Phase.COUNT);
+        HuffmanTree hf = getHuffmanTree(toTreeWeights(counts));
+        CodeTable codeTable = CodeTable.fromTree((hf == null) ? null : hf.root);
+        run.phase(HuffmanMetrics.Phase.BUILD_TABLE);
+        run.code(counts, codeTable);
+
+        // the bit length is known before anything is written, so no second copy of the message is needed
+        long messageLength = codeTable.encodedLength(counts);
+
+        long originalLength = 0;
+        for (long count : counts)
+            originalLength += count;
+        try (PackedBitOutputStream bos = openTarget(target, originalLength);
+             InputStream input = MappedInputStream.open(source)) {
+            CompressedFormat.writeHeader(bos, CompressedFormat.TREE_BYTES, originalLength, (int) checksum.getValue());
+            writeTree(bos, hf, messageLength);
+            writeMessage(codeTable, input, bos);
+        }
+        run.phase(HuffmanMetrics.Phase.ENCODE);
+        run.finish(source.length(), target.length());
+        System.out.println("Message outputted successfully.");
+    }
+
+    /**
+     * Compresses a file in two streaming passes, like compressFileStreaming(), but writes
+     * canonical Huffman codes behind a compact header (see CompressedFormat) instead of
+     * a Java-serialized HuffmanTree.
+     * <br> The header holds only the code length of each character that occurs, a few bytes
+     * per character, and DecompressFile rebuilds the codes from those lengths.
+     * <br> A file that Huffman codes would not shrink is stored as it is, and a file made mostly
+     * of runs of one byte is stored as runs, in the STORED and RUNS formats (see FallbackCodec).
+     * @param source the source file the user wishes to compress.
+     * @param target the intended location of the compressed contents, replaced if it exists.
+     * @throws IOException if a file cannot be read or written.
+     */
+    public static void compressFileCanonical(File source, File target) throws IOException {
+        compressFileCanonical(source, target, 0);
+    }
+
+    /**
+     * Compresses a file like compressFileCanonical(File, File), with no code longer than maxLength bits.
+     * <br> The limited code lengths come from CodeLengths.packageMerge(), and the extra size this
+     * costs over the unlimited Huffman code is printed.
+     * @param source the source file the user wishes to compress.
+     * @param target the intended location of the compressed contents, replaced if it exists.
+     * @param maxLength the longest code allowed, or 0 for no limit.
+     * @throws IOException if a file cannot be read or written.
+     * @throws IllegalArgumentException if the file has more characters than codes of maxLength bits allow.
+     */
+    public static void compressFileCanonical(File source, File target, int maxLength) throws IOException {
+        HuffmanMetrics.Run run = HuffmanMetrics.start("compress", "canonical");
+        Checksum checksum = CompressedFormat.newChecksum();
+        long[] counts = calculateFrequencies(source, checksum);
+        long originalLength = 0;
+        for (long count : counts)
+            originalLength += count;
+        long runBytes = -1;
+        if (originalLength > 0 && FallbackCodec.mayRun(counts, originalLength)) {
+            try (InputStream input = MappedInputStream.open(source)) {
+                runBytes = FallbackCodec.runBytes(input);
+            }
+        }
+        run.phase(HuffmanMetrics.Phase.COUNT);
+
+        CodeTable codeTable = null;
+        long huffmanBytes = -1;
+        if (originalLength == 0 || FallbackCodec.mayPayOff(counts, originalLength)) {
+            codeTable = getCanonicalCode(counts, 0);
+
+            if (maxLength > 0 && codeTable.maxLength > maxLength) {
+                long unlimitedBits = codeTable.encodedLength(counts);
+                codeTable = getCanonicalCode(counts, maxLength);
+                long limitedBits = codeTable.encodedLength(counts);
+                System.out.printf("Code lengths limited to %d bits: %d bits of codes instead of %d (+%.3f%%).%n",
+                        maxLength, limitedBits, unlimitedBits, 100.0 * (limitedBits - unlimitedBits) / unlimitedBits);
+            }
+            huffmanBytes = FallbackCodec.tableSize(counts) + (codeTable.encodedLength(counts) + 7) / 8;
+            run.code(counts, codeTable);
+        }
+        int choice = (originalLength == 0) ? FallbackCodec.HUFFMAN
+                : FallbackCodec.choose(originalLength, huffmanBytes, runBytes);
+        run.phase(HuffmanMetrics.Phase.BUILD_TABLE);
+
+        try (PackedBitOutputStream bos = openTarget(target, originalLength);
+             InputStream input = MappedInputStream.open(source)) {
+            int checksumValue = (int) checksum.getValue();
+            if (choice == FallbackCodec.STORED) {
+                CompressedFormat.writeHeader(bos, CompressedFormat.STORED, originalLength, checksumValue);
+                input.transferTo(bos);
+            } else if (choice == FallbackCodec.RUNS) {
+                CompressedFormat.writeHeader(bos, CompressedFormat.RUNS, originalLength, checksumValue);
+                FallbackCodec.writeRuns(input, bos);
+            } else {
+                CompressedFormat.writeHeader(bos, CompressedFormat.CANONICAL, originalLength, checksumValue);
+                if (originalLength > 0) {
+                    CompressedFormat.writeCodeLengths(bos, codeTable.lengths);
+                    writeMessage(codeTable, input, bos);
+                }
+            }
+        }
+        run.phase(HuffmanMetrics.Phase.ENCODE);
+        run.finish(originalLength, target.length());
+        System.out.println("Message outputted successfully.");
+    }
+
+    /**
+     * Compresses bytes held in memory into the canonical format, the same bytes that
+     * compressFileCanonical() writes for a file with this content. The bytes are compressed
+     * exactly as they are, with no character set conversion.
+     * @param data the bytes from its position to its limit are compressed; the position is not moved.
+     * @param maxLength the longest code allowed, or 0 for no limit.
+     * @return the compressed bytes.
+     */
+    public static byte[] compress(ByteBuffer data, int maxLength) {
+        return new HuffmanEncoder(maxLength, false).encode(data);
+    }
+
+    /**
+     * Compresses a byte array into the canonical format, see compress(ByteBuffer, int).
+     * @param data the bytes to compress.
+     * @return the compressed bytes.
+     */
+    public static byte[] compress(byte[] data) {
+        return compress(ByteBuffer.wrap(data), 0);
+    }
+
+    /**
+     * Compresses a file with order-1 codes (see ContextModel): each byte is coded with a table
+     * chosen by the byte before it, which suits data such as DNA sequences and structured logs
+     * where a byte says a lot about the next one. Like compressFileCanonical(), it streams the
+     * file twice, first counting the bytes that follow each byte. A file that order-1 codes would
+     * not make smaller than compressFileCanonical() does is compressed with that instead.
+     * @param source the source file the user wishes to compress.
+     * @param target the intended location of the compressed contents, replaced if it exists.
+     * @param maxLength the longest code allowed, or 0 for no limit.
+     * @throws IOException if a file cannot be read or written.
+     */
+    public static void compressFileContext(File source, File target, int maxLength) throws IOException {
+        HuffmanMetrics.Run run = HuffmanMetrics.start("compress", "order1");
+        long[][] counts = new long[256][256];
+        long originalLength = 0;
+        Checksum checksum = CompressedFormat.newChecksum();
+        byte[] chunk = new byte[BUFFER_SIZE];
+        try (InputStream input = MappedInputStream.open(source)) {
+            int context = 0;
+            int read;
+            while ((read = input.read(chunk)) != -1) {
+                context = ContextModel.count(counts, chunk, 0, read, context);
+                checksum.update(chunk, 0, read);
+                originalLength += read;
+            }
+        }
+        long[] order0 = ContextModel.order0(counts);
+        long runBytes = -1;
+        if (originalLength > 0 && FallbackCodec.mayRun(order0, originalLength)) {
+            try (InputStream input = MappedInputStream.open(source)) {
+                runBytes = FallbackCodec.runBytes(input);
+            }
+        }
+        run.phase(HuffmanMetrics.Phase.COUNT);
+
+        ContextModel model = null;
+        if (originalLength > 0) {
+            model = ContextModel.build(counts, maxLength);
+            if (!model.paysOff(counts, order0, maxLength, runBytes)) {
+                System.out.println("Order-1 codes would not pay off; compressing as with -canonical.");
+                compressFileCanonical(source, target, maxLength);
+                return;
+            }
+            run.phase(HuffmanMetrics.Phase.BUILD_TABLE);
+        }
+
+        try (PackedBitOutputStream bos = openTarget(target, originalLength);
+             InputStream input = MappedInputStream.open(source)) {
+            CompressedFormat.writeHeader(bos, CompressedFormat.CONTEXT, originalLength, (int) checksum.getValue());
+            if (model != null) {
+                model.write(bos);
+                int context = 0;
+                int read;
+                while ((read = input.read(chunk)) != -1)
+                    context = model.encode(chunk, 0, read, context, bos);
+            }
+        }
+        run.phase(HuffmanMetrics.Phase.ENCODE);
+        run.finish(originalLength, target.length());
+        System.out.println("Message outputted successfully.");
+    }
+
+    /**
+     * Compresses bytes held in memory with order-1 codes, the same bytes that
+     * compressFileContext() writes for a file with this content.
+     * @param data the bytes from its position to its limit are compressed; the position is not moved.
+     * @param maxLength the longest code allowed, or 0 for no limit.
+     * @return the compressed bytes.
+     */
+    public static byte[] compressContext(ByteBuffer data, int maxLength) {
+        return new HuffmanEncoder(maxLength, true).encode(data);
+    }
+
+    /**
+     * Trains a code table on sample files and saves it for -dict (see StaticTable).
+     * @param table the file the table is written to, replaced if it exists.
+     * @param samples files typical of the messages that will be compressed with the table.
+     * @param maxLength the longest code allowed.
+     * @throws IOException if a file cannot be read or written.
+     */
+    public static void trainTable(File table, File[] samples, int maxLength) throws IOException {
+        StaticTable trained = StaticTable.train(samples, maxLength);
+        trained.save(table);
+        System.out.printf("Code table %08x trained on %d files written to %s.%n", trained.id, samples.length, table);
+    }
+
+    /**
+     * Compresses a file in one streaming pass with a pre-trained code table.
+     * <br> The header holds only the ID of the table instead of code lengths, and the file
+     * does not have to be read twice to count its characters, which suits small files.
+     * @param source the source file the user wishes to compress.
+     * @param target the intended location of the compressed contents, replaced if it exists.
+     * @param table the code table, which DecompressFile also needs.
+     * @throws IOException if a file cannot be read or written.
+     */
+    public static void compressFileDictionary(File source, File target, StaticTable table) throws IOException {
+        HuffmanMetrics.Run run = HuffmanMetrics.start("compress", "dict");
+        long originalLength;
+        Checksum checksum = CompressedFormat.newChecksum();
+        try (PackedBitOutputStream bos = openTarget(target, source.length());
+             InputStream input = new CheckedInputStream(MappedInputStream.open(source), checksum)) {
+            // the file is read only once, so its length and checksum are filled in at the end
+            CompressedFormat.writeHeader(bos, CompressedFormat.DICTIONARY, 0, 0);
+            bos.writeInt(table.id);
+            originalLength = writeMessage(table.codeTable, input, bos);
+        }
+        CompressedFormat.writeLengthAndChecksum(target, originalLength, (int) checksum.getValue());
+        run.phase(HuffmanMetrics.Phase.ENCODE);
+        run.finish(originalLength, target.length());
+        System.out.println("Message outputted successfully.");
+    }
+
+    /**
+     * Compresses bytes held in memory with a pre-trained code table, the same bytes that
+     * compressFileDictionary() writes for a file with this content.
+     * @param data the bytes from its position to its limit are compressed; the position is not moved.
+     * @param table the code table, which DecompressFile also needs.
+     * @return the compressed bytes.
+     */
+    public static byte[] compress(ByteBuffer data, StaticTable table) {
+        return new HuffmanEncoder(table).encode(data);
+    }
+
+    /**
+     * Compresses a file in one pass with adaptive codes (see AdaptiveCodec), the same bytes that
+     * compressing it from standard input with -adaptive writes.
+     * @param source the source file the user wishes to compress.
+     * @param target the intended location of the compressed contents, replaced if it exists.
+     * @param rebuildInterval the number of bytes coded between code rebuilds.
+     * @throws IOException if a file cannot be read or written.
+     */
+    public static void compressFileAdaptive(File source, File target, int rebuildInterval) throws IOException {
+        HuffmanMetrics.Run run = HuffmanMetrics.start("compress", "adaptive");
+        try (InputStream input = new FileInputStream(source);
+             OutputStream output = new BufferedOutputStream(new FileOutputStream(target), BUFFER_SIZE)) {
+            AdaptiveCodec.compress(input, output, rebuildInterval);
+        }
+        run.phase(HuffmanMetrics.Phase.ENCODE);
+        run.finish(source.length(), target.length());
+        System.out.println("Message outputted successfully.");
+    }
+
+    /**
+     * Compresses a file as independent blocks that are compressed in parallel.
+     * <br> 1. Reads the source blockSize bytes at a time and hands each block to a pool of threads.
+     * <br> 2. Each thread builds the block's own canonical codes and encodes it (see BlockCodec).
+     * <br> 3. The blocks are written in their original order as they finish, so the output is the
+     * same for any number of threads. At most two blocks per thread are held in memory.
+     * <br> 4. A block whose code lengths equal those of an earlier block refers to that block
+     * instead of repeating them.
+     * <br> 5. Writes the index of the blocks at the end of the file (see CompressedFormat).
+     * @param source the source file the user wishes to compress.
+     * @param target the intended location of the compressed contents, replaced if it exists.
+     * @param blockSize the number of original bytes in each block.
+     * @param threads the number of threads compressing blocks.
+     * @param maxLength the longest code allowed, or 0 for no limit.
+     * @throws IOException if a file cannot be read or written.
+     */
+    public static void compressFileBlocks(File source, File target, int blockSize, int threads, int maxLength)
+            throws IOException {
+        compressFileBlocks(source, target, blockSize, threads, maxLength, null);
+    }
+
+    /**
+     * Compresses a file as independent blocks, like compressFileBlocks(File, File, int, int, int),
+     * optionally taking each block's codes from a cache of code tables.
+     * <br> With a cache, blocks with nearly the same distribution share a table that is built once
+     * (see CodeTableCache), and every block after the first to use it carries only a reference.
+     * This costs a little compression, since the shared table is not exactly optimal for each block.
+     * @param source the source file the user wishes to compress.
+     * @param target the intended location of the compressed contents, replaced if it exists.
+     * @param blockSize the number of original bytes in each block.
+     * @param threads the number of threads compressing blocks.
+     * @param maxLength the longest code allowed, or 0 for no limit.
+     * @param cache the cache to take code tables from, or null to build each block's optimal code.
+     * @throws IOException if a file cannot be read or written.
+     */
+    public static void compressFileBlocks(File source, File target, int blockSize, int threads, int maxLength,
+                                          CodeTableCache cache) throws IOException {
+        compressFileBlocks(source, target, blockSize, threads, maxLength, cache, false);
+    }
+
+    /**
+     * Compresses a file as independent blocks, like compressFileBlocks(File, File, int, int, int, CodeTableCache),
+     * optionally splitting the codes of each block across interleaved bitstreams (see BlockCodec).
+     * Interleaved blocks are 16 bytes larger, and decode about 1.5 times as fast on one thread
+     * (HuffmanBenchmark decodeBlock measured about 180 against 105 to 120 MB/s).
+     * @param source the source file the user wishes to compress.
+     * @param target the intended location of the compressed contents, replaced if it exists.
+     * @param blockSize the number of original bytes in each block.
+     * @param threads the number of threads compressing blocks.
+     * @param maxLength the longest code allowed, or 0 for no limit.
+     * @param cache the cache to take code tables from, or null to build each block's optimal code.
+     * @param interleaved true to write each block as BlockCodec.STREAMS interleaved bitstreams.
+     * @throws IOException if a file cannot be read or written.
+     */
+    public static void compressFileBlocks(File source, File target, int blockSize, int threads, int maxLength,
+                                          CodeTableCache cache, boolean interleaved) throws IOException {
+        compressFileBlocks(source, target, blockSize, threads, maxLength, cache, interleaved, null);
+    }
+
+    /**
+     * Compresses a file as independent blocks, like compressFileBlocks(File, File, int, int, int, CodeTableCache,
+     * boolean), trying each block after each of several transform pipelines as well (see TransformPipeline).
+     * Each block keeps whichever is smallest, and records its pipeline so it decodes without being told.
+     * @param source the source file the user wishes to compress.
+     * @param target the intended location of the compressed contents, replaced if it exists.
+     * @param blockSize the number of original bytes in each block.
+     * @param threads the number of threads compressing blocks.
+     * @param maxLength the longest code allowed, or 0 for no limit.
+     * @param cache the cache to take code tables from, or null to build each block's optimal code.
+     * @param interleaved true to write each block as BlockCodec.STREAMS interleaved bitstreams.
+     * @param transforms the pipelines to try on each block, or null for none.
+     * @throws IOException if a file cannot be read or written.
+     */
+    public static void compressFileBlocks(File source, File target, int blockSize, int threads, int maxLength,
+                                          CodeTableCache cache, boolean interleaved,
+                                          TransformPipeline[] transforms) throws IOException {
+        if (blockSize < BlockCodec.MIN_BLOCK_SIZE || blockSize > BlockCodec.MAX_BLOCK_SIZE)
+            throw new IllegalArgumentException("Block size must be between " + BlockCodec.MIN_BLOCK_SIZE
+                    + " and " + BlockCodec.MAX_BLOCK_SIZE + " bytes");
+
+        HuffmanMetrics.Run run = HuffmanMetrics.start("compress", "blocks");
+        int poolSize = Math.max(1, threads);
+        ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+        ArrayDeque<Future<BlockCodec.EncodedBlock>> pending = new ArrayDeque<>();
+        Map<ByteBuffer, Integer> tableBlocks = new HashMap<>();
+        Checksum checksum = CompressedFormat.newChecksum();
+
+        try (FileChannel input = new FileInputStream(source).getChannel();
+             PackedBitOutputStream bos = new PackedBitOutputStream(new FileOutputStream(target))) {
+            long originalLength = input.size();
+            int blockCount = (int) ((originalLength + blockSize - 1) / blockSize);
+            long[] offsets = new long[blockCount];
+            int[] compressedLengths = new int[blockCount];
+            int[] originalLengths = new int[blockCount];
+
+            CompressedFormat.writeHeader(bos, CompressedFormat.BLOCKS, originalLength, 0);
+            bos.writeInt(blockSize);
+            long offset = CompressedFormat.HEADER_SIZE + 4;
+
+            int read = 0;
+            for (int written = 0; written < blockCount; written++) {
+                // keep every thread busy, with one block waiting for each
+                while (read < blockCount && pending.size() < 2 * poolSize) {
+                    byte[] block = new byte[(int) Math.min(blockSize, originalLength - (long) read * blockSize)];
+                    readFully(input, block, (long) read * blockSize);
+                    checksum.update(block, 0, block.length);
+                    originalLengths[read++] = block.length;
+                    pending.add(pool.submit(() -> BlockCodec.encodeBlock(block, block.length, maxLength, cache,
+                            interleaved, transforms)));
+                }
+
+                BlockCodec.EncodedBlock encoded = getBlock(pending.remove());
+                Integer reference = (encoded.lengths == null) ? null
+                        : tableBlocks.putIfAbsent(CodeTableCache.lengthsKey(encoded.lengths), written);
+                int tableSize;
+                int layout = (encoded.interleaved ? BlockCodec.INTERLEAVED : 0)
+                        | (encoded.pipeline != null ? BlockCodec.TRANSFORMED : 0);
+                int kind = (encoded.lengths == null) ? encoded.kind
+                        : (reference == null) ? BlockCodec.TABLE_LENGTHS : BlockCodec.TABLE_REFERENCE;
+                bos.write(kind | layout);
+                tableSize = 1;
+                if (encoded.pipeline != null) {
+                    tableSize += encoded.pipeline.write(bos) + 4;
+                    bos.writeInt(encoded.transformedLength);
+                }
+                // stored blocks and runs have no code table
+                if (kind == BlockCodec.TABLE_LENGTHS) {
+                    tableSize += CompressedFormat.writeCodeLengths(bos, encoded.lengths);
+                } else if (kind == BlockCodec.TABLE_REFERENCE) {
+                    bos.writeInt(reference);
+                    tableSize += 4;
+                }
+                bos.write(encoded.codes);
+
+                offsets[written] = offset;
+                compressedLengths[written] = tableSize + encoded.codes.length;
+                offset += compressedLengths[written];
+            }
+
+            for (int block = 0; block < blockCount; block++) {
+                bos.writeBits(offsets[block], 64);
+                bos.writeInt(compressedLengths[block]);
+                bos.writeInt(originalLengths[block]);
+            }
+            bos.writeInt(blockCount);
+            bos.writeBits(offset, 64);
+        } finally {
+            pool.shutdownNow();
+        }
+        // the blocks are read in order, so their checksum is complete once the last one is written
+        CompressedFormat.writeChecksum(target, (int) checksum.getValue());
+        // the blocks are read, encoded on the pool and written at the same time
+        run.phase(HuffmanMetrics.Phase.ENCODE);
+        run.finish(source.length(), target.length());
+        System.out.println("Message outputted successfully.");
+        if (cache != null)
+            System.out.println("Code table cache: " + cache.encoderHits() + " encoder hits, "
+                    + cache.encoderMisses() + " misses.");
+    }
+
+    /**
+     * Waits for a block to be compressed, unwrapping the exception of a failed block.
+     * @param block the result of BlockCodec.encodeBlock().
+     * @param <T> the type of the compressed block.
+     * @return the compressed block.
+     * @throws IOException if the block failed or the wait was interrupted.
+     */
+    private static <T> T getBlock(Future<T> block) throws IOException {
+        try {
+            return block.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("Block compression failed", e.getCause());
+        }
+    }
+
+    /**
+     * Reads bytes from a channel at a position until the array is full.
+     * @param channel the channel to read.
+     * @param bytes the array to fill.
+     * @param position the position in the channel of the first byte.
+     * @throws IOException if the channel cannot be read or ends first.
+     */
+    static void readFully(FileChannel channel, byte[] bytes, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1)
+                throw new EOFException("File ended while reading block");
+        }
+    }
+
+    /**
+     * Opens the target of a streaming compression. Large sources get a 1 MB output buffer, so
+     * the output is written in few system calls.
+     * @param target the file to write, replaced if it exists.
+     * @param sourceLength the length of the file being compressed.
+     * @return the bit stream writing to target.
+     * @throws IOException if target cannot be opened.
+     */
+    static PackedBitOutputStream openTarget(File target, long sourceLength) throws IOException {
+        int bufferSize = (sourceLength >= MappedInputStream.MAPPED_THRESHOLD) ? 1 << 20 : BUFFER_SIZE;
+        return new PackedBitOutputStream(new FileOutputStream(target), bufferSize);
+    }
+
+    /**
+     * Parses a size in bytes, with an optional K or M suffix.
+     * @param size the size, for example 65536, 64K or 4M.
+     * @return the size in bytes.
+     * @throws NumberFormatException if size is not a number.
+     */
+    static int parseSize(String size) {
+        String upper = size.toUpperCase();
+        if (upper.endsWith("K"))
+            return Integer.parseInt(upper.substring(0, upper.length() - 1)) << 10;
+        if (upper.endsWith("M"))
+            return Integer.parseInt(upper.substring(0, upper.length() - 1)) << 20;
+        return Integer.parseInt(upper);
     }
 
     public static String decodeBinaryString(String binaryString, HuffmanTree huffmanTree) {
@@ -151,7 +844,7 @@ public class CompressFile {
             char c = text.charAt(i);
             int index = (int) c;
 
-            if (index > 256){
+            if (index > 255){
                 continue;
             } else {
                 frequencies[index]++; // count the character in text
@@ -160,6 +853,125 @@ public class CompressFile {
         return frequencies;
     }
 
+    /**
+     * Counts how often each character up to 255 occurs in a text, reading it one BUFFER_SIZE chunk
+     * at a time, like calculateFrequencies(String) without holding the text in memory.
+     * @param text the text to count the characters of, read to its end
+     * @param checksum updated with the characters counted, encoded in the platform's character set
+     *                 as DecompressFile writes them back
+     * @return long array containing counts of each character (0 to 255)
+     * @throws IOException if the text cannot be read
+     */
+    public static long[] calculateFrequencies(Reader text, Checksum checksum) throws IOException {
+        long[] frequencies = new long[256];
+        char[] chunk = new char[BUFFER_SIZE];
+        char[] counted = new char[BUFFER_SIZE];
+        Writer encoded = new OutputStreamWriter(new CheckedOutputStream(OutputStream.nullOutputStream(), checksum));
+        int read;
+
+        while ((read = text.read(chunk)) != -1) {
+            int count = 0;
+            for (int i = 0; i < read; i++) {
+                int index = chunk[i];
+                if (index <= 255) {
+                    frequencies[index]++;
+                    counted[count++] = (char) index;
+                }
+            }
+            encoded.write(counted, 0, count);
+        }
+        encoded.flush();
+        return frequencies;
+    }
+
+    /**
+     * Counts how often each byte value occurs in a file, reading it one BUFFER_SIZE chunk at a time
+     * (memory-mapped for large files, see MappedInputStream) so that the file is never held in memory.
+     * @param source File to count the bytes of
+     * @return long array containing counts of each byte value (0 to 255)
+     * @throws IOException if the file cannot be read
+     */
+    public static long[] calculateFrequencies(File source) throws IOException {
+        return calculateFrequencies(source, null);
+    }
+
+    /**
+     * Counts how often each byte value occurs in a file like calculateFrequencies(File), and
+     * computes the checksum of the file in the same pass.
+     * @param source File to count the bytes of
+     * @param checksum updated with every byte of the file, or null
+     * @return long array containing counts of each byte value (0 to 255)
+     * @throws IOException if the file cannot be read
+     */
+    static long[] calculateFrequencies(File source, Checksum checksum) throws IOException {
+        // large files are mapped and counted on several threads (see ByteCounter)
+        if (source.length() >= MappedInputStream.MAPPED_THRESHOLD) {
+            try (FileChannel channel = new FileInputStream(source).getChannel()) {
+                return ByteCounter.count(channel, checksum);
+            }
+        }
+        long[] frequencies = new long[256];
+
+        try (InputStream input = new FileInputStream(source)) {
+            byte[] chunk = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = input.read(chunk)) != -1) {
+                ByteCounter.count(chunk, 0, read, frequencies);
+                if (checksum != null)
+                    checksum.update(chunk, 0, read);
+            }
+        }
+        return frequencies;
+    }
+
+    /**
+     * Counts how often each byte value occurs between the position and limit of a buffer,
+     * without moving its position. Heap buffers are read straight from their backing array,
+     * and large buffers are counted on several threads (see ByteCounter).
+     * @param data the bytes to count
+     * @return long array containing counts of each byte value (0 to 255)
+     */
+    public static long[] calculateFrequencies(ByteBuffer data) {
+        long[] frequencies = new long[256];
+        ByteCounter.countParallel(data, frequencies);
+        return frequencies;
+    }
+
+    /**
+     * Converts byte counts into weights for getHuffmanTree(). The tree stores its weights as ints,
+     * so when the total would overflow, every count is halved until it fits. A symbol that occurs
+     * keeps a weight of at least 1 so that it still gets a code.
+     * @param counts the count of each byte value
+     * @return the weight of each byte value, with the same symbols non-zero as in counts
+     */
+    static int[] toTreeWeights(long[] counts) {
+        long total = 0;
+        for (long count : counts)
+            total += count;
+
+        int shift = 0;
+        while ((total >>> shift) + counts.length > Integer.MAX_VALUE)
+            shift++;
+
+        int[] weights = new int[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0)
+                weights[i] = (int) Math.max(1, counts[i] >>> shift);
+        }
+        return weights;
+    }
+
+    /**
+     * Returns the canonical Huffman codes for a set of byte counts, with no code longer than
+     * maxLength bits. The code lengths are built by CodeLengths, with no HuffmanTree objects.
+     * @param counts the number of times each byte value occurs.
+     * @param maxLength the longest code allowed, or 0 for the longest code the decoder handles.
+     * @return the canonical code table, empty if every count is 0.
+     */
+    static CodeTable getCanonicalCode(long[] counts, int maxLength) {
+        return new CodeLengths().canonicalCode(counts, maxLength, new CodeTable());
+    }
+
     /**
      * Constructs a Huffman Tree using a heap.
      * <br> 1. Creates a forest of Huffman Trees with their weights (frequencies) and their data (characters).
@@ -172,6 +984,7 @@ public class CompressFile {
      * @author Arshmeet Kaur
      */
     public static HuffmanTree getHuffmanTree(int[] frequencies) {
+        HuffmanMetrics.CODE_TABLES_BUILT.increment();
 
         Heap<HuffmanTree> minheap = new Heap<>();
 
@@ -221,7 +1034,7 @@ public class CompressFile {
             char currentCharacter = messageInput.charAt(i);
             int asciiCode = currentCharacter;
 
-            if (asciiCode > 256) {
+            if (asciiCode > 255) {
                 continue;
             } else {
                 message.append(charKey[asciiCode]);
@@ -230,261 +1043,108 @@ public class CompressFile {
 
         return message.toString();
     }
-}
-
-/**
- * Generic implementation of a Heap using an array list.
- * @author Vincent Tran
- * @param <E> This will be used for the tree, to create a Heap of type HuffmanTree
- */
-class Heap<E extends Comparable<E>> implements Serializable {
-    private java.util.ArrayList<E> heap = new java.util.ArrayList<E>();
-
-    /** default heap constructor */
-    public Heap() {
-    }
-
-    /** create heap from an array of objects */
-    public Heap(E[] objects) {
-        for (int i = 0; i < objects.length; i++)
-            add(objects[i]);
-    }
-
-    /** add object to heap */
-    public void add(E object) {
-        heap.add(object); // add to the heap
-        int currentIndex = heap.size() - 1; // index of the last node
-
-        while (currentIndex > 0) {
-            int parentIndex = (currentIndex - 1) / 2;
-            if (heap.get(currentIndex).compareTo(heap.get(parentIndex)) > 0) { // if the current object is greater than its parent
-                // swap objects
-                E temp = heap.get(currentIndex);
-                heap.set(currentIndex, heap.get(parentIndex));
-                heap.set(parentIndex, temp);
-            }
-            else
-                break; // tree is a heap
-
-            currentIndex = parentIndex;
-        }
-    }
-
-    /** remove root from the heap and return the removed object */
-    public E remove() {
-        if (heap.size() == 0)
-            return null; // heap is empty
-
-        E removedObject = heap.get(0);
-
-        heap.set(0, heap.get(heap.size() - 1));
-        heap.remove(heap.size() - 1);
-
-        int currentIndex = 0;
-        while (currentIndex < heap.size()) {
-            int leftChildIndex = 2 * currentIndex + 1;
-            int rightChildIndex = 2 * currentIndex + 2;
-
-            // find maximum between two children
-            if (leftChildIndex >= heap.size())
-                break; // tree is a heap
-
-            int maxIndex = leftChildIndex; // set max to left child
-            if (rightChildIndex < heap.size()) {
-                if (heap.get(maxIndex).compareTo(heap.get(rightChildIndex)) < 0) { // if left child is less than the right
-                    maxIndex = rightChildIndex; // set max to right child
-                }
-            }
-
-            if (heap.get(currentIndex).compareTo(heap.get(maxIndex)) < 0) { // if current node is less than the max
-                // swap objects
-                E temp = heap.get(maxIndex);
-                heap.set(maxIndex, heap.get(currentIndex));
-                heap.set(currentIndex, temp);
-                currentIndex = maxIndex;
-            }
-            else
-                break; // tree is a heap
-        }
-
-        return removedObject;
-    }
-
-    /** return number of nodes in the tree */
-    public int getSize() {
-        return heap.size();
-    }
-}
-
-/**
- *
- * This class creates a Huffman Tree for encoding/decoding characters.
- * <br> It contains an inner class HuffmanNode to represent each "node" or character in the tree.
- *
- * <p>
- *     This class contains methods that allow users to compare Huffman trees based on weight,
- *     and get the array mapping characters to Huffman codes.
- * </p>
- *
- * @author Arshmeet Kaur
- */
-class HuffmanTree implements Comparable<HuffmanTree>, Serializable {
-
-    // for easy serialization.
-    private static final long serialVersionUID = 2939177167726658626L;
-
-    HuffmanNode root;
-    private String[] encodings;
 
     /**
-     * Constructs a huffman tree with two children. Sets left and right child and weight
-     * which is the combined weight of the child trees.
-     * @param h1 left child.
-     * @param h2 right child.
+     * Writes the huffman code of each character in the given string straight to a bit stream,
+     * without building the encoded message as a string first.
+     * <br> characters outside the code table are skipped, as in writeMessage(String[], String).
+     *
+     * @param codeTable the code and code length for each character
+     * @param messageInput the ASCII string that we want to encode
+     * @param out the stream the encoded bits are written to
+     * @throws IOException if the stream cannot be written
      */
-    public HuffmanTree(HuffmanTree h1, HuffmanTree h2) {
-        root = new HuffmanNode();
-        root.left = h1.root;
-        root.right = h2.root;
-        root.weight = h1.root.weight + h2.root.weight;
-    }
+    public static void writeMessage(CodeTable codeTable, String messageInput, PackedBitOutputStream out)
+            throws IOException {
+        long[] codes = codeTable.codes;
+        int[] lengths = codeTable.lengths;
 
-    /**
-     * Constructs a huffman tree which is a leaf. Sets it weight and the "data", which is
-     * the character that it holds.
-     * @param weight
-     * @param data
-     */
-    public HuffmanTree(int weight, char data) {
-        this.root = new HuffmanNode(weight, data);
-    }
+        for (int i = 0; i < messageInput.length(); i++) {
+            int asciiCode = messageInput.charAt(i);
 
-    /**
-     * compareTo() method is implemented to be in reverse order. In the Huffman Algorithm, we use a MinHeap.
-     * However, here, we have used a max heap, so to easily convert to a min heap, we reverse the comparing order.
-     * @param h the object to be compared.
-     * @return -1 if the current weight is larger, 0 if weight is equal, 1 if current weight is lesser.
-     */
-    @Override
-    public int compareTo(HuffmanTree h) {
-        boolean hDifference = this.root.weight > h.root.weight;
-        if (hDifference)
-            return -1;
-        else if (this.root.weight == h.root.weight)
-            return 0;
-        else
-            return 1;
+            if (asciiCode < lengths.length)
+                out.writeBits(codes[asciiCode], lengths[asciiCode]);
+        }
     }
 
     /**
-     * Returns the key of ASCII characters to Huffman encoding string.
-     * @param root is the "root" of the HuffmanNode passed into the HuffmanTree.
-     * @return an array mapping the ASCII character (index of array) to the string of its huffman code.
+     * Writes the huffman code of each character read from a text, reading BUFFER_SIZE characters
+     * at a time. Characters outside the code table are skipped, as in writeMessage(CodeTable, String, ...).
+     *
+     * @param codeTable the code and code length for each character
+     * @param text the text to encode, read to its end
+     * @param out the stream the encoded bits are written to
+     * @throws IOException if the text cannot be read or the stream cannot be written
      */
-    public String[] getCode(HuffmanTree.HuffmanNode root) {
-        // if the tree is empty...
-        if (root == null)
-            return null;
-        // the string array of codes is 256, one for each ASCII character
-        String[] encoding = new String[256];
-        // fill the array with the code for each character
-        assignCode(root, encoding);
-        this.encodings = encoding;
-        return encoding;
+    public static void writeMessage(CodeTable codeTable, Reader text, PackedBitOutputStream out)
+            throws IOException {
+        long[] codes = codeTable.codes;
+        int[] lengths = codeTable.lengths;
+        char[] chunk = new char[BUFFER_SIZE];
+        int read;
+
+        while ((read = text.read(chunk)) != -1) {
+            for (int i = 0; i < read; i++) {
+                int asciiCode = chunk[i];
+                if (asciiCode < lengths.length)
+                    out.writeBits(codes[asciiCode], lengths[asciiCode]);
+            }
+        }
     }
 
     /**
-     * Helper method of getCode() fills the encoding array passed in.
-     * @param root is the rood of the node
-     * @param encoding is the empty array which maps ASCII character to its huffman code.
+     * Writes the huffman code of each byte between the position and limit of a buffer,
+     * without moving its position.
+     *
+     * @param codeTable the code and code length for each byte value
+     * @param data the bytes to encode
+     * @param out the stream the encoded bits are written to
+     * @throws IOException if the stream fails
      */
-    public static void assignCode(HuffmanTree.HuffmanNode root, String[] encoding) {
-        if (root.left != null) {
-            // add zeros going leftwards
-            root.left.code = root.code + "0";
-            assignCode(root.left, encoding);
-
-            // add ones going rightwards
-            root.right.code = root.code + "1";
-            assignCode(root.right, encoding);
+    public static void writeMessage(CodeTable codeTable, ByteBuffer data, PackedBitOutputStream out)
+            throws IOException {
+        long[] codes = codeTable.codes;
+        int[] lengths = codeTable.lengths;
+
+        if (data.hasArray()) {
+            byte[] array = data.array();
+            int end = data.arrayOffset() + data.limit();
+            for (int i = data.arrayOffset() + data.position(); i < end; i++) {
+                int symbol = array[i] & 0xFF;
+                out.writeBits(codes[symbol], lengths[symbol]);
+            }
         } else {
-            // when you hit the leaf (containing characters), save the code that has been built
-            // in the recursive calls
-            encoding[(int) root.data] = root.code;
+            for (int i = data.position(); i < data.limit(); i++) {
+                int symbol = data.get(i) & 0xFF;
+                out.writeBits(codes[symbol], lengths[symbol]);
+            }
         }
     }
 
     /**
-     * Need Inner Class for the HuffmanNode class
-     * Each HuffmanNode has a character, it's weight (frequency),
-     * a left and right child, and a string code which represents its Huffman code.
-     * @author Arshmeet Kaur */
-    class HuffmanNode implements Serializable {
-        /**
-         * data holds the character at each node.
-         * weight holds the weight of the node.
-         * left and right and the children of the node
-         * code is path of 0s or 1s that lead to the node.
-         */
-        char data;
-        int weight;
-        HuffmanNode left; HuffmanNode right;
-        String code = "";
-
-        /** default constructor. */
-        public HuffmanNode(){}
-
-        /** value constructor gives each node character and weight */
-        public HuffmanNode(int weight, char data) {
-            this.weight = weight;
-            this.data = data;
-        }
-    }
-}
-
-class BitOutputStream extends FileOutputStream implements Serializable {
-
-    private int currentByte = 0;
-    private int numBits = 0;
-    boolean append;
-
-    public BitOutputStream(File f, boolean append) throws IOException {
-        super(f, append);
-        this.append = append;
-    }
-
-    public void writeInt(int count) throws IOException {
-        // extract each byte of the integer and write one by one
-        super.write((count >> 24) & 0xFF); //shift first byte to lsb
-        super.write((count >> 16) & 0xFF); // shift second byte to lsb
-        super.write((count >> 8) & 0xFF); // shift third byte to lsb
-        super.write(count & 0xFF); // shift fourth byte to lsb
-    }
-
-    public void writeBits(String bitString) throws IOException {
-        for (char b : bitString.toCharArray()) {
-
-            if (b == '0' || b == '1') {
-                numBits++;
-                int currentBit =  ( ((int)b)- 48);
-                currentByte = (currentByte << 1) | currentBit;
-                if (numBits == 8) {
-                    super.write(currentByte);
-                    numBits = 0;
-                    currentByte = 0;
-                }
-            } else {
-                throw new InputMismatchException("Input can only be '0' or '1'");
+     * Writes the huffman code of each byte read from a stream, reading BUFFER_SIZE bytes at a time.
+     *
+     * @param codeTable the code and code length for each byte value
+     * @param input the stream of bytes to encode, read to its end
+     * @param out the stream the encoded bits are written to
+     * @return the number of bytes read
+     * @throws IOException if a stream fails
+     */
+    public static long writeMessage(CodeTable codeTable, InputStream input, PackedBitOutputStream out)
+            throws IOException {
+        long[] codes = codeTable.codes;
+        int[] lengths = codeTable.lengths;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        int read;
+
+        while ((read = input.read(buffer)) != -1) {
+            for (int i = 0; i < read; i++) {
+                int symbol = buffer[i] & 0xFF;
+                out.writeBits(codes[symbol], lengths[symbol]);
             }
-
-        }
-    }
-
-    public void close() throws IOException {
-        if (numBits > 0) {
-            currentByte <<= (8 - numBits);
-            super.write(currentByte);
+            total += read;
         }
-        super.close();
+        return total;
     }
 }
@@ -0,0 +1,315 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * Layout of the compact compressed file formats written by CompressFile -canonical and -blocks.
+ * <br> 1. The magic bytes 'H' 'U' 'F' followed by a format byte and a version byte (VERSION).
+ * <br> 2. The length of the original file in bytes, as an 8-byte integer, and the CRC-32C
+ * checksum of the original bytes (4 bytes), which the decoder compares with what it decoded.
+ * <br> 3. The number of characters with a code, minus one, as a byte (absent for an empty file).
+ * <br> 4. For each of those characters in ascending order: the character, then its code length.
+ * <br> 5. The canonical Huffman codes of the original file, padded with zeros to a whole byte.
+ * <p>
+ *     Only code lengths are stored: the decoder rebuilds the codes with CodeTable.canonical().
+ *     In the block format, 3. to 5. are replaced by the block size as a 4-byte integer and
+ *     the blocks one after another (see BlockCodec), followed by the block index: for each
+ *     block its offset in the file (8 bytes), compressed length and original length (4 bytes
+ *     each). The file ends with the number of blocks (4 bytes) and the offset of the index
+ *     (8 bytes).
+ * </p>
+ * <p>
+ *     In the dictionary format, 3. and 4. are replaced by the 4-byte ID of the trained code
+ *     table (see StaticTable) that both sides already have.
+ * </p>
+ * <p>
+ *     The adaptive format has no original length, since it is written before the input ends;
+ *     its layout is described in AdaptiveCodec.
+ * </p>
+ * <p>
+ *     In the context format, 3. and 4. are replaced by the context map and the code lengths
+ *     of each of its tables, described in ContextModel.
+ * </p>
+ * <p>
+ *     CompressFile -canonical falls back to the stored format, where 3. to 5. are replaced by
+ *     the original bytes, or the runs format, where they are replaced by the runs described in
+ *     FallbackCodec, when Huffman codes would not pay off. Blocks fall back the same way.
+ * </p>
+ * <p>
+ *     In the tree formats written by CompressFile -legacy (TREE, the file's text) and -stream
+ *     (TREE_BYTES, the file's exact bytes), 3. and 4. are replaced by
+ *     the length of the Java-serialized HuffmanTree (4 bytes), the serialized tree and the length
+ *     of the codes in bits (8 bytes). In TREE, 2. holds the number of characters and the checksum
+ *     of the text as DecompressFile writes it back, in the platform's character set.
+ *     The tree has a length of its own, so it is deserialized from
+ *     exactly its own bytes and never reads into the codes. Files from before the header existed
+ *     hold only the serialized tree, the length in bits and the codes. A Java-serialized
+ *     HuffmanTree always starts with 0xACED, so they cannot be confused with the other formats.
+ * </p>
+ */
+class CompressedFormat {
+
+    static final int MAGIC = ('H' << 16) | ('U' << 8) | 'F';
+
+    /** format byte of a file in the original layout, a serialized HuffmanTree (no magic). */
+    static final int LEGACY = 0;
+    /** format byte of a file with canonical codes and a code length header. */
+    static final int CANONICAL = 1;
+    /** format byte of a file made of independently compressed blocks. */
+    static final int BLOCKS = 2;
+    /** format byte of a file compressed with a pre-trained code table. */
+    static final int DICTIONARY = 3;
+    /** format byte of a stream compressed in one pass with adaptive codes (see AdaptiveCodec). */
+    static final int ADAPTIVE = 4;
+    /** format byte of a file with order-1 codes, a table per preceding byte (see ContextModel). */
+    static final int CONTEXT = 5;
+
+    /** format byte of a file with a Java-serialized HuffmanTree behind the header (-legacy, -stream). */
+    static final int TREE = 6;
+    /** format byte of a file stored as it is, which Huffman codes would not have made smaller. */
+    static final int STORED = 7;
+    /** format byte of a file stored as runs of one byte value (see FallbackCodec). */
+    static final int RUNS = 8;
+    /**
+     * format byte of the tree format holding the file's exact bytes (-stream) rather than its text;
+     * it is decoded to bytes instead of characters in the platform's character set.
+     */
+    static final int TREE_BYTES = 9;
+
+    /** version byte written by writeHeader(), the only version read. */
+    static final int VERSION = 2;
+    /** number of bytes written by writeHeader(). */
+    static final int HEADER_SIZE = 17;
+    /** positions of the original length and of the checksum in the header. */
+    static final int LENGTH_OFFSET = 5;
+    static final int CHECKSUM_OFFSET = 13;
+    /** number of bytes of each block in the block index, and of the trailer after the index. */
+    static final int INDEX_ENTRY_SIZE = 16;
+    static final int TRAILER_SIZE = 12;
+
+    /** the fields of a header, as read by readHeader(). */
+    static class Header {
+        final int format;
+        final long originalLength;
+        final int checksum;
+
+        Header(int format, long originalLength, int checksum) {
+            this.format = format;
+            this.originalLength = originalLength;
+            this.checksum = checksum;
+        }
+
+        /**
+         * Compares the checksum of the decoded bytes with the one in the header.
+         * @param decoded the checksum of all the bytes decoded.
+         * @throws IOException if they differ.
+         */
+        void verify(Checksum decoded) throws IOException {
+            if ((int) decoded.getValue() != checksum)
+                throw new IOException(String.format("Corrupt file: checksum %08x of the decoded bytes, expected %08x",
+                        (int) decoded.getValue(), checksum));
+        }
+    }
+
+    /**
+     * Writes the magic bytes, format byte, version, original length and checksum.
+     * @param out the stream to write to.
+     * @param format the format byte.
+     * @param originalLength the length of the original file in bytes.
+     * @param checksum the CRC-32C of the original bytes, or 0 to be filled in by writeChecksum().
+     * @throws IOException if the stream fails.
+     */
+    static void writeHeader(PackedBitOutputStream out, int format, long originalLength, int checksum)
+            throws IOException {
+        out.writeBits(MAGIC, 24);
+        out.writeBits(format, 8);
+        out.writeBits(VERSION, 8);
+        out.writeBits(originalLength, 64);
+        out.writeInt(checksum);
+    }
+
+    /**
+     * Fills in the checksum of a file whose header was written before its original bytes were
+     * all read, such as a file compressed in one pass.
+     * @param target the compressed file, closed.
+     * @param checksum the CRC-32C of the original bytes.
+     * @throws IOException if the file cannot be written.
+     */
+    static void writeChecksum(File target, int checksum) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(target, "rw")) {
+            file.seek(CHECKSUM_OFFSET);
+            file.writeInt(checksum);
+        }
+    }
+
+    /**
+     * Fills in the original length and checksum of a file whose header was written before its
+     * original bytes were all read, for a source whose length was not known for certain.
+     * @param target the compressed file, closed.
+     * @param originalLength the number of original bytes actually read.
+     * @param checksum the CRC-32C of the original bytes.
+     * @throws IOException if the file cannot be written.
+     */
+    static void writeLengthAndChecksum(File target, long originalLength, int checksum) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(target, "rw")) {
+            file.seek(LENGTH_OFFSET);
+            file.writeLong(originalLength);
+            file.writeInt(checksum);
+        }
+    }
+
+    /**
+     * Returns a new checksum of the kind stored in the header.
+     * @return an empty CRC-32C.
+     */
+    static Checksum newChecksum() {
+        return new CRC32C();
+    }
+
+    /**
+     * Reads the format of a compressed file from its first four bytes.
+     * @param file the compressed file.
+     * @return the format byte, or LEGACY if the file does not start with the magic bytes.
+     * @throws IOException if the file cannot be read.
+     */
+    static int readFormat(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] start = new byte[4];
+            if (in.readNBytes(start, 0, 4) < 4)
+                return LEGACY;
+            return readFormat(ByteBuffer.wrap(start));
+        }
+    }
+
+    /**
+     * Reads the format of compressed bytes from their first four bytes, without moving the position.
+     * @param compressed the compressed bytes.
+     * @return the format byte, or LEGACY if the bytes do not start with the magic bytes.
+     */
+    static int readFormat(ByteBuffer compressed) {
+        if (compressed.remaining() < 4)
+            return LEGACY;
+        int start = compressed.getInt(compressed.position());
+        return ((start >>> 8) == MAGIC) ? start & 0xFF : LEGACY;
+    }
+
+    /**
+     * Reads the header written by writeHeader() and checks its magic bytes, format and version.
+     * @param in the stream positioned at the start of the file.
+     * @param format the expected format byte.
+     * @return the header.
+     * @throws IOException if the header is missing, truncated, of another format or of another version.
+     */
+    static Header readHeader(PackedBitInputStream in, int format) throws IOException {
+        try {
+            if (in.readBits(24) != MAGIC)
+                throw new IOException("Not a compressed file");
+            int actual = (int) in.readBits(8);
+            if (actual != format)
+                throw new IOException("Unsupported format " + actual);
+            int version = (int) in.readBits(8);
+            if (version != VERSION)
+                throw new IOException("Unsupported version " + version + " of the format, this program reads version "
+                        + VERSION);
+            long originalLength = (in.readBits(32) << 32) | in.readBits(32);
+            int checksum = in.readInt();
+            if (originalLength < 0)
+                throw new IOException("Corrupt header: negative length");
+            return new Header(format, originalLength, checksum);
+        } catch (EOFException e) {
+            throw new EOFException("Compressed file ends in its header");
+        }
+    }
+
+    /**
+     * Reads the header at the position of a buffer, without moving the position.
+     * @param compressed the compressed bytes.
+     * @param format the expected format byte.
+     * @return the header.
+     * @throws IOException if the header is missing, truncated, of another format or of another version.
+     */
+    static Header readHeader(ByteBuffer compressed, int format) throws IOException {
+        ByteBuffer header = compressed.duplicate();
+        header.limit(Math.min(header.limit(), header.position() + HEADER_SIZE));
+        return readHeader(new PackedBitInputStream(header), format);
+    }
+
+    /**
+     * Checks before decoding that the codes of a message can be as long as the file holds, so
+     * that a truncated file fails at once instead of after writing part of the message.
+     * @param available the number of bytes after the code table.
+     * @param originalLength the number of bytes the codes decode to.
+     * @param lengths the code length of each character.
+     * @throws EOFException if the codes would need more bytes than are available.
+     */
+    static void checkCodesLength(long available, long originalLength, int[] lengths) throws EOFException {
+        int shortest = Integer.MAX_VALUE;
+        for (int length : lengths) {
+            if (length > 0)
+                shortest = Math.min(shortest, length);
+        }
+        if (shortest != Integer.MAX_VALUE && originalLength > 0
+                && (available * 8 + shortest - 1) / shortest < originalLength)
+            throw new EOFException("Compressed file is truncated: " + available + " bytes cannot hold the codes of "
+                    + originalLength + " bytes");
+    }
+
+    /**
+     * Writes the code length of every character that has a code.
+     * @param out the stream to write to.
+     * @param lengths the code length of each character, at least one of them non-zero.
+     * @return the number of bytes written.
+     * @throws IOException if the stream fails.
+     */
+    static int writeCodeLengths(PackedBitOutputStream out, int[] lengths) throws IOException {
+        int count = 0;
+        for (int length : lengths) {
+            if (length > 0)
+                count++;
+        }
+        out.write(count - 1);
+        for (int symbol = 0; symbol < lengths.length; symbol++) {
+            if (lengths[symbol] > 0) {
+                out.write(symbol);
+                out.write(lengths[symbol]);
+            }
+        }
+        return 1 + 2 * count;
+    }
+
+    /**
+     * Reads the code lengths written by writeCodeLengths() and checks that they form a prefix code.
+     * @param in the stream positioned at the code lengths.
+     * @return the code length of each of the 256 characters.
+     * @throws IOException if the lengths are truncated or cannot be a Huffman code.
+     */
+    static int[] readCodeLengths(PackedBitInputStream in) throws IOException {
+        int[] lengths = new int[256];
+        int count = readByte(in) + 1;
+        double kraftSum = 0;
+        for (int i = 0; i < count; i++) {
+            int symbol = readByte(in);
+            int length = readByte(in);
+            if (length == 0 || length > DecodeTable.MAX_CODE_LENGTH || lengths[symbol] != 0)
+                throw new IOException("Corrupt header: bad code length for character " + symbol);
+            lengths[symbol] = length;
+            kraftSum += Math.scalb(1.0, -length);
+        }
+        if (kraftSum > 1.0)
+            throw new IOException("Corrupt header: code lengths do not form a prefix code");
+        return lengths;
+    }
+
+    private static int readByte(PackedBitInputStream in) throws IOException {
+        int b = in.read();
+        if (b == -1)
+            throw new EOFException("Compressed file ends in its code lengths");
+        return b;
+    }
+}
@@ -0,0 +1,385 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Order-1 code tables for the context format (CompressedFormat.CONTEXT): each byte is coded with
+ * a table chosen by the byte before it, its context. The first byte's context is 0.
+ * <br> 1. Counts how often each byte follows each context.
+ * <br> 2. Merges contexts whose next-byte distributions are alike into one table, as long as the
+ * header bytes a merge saves outweigh the extra code bits it costs. The costs are estimated
+ * from the entropy of the counts, at least 1 bit per byte as with any Huffman code, so the
+ * merging needs no Huffman codes.
+ * <br> 3. Builds canonical codes for each merged table.
+ * <br> 4. paysOff() compares the exact size of the model and codes with what the canonical
+ * format would write instead, so callers can fall back to it when order-1 codes do not pay.
+ * <p>
+ *     Header layout: a 32-byte bitmap of the contexts that occur, the number of tables minus
+ *     one (a byte), the table of each occurring context in ascending order (a byte each), then
+ *     the code lengths of each table as written by CompressedFormat.writeCodeLengths().
+ * </p>
+ */
+class ContextModel {
+
+    /** the table of each context, or -1 for contexts that do not occur. */
+    final int[] tableOf;
+    /** the code table of each merged table. */
+    final CodeTable[] tables;
+
+    /** the code table of every context, null for contexts that do not occur. */
+    private CodeTable[] encoders;
+    /** the decode table of every context, null for contexts that do not occur. */
+    private DecodeTable[] decoders;
+
+    private ContextModel(int[] tableOf, CodeTable[] tables) {
+        this.tableOf = tableOf;
+        this.tables = tables;
+    }
+
+    /**
+     * Counts how often each byte follows each context.
+     * @param counts the counts to add to, [context][byte].
+     * @param data the array holding the bytes.
+     * @param offset the index of the first byte.
+     * @param length the number of bytes.
+     * @param context the byte before the first one, 0 at the start of the data.
+     * @return the last byte counted, the context of the byte after them.
+     */
+    static int count(long[][] counts, byte[] data, int offset, int length, int context) {
+        for (int i = offset; i < offset + length; i++) {
+            int symbol = data[i] & 0xFF;
+            counts[context][symbol]++;
+            context = symbol;
+        }
+        return context;
+    }
+
+    /**
+     * Builds the merged tables for the counted data.
+     * @param counts how often each byte follows each context, [context][byte]; at least one is non-zero.
+     * @param maxLength the longest code allowed, or 0 for no limit.
+     * @return the model.
+     */
+    static ContextModel build(long[][] counts, int maxLength) {
+        int[] group = mergeContexts(counts);
+
+        // number the surviving groups in context order
+        int[] tableOf = new int[256];
+        int[] tableOfGroup = new int[256];
+        Arrays.fill(tableOf, -1);
+        Arrays.fill(tableOfGroup, -1);
+        int tableCount = 0;
+        for (int context = 0; context < 256; context++) {
+            if (group[context] < 0)
+                continue;
+            if (tableOfGroup[group[context]] < 0)
+                tableOfGroup[group[context]] = tableCount++;
+            tableOf[context] = tableOfGroup[group[context]];
+        }
+
+        long[][] tableCounts = new long[tableCount][256];
+        for (int context = 0; context < 256; context++) {
+            if (tableOf[context] >= 0) {
+                for (int symbol = 0; symbol < 256; symbol++)
+                    tableCounts[tableOf[context]][symbol] += counts[context][symbol];
+            }
+        }
+        CodeLengths codeLengths = new CodeLengths();
+        CodeTable[] tables = new CodeTable[tableCount];
+        for (int table = 0; table < tableCount; table++)
+            tables[table] = codeLengths.canonicalCode(tableCounts[table], maxLength, new CodeTable());
+        return new ContextModel(tableOf, tables);
+    }
+
+    /**
+     * Greedily merges the contexts: repeatedly merges the two groups whose merge saves the most
+     * estimated bits, until no merge saves any.
+     * @return for each context the context whose group it joined (itself if it was not merged),
+     * or -1 if the context does not occur.
+     */
+    private static int[] mergeContexts(long[][] counts) {
+        int[] group = new int[256];
+        long[][] groupCounts = new long[256][];
+        double[] cost = new double[256];
+        int[] live = new int[256];
+        int liveCount = 0;
+        for (int context = 0; context < 256; context++) {
+            group[context] = -1;
+            for (long count : counts[context]) {
+                if (count > 0) {
+                    group[context] = context;
+                    groupCounts[context] = counts[context].clone();
+                    cost[context] = cost(groupCounts[context], null);
+                    live[liveCount++] = context;
+                    break;
+                }
+            }
+        }
+
+        // saving[a][b], for a < b, is the number of bits saved by merging groups a and b
+        double[][] saving = new double[256][];
+        for (int i = 0; i < liveCount; i++) {
+            saving[live[i]] = new double[256];
+            for (int j = i + 1; j < liveCount; j++) {
+                int a = live[i], b = live[j];
+                saving[a][b] = cost[a] + cost[b] - cost(groupCounts[a], groupCounts[b]);
+            }
+        }
+
+        while (liveCount > 1) {
+            int bestA = -1, bestB = -1;
+            double best = 0;
+            for (int i = 0; i < liveCount; i++) {
+                for (int j = i + 1; j < liveCount; j++) {
+                    if (saving[live[i]][live[j]] > best) {
+                        best = saving[live[i]][live[j]];
+                        bestA = live[i];
+                        bestB = live[j];
+                    }
+                }
+            }
+            if (bestA < 0)
+                break;
+
+            // merge bestB into bestA
+            for (int symbol = 0; symbol < 256; symbol++)
+                groupCounts[bestA][symbol] += groupCounts[bestB][symbol];
+            cost[bestA] = cost(groupCounts[bestA], null);
+            for (int context = 0; context < 256; context++) {
+                if (group[context] == bestB)
+                    group[context] = bestA;
+            }
+            int removed = 0;
+            for (int i = 0; i < liveCount; i++) {
+                if (live[i] != bestB)
+                    live[removed++] = live[i];
+            }
+            liveCount = removed;
+            for (int i = 0; i < liveCount; i++) {
+                int other = live[i];
+                if (other == bestA)
+                    continue;
+                int a = Math.min(bestA, other), b = Math.max(bestA, other);
+                saving[a][b] = cost[a] + cost[b] - cost(groupCounts[a], groupCounts[b]);
+            }
+        }
+        return group;
+    }
+
+    /**
+     * Estimates the bits one table costs: its code lengths in the header and the entropy of
+     * the bytes it codes.
+     * @param counts the counts of the table.
+     * @param more counts to add to them, or null.
+     * @return the estimated number of bits.
+     */
+    private static double cost(long[] counts, long[] more) {
+        long total = 0;
+        int used = 0;
+        double sum = 0;
+        for (int symbol = 0; symbol < 256; symbol++) {
+            long count = counts[symbol] + ((more != null) ? more[symbol] : 0);
+            if (count > 0) {
+                total += count;
+                used++;
+                sum += nLogN(count);
+            }
+        }
+        // a Huffman code is at least 1 bit long, even for the only byte a table codes
+        double entropyBits = Math.max(total, (nLogN(total) - sum) / Math.log(2));
+        // writeCodeLengths() writes a count byte and two bytes per symbol
+        return entropyBits + 8 * (1 + 2 * used);
+    }
+
+    /** n ln n for small n, which most counts in a table are. */
+    private static final double[] N_LOG_N = new double[4096];
+    static {
+        for (int n = 1; n < N_LOG_N.length; n++)
+            N_LOG_N[n] = n * Math.log(n);
+    }
+
+    private static double nLogN(long n) {
+        return (n < N_LOG_N.length) ? N_LOG_N[(int) n] : n * Math.log(n);
+    }
+
+    /**
+     * Adds up the counts of every context, the order-0 counts of the data.
+     * @param counts how often each byte follows each context, [context][byte].
+     * @return the count of each byte value.
+     */
+    static long[] order0(long[][] counts) {
+        long[] total = new long[256];
+        for (long[] row : counts) {
+            for (int symbol = 0; symbol < 256; symbol++)
+                total[symbol] += row[symbol];
+        }
+        return total;
+    }
+
+    /**
+     * Returns the number of bytes write() and encode() write for the counted data.
+     * @param counts how often each byte follows each context, [context][byte], as the model was built from.
+     * @return the size of the model and of the codes, padded to a whole byte.
+     */
+    long encodedSize(long[][] counts) {
+        // the bitmap of contexts, the number of tables and a table for each context
+        long size = 32 + 1;
+        long bits = 0;
+        for (int context = 0; context < 256; context++) {
+            if (tableOf[context] < 0)
+                continue;
+            size++;
+            int[] lengths = tables[tableOf[context]].lengths;
+            for (int symbol = 0; symbol < 256; symbol++)
+                bits += counts[context][symbol] * lengths[symbol];
+        }
+        // writeCodeLengths() writes a count byte and two bytes per symbol
+        for (CodeTable table : tables) {
+            size++;
+            for (int length : table.lengths) {
+                if (length > 0)
+                    size += 2;
+            }
+        }
+        return size + (bits + 7) / 8;
+    }
+
+    /**
+     * Returns true if order-1 codes are smaller than whatever the canonical format would write
+     * instead: order-0 codes, runs or the bytes stored (see FallbackCodec).
+     * @param counts how often each byte follows each context, [context][byte], as the model was built from.
+     * @param order0 the order-0 counts of the same data, see order0().
+     * @param maxLength the longest code allowed, or 0 for no limit.
+     * @param runBytes the size of the data as runs, or -1 if they were not counted.
+     * @return true if the data is best coded with this model.
+     */
+    boolean paysOff(long[][] counts, long[] order0, int maxLength, long runBytes) {
+        long length = 0;
+        for (long count : order0)
+            length += count;
+        long size = encodedSize(counts);
+        // order-1 codes, like order-0 ones, must save 1/MIN_SAVING over storing the data
+        if (size + length / FallbackCodec.MIN_SAVING >= length || (runBytes >= 0 && runBytes <= size))
+            return false;
+        if (!FallbackCodec.mayPayOff(order0, length))
+            return true;
+        CodeTable codeTable = new CodeLengths().canonicalCode(order0, maxLength, new CodeTable());
+        return size < FallbackCodec.tableSize(order0) + (codeTable.encodedLength(order0) + 7) / 8;
+    }
+
+    /**
+     * Writes the context map and the code lengths of every table.
+     * @param out the stream to write to.
+     * @throws IOException if the stream fails.
+     */
+    void write(PackedBitOutputStream out) throws IOException {
+        for (int context = 0; context < 256; context += 8) {
+            int bits = 0;
+            for (int i = 0; i < 8; i++)
+                bits = (bits << 1) | ((tableOf[context + i] >= 0) ? 1 : 0);
+            out.write(bits);
+        }
+        out.write(tables.length - 1);
+        for (int table : tableOf) {
+            if (table >= 0)
+                out.write(table);
+        }
+        for (CodeTable table : tables)
+            CompressedFormat.writeCodeLengths(out, table.lengths);
+    }
+
+    /**
+     * Reads a model written by write().
+     * @param in the stream positioned at the model.
+     * @return the model.
+     * @throws IOException if the model is truncated or corrupt.
+     */
+    static ContextModel read(PackedBitInputStream in) throws IOException {
+        int[] tableOf = new int[256];
+        for (int context = 0; context < 256; context += 8) {
+            int bits = readByte(in);
+            for (int i = 0; i < 8; i++)
+                tableOf[context + i] = ((bits >>> (7 - i)) & 1) - 1;
+        }
+        int tableCount = readByte(in) + 1;
+        for (int context = 0; context < 256; context++) {
+            if (tableOf[context] == 0) {
+                tableOf[context] = readByte(in);
+                if (tableOf[context] >= tableCount)
+                    throw new IOException("Corrupt header: context " + context + " uses table " + tableOf[context]);
+            }
+        }
+        CodeTable[] tables = new CodeTable[tableCount];
+        for (int table = 0; table < tableCount; table++)
+            tables[table] = CodeTable.canonical(CompressedFormat.readCodeLengths(in));
+        return new ContextModel(tableOf, tables);
+    }
+
+    private static int readByte(PackedBitInputStream in) throws IOException {
+        int b = in.read();
+        if (b == -1)
+            throw new EOFException("End of input reached");
+        return b;
+    }
+
+    /**
+     * Encodes bytes, each with the table of the byte before it.
+     * @param data the array holding the bytes.
+     * @param offset the index of the first byte.
+     * @param length the number of bytes.
+     * @param context the byte before the first one, 0 at the start of the data.
+     * @param out the stream the codes are written to.
+     * @return the last byte encoded, the context of the byte after them.
+     * @throws IOException if the stream fails.
+     */
+    int encode(byte[] data, int offset, int length, int context, PackedBitOutputStream out) throws IOException {
+        if (encoders == null) {
+            encoders = new CodeTable[256];
+            for (int c = 0; c < 256; c++)
+                encoders[c] = (tableOf[c] >= 0) ? tables[tableOf[c]] : null;
+        }
+        CodeTable[] encoders = this.encoders;
+        for (int i = offset; i < offset + length; i++) {
+            int symbol = data[i] & 0xFF;
+            CodeTable table = encoders[context];
+            out.writeBits(table.codes[symbol], table.lengths[symbol]);
+            context = symbol;
+        }
+        return context;
+    }
+
+    /**
+     * Decodes bytes written by encode().
+     * @param in the stream positioned at the codes.
+     * @param data the array the bytes are stored in.
+     * @param offset the index of the first byte.
+     * @param length the number of bytes to decode.
+     * @param context the byte before the first one, 0 at the start of the data.
+     * @return the last byte decoded, the context of the byte after them.
+     * @throws IOException if the codes are corrupt or truncated.
+     */
+    int decode(PackedBitInputStream in, byte[] data, int offset, int length, int context) throws IOException {
+        if (decoders == null)
+            buildDecoders();
+        DecodeTable[] decoders = this.decoders;
+        for (int i = offset; i < offset + length; i++) {
+            DecodeTable table = decoders[context];
+            if (table == null)
+                throw new IOException("Corrupt data: byte " + context + " never occurs before another byte");
+            context = table.decode(in);
+            data[i] = (byte) context;
+        }
+        return context;
+    }
+
+    private void buildDecoders() {
+        DecodeTable[] byTable = new DecodeTable[tables.length];
+        for (int table = 0; table < tables.length; table++)
+            byTable[table] = new DecodeTable(tables[table]);
+        decoders = new DecodeTable[256];
+        for (int context = 0; context < 256; context++) {
+            if (tableOf[context] >= 0)
+                decoders[context] = byTable[tableOf[context]];
+        }
+    }
+}
@@ -0,0 +1,146 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Lookup table that decodes a Huffman code in one indexed load instead of walking the tree
+ * one bit at a time.
+ * <br> 1. The next PRIMARY_BITS bits of the message index into the table.
+ * <br> 2. For a code of at most PRIMARY_BITS bits, every index that starts with the code holds
+ * the character and the code length, so one load resolves the character.
+ * <br> 3. Longer codes are marked in the table and resolved by a slow path that looks the
+ * code up among the codes of each longer length.
+ */
+class DecodeTable {
+
+    /** number of bits resolved by the primary table. */
+    static final int PRIMARY_BITS = 11;
+
+    /** longest code the decoder handles, the most bits PackedBitInputStream can peek at once. */
+    static final int MAX_CODE_LENGTH = 56;
+
+    private static final int LONG_CODE = -1;
+
+    /** index bits of this table, at most PRIMARY_BITS. */
+    final int tableBits;
+    /** each entry is (character << 8) | code length, LONG_CODE, or 0 for an unused prefix. */
+    final int[] entries;
+
+    // slow path: codes longer than tableBits, grouped by length and sorted within each length
+    private final long[][] longCodes;
+    private final int[][] longSymbols;
+
+    /**
+     * Builds the decode table for a code table.
+     * @param codeTable the codes and code lengths of every character.
+     */
+    DecodeTable(CodeTable codeTable) {
+        HuffmanMetrics.DECODE_TABLES_BUILT.increment();
+        int maxLength = codeTable.maxLength;
+        if (maxLength > MAX_CODE_LENGTH)
+            throw new IllegalArgumentException("Huffman code longer than " + MAX_CODE_LENGTH + " bits");
+        tableBits = Math.max(1, Math.min(PRIMARY_BITS, maxLength));
+        entries = new int[1 << tableBits];
+        longCodes = new long[maxLength + 1][];
+        longSymbols = new int[maxLength + 1][];
+
+        int[] longCounts = new int[maxLength + 1];
+        for (int symbol = 0; symbol < codeTable.lengths.length; symbol++) {
+            int length = codeTable.lengths[symbol];
+            if (length == 0)
+                continue;
+            long code = codeTable.codes[symbol];
+            if (length <= tableBits) {
+                // every index that starts with the code decodes to this character
+                int first = (int) (code << (tableBits - length));
+                Arrays.fill(entries, first, first + (1 << (tableBits - length)), (symbol << 8) | length);
+            } else {
+                entries[(int) (code >>> (length - tableBits))] = LONG_CODE;
+                longCounts[length]++;
+            }
+        }
+
+        for (int length = tableBits + 1; length <= maxLength; length++) {
+            longCodes[length] = new long[longCounts[length]];
+            longSymbols[length] = new int[longCounts[length]];
+            longCounts[length] = 0;
+        }
+        for (int symbol = 0; symbol < codeTable.lengths.length; symbol++) {
+            int length = codeTable.lengths[symbol];
+            if (length > tableBits) {
+                longCodes[length][longCounts[length]] = codeTable.codes[symbol];
+                longSymbols[length][longCounts[length]++] = symbol;
+            }
+        }
+        for (int length = tableBits + 1; length <= maxLength; length++)
+            sortByCode(longCodes[length], longSymbols[length]);
+    }
+
+    /**
+     * Decodes the next character and consumes its code.
+     * @param in the stream positioned at the start of a code.
+     * @return the decoded character.
+     * @throws IOException if the bits do not form a code or the stream ends early.
+     */
+    int decode(PackedBitInputStream in) throws IOException {
+        int entry = entries[(int) in.peekBits(tableBits)];
+        if (entry > 0) {
+            in.skipBits(entry & 0xFF);
+            return entry >>> 8;
+        }
+        if (entry == LONG_CODE)
+            return decodeLong(in);
+        throw new IOException("Invalid Huffman code in input");
+    }
+
+    /**
+     * Looks up the code at the start of 64 bits, for decoders that read the bits themselves.
+     * @param bits the next bits of the message, most significant first; at least 57 are valid.
+     * @return (character << 8) | code length.
+     * @throws IOException if the bits do not start with a code.
+     */
+    int entry(long bits) throws IOException {
+        int entry = entries[(int) (bits >>> (64 - tableBits))];
+        if (entry > 0)
+            return entry;
+        if (entry == LONG_CODE) {
+            for (int length = tableBits + 1; length < longCodes.length; length++) {
+                if (longCodes[length].length == 0)
+                    continue;
+                int index = Arrays.binarySearch(longCodes[length], bits >>> (64 - length));
+                if (index >= 0)
+                    return (longSymbols[length][index] << 8) | length;
+            }
+        }
+        throw new IOException("Invalid Huffman code in input");
+    }
+
+    /** slow path of decode() for codes longer than tableBits. */
+    private int decodeLong(PackedBitInputStream in) throws IOException {
+        for (int length = tableBits + 1; length < longCodes.length; length++) {
+            if (longCodes[length].length == 0)
+                continue;
+            int index = Arrays.binarySearch(longCodes[length], in.peekBits(length));
+            if (index >= 0) {
+                in.skipBits(length);
+                return longSymbols[length][index];
+            }
+        }
+        throw new IOException("Invalid Huffman code in input");
+    }
+
+    /** insertion sort of codes, moving symbols along with them; there are at most 256. */
+    private static void sortByCode(long[] codes, int[] symbols) {
+        for (int i = 1; i < codes.length; i++) {
+            long code = codes[i];
+            int symbol = symbols[i];
+            int j = i - 1;
+            while (j >= 0 && codes[j] > code) {
+                codes[j + 1] = codes[j];
+                symbols[j + 1] = symbols[j];
+                j--;
+            }
+            codes[j + 1] = code;
+            symbols[j + 1] = symbol;
+        }
+    }
+}
@@ -1,4 +1,13 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
 
 /**
  * Module 15, Programming Project:
@@ -12,25 +21,98 @@ import java.io.*;
 
 public class DecompressFile {
 
+    /** the only classes a serialized tree may hold; its depth is bounded by the 256 characters. */
+    private static final ObjectInputFilter TREE_FILTER = ObjectInputFilter.Config.createFilter(
+            "HuffmanTree;HuffmanTree$HuffmanNode;java.lang.String;maxdepth=1024;!*");
+
     /**
      * The main method where the execution of the program begins. It processes input arguments and handles file operations for decompression.
      *
      * @param args command line arguments, expecting two: the path to the compressed file and the path for the decompressed output file.
+     *             For files compressed with -blocks, they can be preceded by -threads N to decode
+     *             on N threads, or -range START LENGTH to decode only those bytes of the original file.
+     *             Files compressed with -dict need the same code table, given as -dict TABLE.
+     *             -adaptive with no file names decompresses a stream compressed with -adaptive
+     *             from standard input to standard output.
+     *             -metrics prints the phase timings and sizes of the run as a JSON line to standard error.
      * @author Stephen
      * @author Wilson
      */
     public static void main(String[] args) {
-        if (args.length != 2) {
-            System.out.println("Usage: java DecompressFile <compressed file> <decompressed file>");
+        int threads = Runtime.getRuntime().availableProcessors();
+        long rangeStart = -1;
+        long rangeLength = 0;
+        File dictionary = null;
+        boolean adaptive = false;
+        boolean metrics = false;
+        int i = 0;
+        try {
+            while (i < args.length && args[i].startsWith("-")) {
+                if (args[i].equals("-threads") && i + 1 < args.length) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-range") && i + 2 < args.length) {
+                    rangeStart = Long.parseLong(args[++i]);
+                    rangeLength = Long.parseLong(args[++i]);
+                } else if (args[i].equals("-dict") && i + 1 < args.length) {
+                    dictionary = new File(args[++i]);
+                } else if (args[i].equals("-adaptive")) {
+                    adaptive = true;
+                } else if (args[i].equals("-metrics")) {
+                    metrics = true;
+                } else {
+                    System.out.println("Unknown option: " + args[i]);
+                    printUsage();
+                    return;
+                }
+                i++;
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Not a number: " + args[i]);
+            printUsage();
+            return;
+        }
+
+        if (adaptive && args.length - i == 0) {
+            // standard output carries the decompressed stream, so nothing else may be printed to it
+            try {
+                AdaptiveCodec.decompress(new BufferedInputStream(System.in), System.out);
+            } catch (IOException e) {
+                System.err.println("IO Exception: " + e.getMessage());
+            }
             return;
         }
 
-        String compressedFile = args[0];
-        String decompressedFile = args[1];
+        if (args.length - i != 2) {
+            printUsage();
+            return;
+        }
+
+        String compressedFile = args[i];
+        String decompressedFile = args[i + 1];
 
         File compressed = new File(compressedFile);
         File decompressed = new File(decompressedFile);
 
+        // the file is checked before the decompressed file is created, so a refused run leaves none behind
+        int format;
+        try {
+            format = CompressedFormat.readFormat(compressed);
+        } catch (FileNotFoundException e) {
+            System.err.println("File not found: " + e.getMessage());
+            return;
+        } catch (IOException e) {
+            System.err.println("IO Exception: " + e.getMessage());
+            return;
+        }
+        if (rangeStart >= 0 && format != CompressedFormat.BLOCKS) {
+            System.err.println("-range needs a file compressed with -blocks");
+            return;
+        }
+        if (format == CompressedFormat.DICTIONARY && dictionary == null) {
+            System.err.println("This file was compressed with a code table; give it with -dict TABLE");
+            return;
+        }
+
         // Create the decompressed file if it doesn't exist
         if (!decompressed.exists()) {
             try {
@@ -42,32 +124,532 @@ public class DecompressFile {
             }
         }
 
-        try (BitInputStream bis = new BitInputStream(compressed);
-             ObjectInputStream ois = new ObjectInputStream(bis)) {
+        try {
+            HuffmanMetrics.Run run = HuffmanMetrics.start("decompress", formatName(format, rangeStart >= 0));
+            if (rangeStart >= 0)
+                decompressRange(compressed, decompressed, rangeStart, rangeLength);
+            else if (format == CompressedFormat.BLOCKS)
+                decompressBlocks(compressed, decompressed, threads);
+            else if (format == CompressedFormat.CONTEXT)
+                decompressContext(compressed, decompressed);
+            else if (format == CompressedFormat.ADAPTIVE)
+                decompressAdaptive(compressed, decompressed);
+            else if (format == CompressedFormat.DICTIONARY)
+                decompressDictionary(compressed, decompressed, StaticTable.load(dictionary));
+            else if (format == CompressedFormat.TREE || format == CompressedFormat.TREE_BYTES
+                    || format == CompressedFormat.LEGACY)
+                decompressTree(compressed, decompressed);
+            else if (format == CompressedFormat.STORED)
+                decompressStored(compressed, decompressed);
+            else if (format == CompressedFormat.RUNS)
+                decompressRuns(compressed, decompressed);
+            else
+                decompressCanonical(compressed, decompressed);
+            run.phase(HuffmanMetrics.Phase.DECODE);
+            run.finish(compressed.length(), decompressed.length());
+            if (metrics)
+                System.err.println(run.toJson());
+            System.out.println("Decoded message written to " + decompressedFile);
+            if (format == CompressedFormat.BLOCKS)
+                System.out.println("Code table cache: " + CodeTableCache.SHARED.decoderHits() + " decoder hits, "
+                        + CodeTableCache.SHARED.decoderMisses() + " misses.");
+        } catch (FileNotFoundException e) {
+            System.err.println("File not found: " + e.getMessage());
+        } catch (IOException e) {
+            // a corrupt file is never left half decoded
+            decompressed.delete();
+            System.err.println("IO Exception: " + e.getMessage());
+        }
+    }
 
-            HuffmanTree hf = (HuffmanTree) ois.readObject();
+    private static void printUsage() {
+        System.out.println("Usage: java DecompressFile [-threads N] [-range START LENGTH] [-dict TABLE] [-metrics]"
+                + " <compressed file> <decompressed file>");
+        System.out.println("       java DecompressFile -adaptive < <compressed stream> > <decompressed file>");
+    }
 
-            int messageLength = bis.readInt();
+    /** returns the command line name of a format, for the metrics of a run. */
+    static String formatName(int format, boolean range) {
+        if (range)
+            return "range";
+        switch (format) {
+            case CompressedFormat.LEGACY:
+            case CompressedFormat.TREE: return "legacy";
+            case CompressedFormat.TREE_BYTES: return "stream";
+            case CompressedFormat.BLOCKS: return "blocks";
+            case CompressedFormat.CONTEXT: return "order1";
+            case CompressedFormat.ADAPTIVE: return "adaptive";
+            case CompressedFormat.DICTIONARY: return "dict";
+            case CompressedFormat.STORED: return "stored";
+            case CompressedFormat.RUNS: return "runs";
+            default: return "canonical";
+        }
+    }
 
-            String message = bis.readBits(messageLength);
+    /**
+     * Decompresses a file written by CompressFile -canonical: reads the header, rebuilds the
+     * canonical codes from the stored code lengths and decodes exactly as many bytes as
+     * the original file had. A file too short for its codes fails before anything is decoded,
+     * and the checksum of the decoded bytes is compared with the header's at the end.
+     * Files that CompressFile -canonical stored as they are or as runs are decompressed too.
+     *
+     * @param compressed the compressed file.
+     * @param decompressed the file the original bytes are written to.
+     * @throws IOException if the compressed file is corrupt or a file cannot be read or written.
+     */
+    public static void decompressCanonical(File compressed, File decompressed) throws IOException {
+        int format = CompressedFormat.readFormat(compressed);
+        if (format == CompressedFormat.STORED) {
+            decompressStored(compressed, decompressed);
+            return;
+        }
+        if (format == CompressedFormat.RUNS) {
+            decompressRuns(compressed, decompressed);
+            return;
+        }
+        try (PackedBitInputStream in = new PackedBitInputStream(MappedInputStream.open(compressed));
+             OutputStream out = new FileOutputStream(decompressed)) {
+            CompressedFormat.Header header = CompressedFormat.readHeader(in, CompressedFormat.CANONICAL);
+            Checksum checksum = CompressedFormat.newChecksum();
+            if (header.originalLength > 0) {
+                int[] lengths = CompressedFormat.readCodeLengths(in);
+                CompressedFormat.checkCodesLength(compressed.length() - in.bitPosition() / 8,
+                        header.originalLength, lengths);
+                decodeChunks(new DecodeTable(CodeTable.canonical(lengths)), in, header.originalLength, out, checksum);
+            }
+            header.verify(checksum);
+        }
+    }
 
-            String decodedMessage = decodeBinaryString(message, hf);
+    /**
+     * Decompresses a file that CompressFile -canonical stored as it is, because Huffman codes
+     * would not have made it smaller.
+     *
+     * @param compressed the compressed file.
+     * @param decompressed the file the original bytes are written to.
+     * @throws IOException if the compressed file is corrupt or a file cannot be read or written.
+     */
+    public static void decompressStored(File compressed, File decompressed) throws IOException {
+        try (PackedBitInputStream in = new PackedBitInputStream(MappedInputStream.open(compressed));
+             OutputStream out = new FileOutputStream(decompressed)) {
+            CompressedFormat.Header header = CompressedFormat.readHeader(in, CompressedFormat.STORED);
+            if (compressed.length() - CompressedFormat.HEADER_SIZE != header.originalLength)
+                throw new EOFException("Compressed file is truncated: it holds "
+                        + (compressed.length() - CompressedFormat.HEADER_SIZE)
+                        + " of " + header.originalLength + " bytes");
+            Checksum checksum = CompressedFormat.newChecksum();
+            byte[] chunk = new byte[(int) Math.min(1 << 20, Math.max(header.originalLength, 1))];
+            for (long done = 0; done < header.originalLength; ) {
+                int length = (int) Math.min(chunk.length, header.originalLength - done);
+                in.readFully(chunk, 0, length);
+                checksum.update(chunk, 0, length);
+                out.write(chunk, 0, length);
+                done += length;
+            }
+            header.verify(checksum);
+        }
+    }
 
-            // Write the decoded message to the decompressed file
-            try (FileWriter writer = new FileWriter(decompressed)) {
-                writer.write(decodedMessage);
-            } catch (IOException e) {
-                System.err.println("Error writing to decompressed file: " + e.getMessage());
+    /**
+     * Decompresses a file that CompressFile -canonical stored as runs of one byte value (see FallbackCodec).
+     *
+     * @param compressed the compressed file.
+     * @param decompressed the file the original bytes are written to.
+     * @throws IOException if the compressed file is corrupt or a file cannot be read or written.
+     */
+    public static void decompressRuns(File compressed, File decompressed) throws IOException {
+        try (PackedBitInputStream in = new PackedBitInputStream(MappedInputStream.open(compressed));
+             OutputStream out = new FileOutputStream(decompressed)) {
+            CompressedFormat.Header header = CompressedFormat.readHeader(in, CompressedFormat.RUNS);
+            Checksum checksum = CompressedFormat.newChecksum();
+            FallbackCodec.copyRuns(in, out, header.originalLength, checksum);
+            header.verify(checksum);
+        }
+    }
+
+    /**
+     * Decompresses a file written by CompressFile -order1, decoding each byte with the table
+     * of the byte before it.
+     *
+     * @param compressed the compressed file.
+     * @param decompressed the file the original bytes are written to.
+     * @throws IOException if the compressed file is corrupt or a file cannot be read or written.
+     */
+    public static void decompressContext(File compressed, File decompressed) throws IOException {
+        try (PackedBitInputStream in = new PackedBitInputStream(MappedInputStream.open(compressed));
+             OutputStream out = new FileOutputStream(decompressed)) {
+            CompressedFormat.Header header = CompressedFormat.readHeader(in, CompressedFormat.CONTEXT);
+            long originalLength = header.originalLength;
+            Checksum checksum = CompressedFormat.newChecksum();
+            if (originalLength > 0) {
+                ContextModel model = ContextModel.read(in);
+                byte[] chunk = new byte[(int) Math.min(1 << 20, originalLength)];
+                int context = 0;
+                try {
+                    for (long done = 0; done < originalLength; ) {
+                        int length = (int) Math.min(chunk.length, originalLength - done);
+                        context = model.decode(in, chunk, 0, length, context);
+                        checksum.update(chunk, 0, length);
+                        out.write(chunk, 0, length);
+                        done += length;
+                    }
+                } catch (EOFException e) {
+                    throw new EOFException("Compressed file is truncated: it ends before its last code");
+                }
             }
-            System.out.println("Decoded message written to " + decompressedFile);
+            header.verify(checksum);
+        }
+    }
 
-        } catch (FileNotFoundException e) {
-            System.err.println("File not found: " + e.getMessage());
-        } catch (IOException e) {
-            e.printStackTrace();
-            System.err.println("IO Exception: " + e.getMessage());
+    /**
+     * Decompresses a file written by CompressFile -dict with the same pre-trained code table.
+     *
+     * @param compressed the compressed file.
+     * @param decompressed the file the original bytes are written to.
+     * @param table the code table the file was compressed with.
+     * @throws IOException if the compressed file is corrupt or was compressed with another table,
+     *                     or a file cannot be read or written.
+     */
+    public static void decompressDictionary(File compressed, File decompressed, StaticTable table)
+            throws IOException {
+        try (PackedBitInputStream in = new PackedBitInputStream(MappedInputStream.open(compressed));
+             OutputStream out = new FileOutputStream(decompressed)) {
+            CompressedFormat.Header header = CompressedFormat.readHeader(in, CompressedFormat.DICTIONARY);
+            checkTableId(in, table);
+            CompressedFormat.checkCodesLength(compressed.length() - in.bitPosition() / 8,
+                    header.originalLength, table.lengths);
+            Checksum checksum = CompressedFormat.newChecksum();
+            decodeChunks(table.decodeTable, in, header.originalLength, out, checksum);
+            header.verify(checksum);
+        }
+    }
+
+    /**
+     * Decompresses a file written by CompressFile -adaptive, in one pass.
+     *
+     * @param compressed the compressed file.
+     * @param decompressed the file the original bytes are written to.
+     * @throws IOException if the compressed file is corrupt or a file cannot be read or written.
+     */
+    public static void decompressAdaptive(File compressed, File decompressed) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(compressed), 1 << 16);
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(decompressed), 1 << 16)) {
+            AdaptiveCodec.decompress(in, out);
+        }
+    }
+
+    /**
+     * Decompresses a file written by CompressFile -legacy or -stream, in the tree formats or in
+     * the original layout without a header: -legacy files as text, -stream files (TREE_BYTES)
+     * as their exact bytes.
+     * <br> 1. Reads the file through one buffered bit stream, which the tree, the message length
+     * and the codes are parsed from in order, so memory use does not grow with the file.
+     * <br> 2. Deserializes the tree from exactly its own bytes, accepting nothing but a HuffmanTree.
+     * <br> 3. Checks that the codes fill the rest of the file exactly, so a truncated or corrupt
+     * file fails before anything is decoded.
+     * <br> 4. Decodes the message and compares the number of characters and their checksum with
+     * the header.
+     *
+     * @param compressed the compressed file.
+     * @param decompressed the file the original text is written to.
+     * @throws IOException if the compressed file is corrupt or a file cannot be read or written.
+     */
+    public static void decompressTree(File compressed, File decompressed) throws IOException {
+        try (PackedBitInputStream in = new PackedBitInputStream(MappedInputStream.open(compressed))) {
+            CompressedFormat.Header header = null;
+            HuffmanTree hf;
+            long messageLength;
+            int format = CompressedFormat.readFormat(compressed);
+            if (format == CompressedFormat.TREE || format == CompressedFormat.TREE_BYTES) {
+                header = CompressedFormat.readHeader(in, format);
+                long treeLength = readLength(in, 32);
+                if (treeLength > compressed.length() - in.bitPosition() / 8)
+                    throw new EOFException("Compressed file ends in its tree");
+                byte[] tree = new byte[(int) treeLength];
+                for (int i = 0; i < tree.length; i++)
+                    tree[i] = (byte) in.read();
+                hf = readTree(new ByteArrayInputStream(tree));
+                messageLength = readLength(in, 64);
+            } else {
+                // the original layout has no length for the tree, so the tree is read from the bit
+                // stream itself, and the check of the codes below confirms that it stopped at its end
+                hf = readTree(in);
+                messageLength = readLength(in, 32);
+            }
+
+            long available = compressed.length() - in.bitPosition() / 8;
+            if (messageLength < 0 || (messageLength + 7) / 8 != available || (hf == null && messageLength > 0))
+                throw new IOException("Corrupt file: " + available + " bytes of codes do not match a message of "
+                        + messageLength + " bits");
+
+            Checksum checksum = CompressedFormat.newChecksum();
+            if (format == CompressedFormat.TREE_BYTES) {
+                decodeBytes(hf, in, messageLength, header, decompressed, checksum);
+                return;
+            }
+            long decoded = 0;
+            // the checksum covers the bytes written, the text in the platform's character set
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new CheckedOutputStream(new FileOutputStream(decompressed), checksum)), CompressFile.BUFFER_SIZE)) {
+                // an empty source file is compressed with no tree at all
+                if (hf != null) {
+                    DecodeTable table = new DecodeTable(CodeTable.fromTree(hf.root));
+                    decoded = decodeMessage(table, in, messageLength, writer);
+                }
+            }
+            if (header != null) {
+                if (decoded != header.originalLength)
+                    throw new IOException("Corrupt file: decoded " + decoded + " characters, expected "
+                            + header.originalLength);
+                header.verify(checksum);
+            }
+        }
+    }
+
+    /**
+     * Decodes the codes of a -stream file to the exact bytes they were made from.
+     * @param hf the tree, or null for an empty file.
+     * @param in the stream positioned at the start of the codes.
+     * @param messageLength the length of the codes in bits.
+     * @param header the header, whose length and checksum the decoded bytes must match.
+     * @param decompressed the file the bytes are written to.
+     * @param checksum an empty checksum.
+     * @throws IOException if the file is corrupt or cannot be written.
+     */
+    private static void decodeBytes(HuffmanTree hf, PackedBitInputStream in, long messageLength,
+                                    CompressedFormat.Header header, File decompressed, Checksum checksum)
+            throws IOException {
+        long end = in.bitPosition() + messageLength;
+        try (OutputStream out = new FileOutputStream(decompressed)) {
+            if (hf != null)
+                decodeChunks(new DecodeTable(CodeTable.fromTree(hf.root)), in, header.originalLength, out, checksum);
+            else if (header.originalLength > 0)
+                throw new IOException("Corrupt file: no tree for " + header.originalLength + " bytes");
+        }
+        if (in.bitPosition() != end)
+            throw new IOException("Corrupt file: the codes of " + header.originalLength + " bytes do not fill "
+                    + messageLength + " bits");
+        header.verify(checksum);
+    }
+
+    /** reads a length of 32 or 64 bits, which must not be negative. */
+    private static long readLength(PackedBitInputStream in, int bits) throws IOException {
+        try {
+            long length = (bits == 64) ? (in.readBits(32) << 32) | in.readBits(32) : in.readInt();
+            if (length < 0)
+                throw new IOException("Corrupt file: negative length " + length);
+            return length;
+        } catch (EOFException e) {
+            throw new EOFException("Compressed file ends before its codes");
+        }
+    }
+
+    /** deserializes a tree, reading no more of the stream than the tree. */
+    private static HuffmanTree readTree(InputStream in) throws IOException {
+        try {
+            ObjectInputStream ois = new ObjectInputStream(in);
+            ois.setObjectInputFilter(TREE_FILTER);
+            Object tree = ois.readObject();
+            if (tree != null && !(tree instanceof HuffmanTree))
+                throw new IOException("Corrupt file: holds a " + tree.getClass().getName() + " instead of a tree");
+            return (HuffmanTree) tree;
         } catch (ClassNotFoundException e) {
-            System.err.println("Class not found: " + e.getMessage());
+            throw new IOException("Corrupt file: holds an unknown class " + e.getMessage());
+        } catch (EOFException e) {
+            throw new EOFException("Compressed file ends in its tree");
+        }
+    }
+
+    /** decodes originalLength bytes and writes them a megabyte at a time, adding them to the checksum. */
+    private static void decodeChunks(DecodeTable table, PackedBitInputStream in, long originalLength,
+                                     OutputStream out, Checksum checksum) throws IOException {
+        byte[] chunk = new byte[(int) Math.min(1 << 20, originalLength)];
+        try {
+            for (long done = 0; done < originalLength; ) {
+                int length = (int) Math.min(chunk.length, originalLength - done);
+                for (int i = 0; i < length; i++)
+                    chunk[i] = (byte) table.decode(in);
+                checksum.update(chunk, 0, length);
+                out.write(chunk, 0, length);
+                done += length;
+            }
+        } catch (EOFException e) {
+            throw new EOFException("Compressed file is truncated: it ends before its last code");
+        }
+    }
+
+    /** reads the ID of the code table a file was compressed with and checks it is the given table. */
+    private static void checkTableId(PackedBitInputStream in, StaticTable table) throws IOException {
+        int id = in.readInt();
+        if (id != table.id)
+            throw new IOException(String.format("Compressed with code table %08x, not %08x", id, table.id));
+    }
+
+    /**
+     * Decompresses bytes held in memory that were written by CompressFile in the canonical, context or
+     * block format, for example by CompressFile.compress(). The original bytes are returned
+     * exactly, with no character set conversion.
+     *
+     * @param compressed the compressed bytes from its position to its limit; the position is not moved.
+     * @return the original bytes.
+     * @throws IOException if the bytes are corrupt, in the serialized tree format, or decompress
+     *                     to more than fits in an array.
+     */
+    public static byte[] decompress(ByteBuffer compressed) throws IOException {
+        return decompress(compressed, null);
+    }
+
+    /**
+     * Decompresses bytes held in memory like decompress(ByteBuffer), which may also have been
+     * compressed with a pre-trained code table, for example by CompressFile.compress(ByteBuffer, StaticTable).
+     *
+     * @param compressed the compressed bytes from its position to its limit; the position is not moved.
+     * @param dictionary the code table for bytes in the dictionary format, or null.
+     * @return the original bytes.
+     * @throws IOException if the bytes are corrupt or truncated, in the serialized tree format,
+     *                     compressed with another code table, or decompress to more than fits in an array.
+     *                     The checksum in the header is compared with the decoded bytes.
+     */
+    public static byte[] decompress(ByteBuffer compressed, StaticTable dictionary) throws IOException {
+        int format = CompressedFormat.readFormat(compressed);
+        if (format == CompressedFormat.DICTIONARY && dictionary == null)
+            throw new IOException("Compressed with a code table, which was not given");
+        if (format != CompressedFormat.CANONICAL && format != CompressedFormat.BLOCKS
+                && format != CompressedFormat.DICTIONARY && format != CompressedFormat.CONTEXT
+                && format != CompressedFormat.STORED && format != CompressedFormat.RUNS)
+            throw new IOException("Not a compressed file in the canonical, block, dictionary, context, stored"
+                    + " or runs format");
+
+        PackedBitInputStream in = new PackedBitInputStream(compressed);
+        CompressedFormat.Header header = CompressedFormat.readHeader(in, format);
+        long originalLength = header.originalLength;
+        if (originalLength > Integer.MAX_VALUE - 8)
+            throw new IOException("Original length " + originalLength + " is too large for an array");
+        byte[] original = new byte[(int) originalLength];
+
+        if (format == CompressedFormat.BLOCKS) {
+            int blockSize = in.readInt();
+            if (blockSize < BlockCodec.MIN_BLOCK_SIZE || blockSize > BlockCodec.MAX_BLOCK_SIZE)
+                throw new IOException("Corrupt header: block size " + blockSize);
+            int[][] blockLengths = new int[(int) ((originalLength + blockSize - 1) / blockSize)][];
+            for (int block = 0; block < blockLengths.length; block++) {
+                int offset = block * blockSize;
+                int length = Math.min(blockSize, original.length - offset);
+                blockLengths[block] = BlockCodec.decode(in, block, reference -> blockLengths[reference],
+                        original, offset, length);
+            }
+        } else if (format == CompressedFormat.STORED) {
+            if (compressed.remaining() - CompressedFormat.HEADER_SIZE < originalLength)
+                throw new EOFException("Compressed file is truncated: it ends before its last byte");
+            in.readFully(original, 0, original.length);
+        } else if (format == CompressedFormat.RUNS) {
+            FallbackCodec.readRuns(in, original, 0, original.length);
+        } else if (format == CompressedFormat.CONTEXT) {
+            if (original.length > 0)
+                ContextModel.read(in).decode(in, original, 0, original.length, 0);
+        } else if (format == CompressedFormat.DICTIONARY) {
+            checkTableId(in, dictionary);
+            CompressedFormat.checkCodesLength(compressed.remaining() - in.bitPosition() / 8,
+                    originalLength, dictionary.lengths);
+            for (int i = 0; i < original.length; i++)
+                original[i] = (byte) dictionary.decodeTable.decode(in);
+        } else if (original.length > 0) {
+            int[] lengths = CompressedFormat.readCodeLengths(in);
+            CompressedFormat.checkCodesLength(compressed.remaining() - in.bitPosition() / 8, originalLength, lengths);
+            DecodeTable table = CodeTableCache.SHARED.decoderFor(lengths);
+            for (int i = 0; i < original.length; i++)
+                original[i] = (byte) table.decode(in);
+        }
+        Checksum checksum = CompressedFormat.newChecksum();
+        checksum.update(original, 0, original.length);
+        header.verify(checksum);
+        return original;
+    }
+
+    /**
+     * Decompresses a file written by CompressFile -blocks on several threads.
+     * <br> 1. Reads the block index from the end of the file.
+     * <br> 2. Hands the blocks to a pool of threads, each reading and decoding its own block.
+     * <br> 3. Writes the blocks in order as they finish. At most two blocks per thread are held in memory.
+     * <br> 4. Compares the checksum of everything written with the header's.
+     *
+     * @param compressed the compressed file.
+     * @param decompressed the file the original bytes are written to.
+     * @param threads the number of threads decoding blocks.
+     * @throws IOException if the compressed file is corrupt or a file cannot be read or written.
+     */
+    public static void decompressBlocks(File compressed, File decompressed, int threads) throws IOException {
+        threads = Math.max(1, threads);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+
+        try (FileChannel channel = new FileInputStream(compressed).getChannel();
+             OutputStream out = new FileOutputStream(decompressed)) {
+            BlockIndex index = BlockIndex.read(channel);
+            Checksum checksum = CompressedFormat.newChecksum();
+
+            int submitted = 0;
+            for (int written = 0; written < index.blockCount(); written++) {
+                while (submitted < index.blockCount() && pending.size() < 2 * threads) {
+                    int block = submitted++;
+                    pending.add(pool.submit(() -> index.decodeBlock(channel, block)));
+                }
+                byte[] original = getBlock(pending.remove());
+                checksum.update(original, 0, original.length);
+                out.write(original);
+            }
+            index.header.verify(checksum);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Decompresses part of a file written by CompressFile -blocks. Only the blocks that hold
+     * the requested bytes are read and decoded, found through the block index. The checksum
+     * covers the whole original file, so it is not checked for a range.
+     *
+     * @param compressed the compressed file.
+     * @param decompressed the file the requested bytes are written to.
+     * @param start the position in the original file of the first byte to decompress.
+     * @param length the number of bytes to decompress; fewer are written if the file ends first.
+     * @throws IOException if the compressed file is corrupt or a file cannot be read or written.
+     */
+    public static void decompressRange(File compressed, File decompressed, long start, long length)
+            throws IOException {
+        try (FileChannel channel = new FileInputStream(compressed).getChannel();
+             OutputStream out = new FileOutputStream(decompressed)) {
+            BlockIndex index = BlockIndex.read(channel);
+            // start + length may overflow
+            long end = (length > index.originalLength - start) ? index.originalLength : start + length;
+
+            for (long position = start; position < end; ) {
+                int block = index.blockAt(position);
+                byte[] original = index.decodeBlock(channel, block);
+                int from = (int) (position - index.originalOffsets[block]);
+                int to = (int) Math.min(original.length, end - index.originalOffsets[block]);
+                out.write(original, from, to - from);
+                position += to - from;
+            }
+        }
+    }
+
+    /**
+     * Waits for a block to be decoded, unwrapping the exception of a failed block.
+     * @param block the result of BlockIndex.decodeBlock().
+     * @return the original bytes of the block.
+     * @throws IOException if the block failed or the wait was interrupted.
+     */
+    private static byte[] getBlock(Future<byte[]> block) throws IOException {
+        try {
+            return block.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decompressing");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("Block decompression failed", e.getCause());
         }
     }
 
@@ -95,6 +677,38 @@ public class DecompressFile {
 
         return decodedString.toString();
     }
+
+    /**
+     * Decodes a message of a known number of bits with a lookup table, resolving each character
+     * in one table load rather than one tree step per bit.
+     *
+     * @param table the decode table built from the Huffman codes.
+     * @param in the stream positioned at the start of the encoded message.
+     * @param messageLength the length of the encoded message in bits.
+     * @param out where the decoded characters are written.
+     * @return the number of characters decoded.
+     * @throws IOException if the message is corrupt or a stream fails.
+     */
+    public static long decodeMessage(DecodeTable table, PackedBitInputStream in, long messageLength, Writer out)
+            throws IOException {
+        char[] chunk = new char[8192];
+        int count = 0;
+        long decoded = 0;
+        long end = in.bitPosition() + messageLength;
+
+        while (in.bitPosition() < end) {
+            chunk[count++] = (char) table.decode(in);
+            if (count == chunk.length) {
+                out.write(chunk, 0, count);
+                decoded += count;
+                count = 0;
+            }
+        }
+        out.write(chunk, 0, count);
+        if (in.bitPosition() != end)
+            throw new IOException("Corrupt file: the last code runs past the end of the message");
+        return decoded + count;
+    }
 }
 
 /**
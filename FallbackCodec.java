@@ -0,0 +1,331 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.function.Supplier;
+import java.util.zip.Checksum;
+
+/**
+ * Decides when Huffman coding does not pay off, and codes such data stored as it is or as runs.
+ * <br> 1. The order-0 entropy of the byte counts is a lower bound on the size of the Huffman codes.
+ * If even that, with the code table, saves less than 1/MIN_SAVING of the input, as with data that
+ * is already compressed, the input is stored without building any codes.
+ * <br> 2. If one byte value makes up at least half of the input, as in padding and blank areas,
+ * its runs are counted. Each run is stored as the byte and its length, which can be far smaller
+ * than the 1 bit per byte Huffman codes cannot go below.
+ * <br> 3. Otherwise the exact size of the Huffman codes decides between them and stored bytes.
+ * <p>
+ *     A run is the byte value followed by the length of the run minus one, 7 bits per byte with
+ *     the high bit set on every byte but the last, least significant first. The runs of a message
+ *     end when their lengths add up to its length.
+ * </p>
+ */
+class FallbackCodec {
+
+    /** the input coded with Huffman codes. */
+    static final int HUFFMAN = 0;
+    /** the input stored as it is. */
+    static final int STORED = 1;
+    /** the input stored as runs of one byte value. */
+    static final int RUNS = 2;
+
+    /** Huffman codes are used only if they save at least 1/MIN_SAVING of the input. */
+    static final int MIN_SAVING = 64;
+
+    private FallbackCodec() {
+    }
+
+    /**
+     * Returns the order-0 entropy of byte counts.
+     * @param counts the count of each byte value.
+     * @return the entropy in bits per byte, or NaN if every count is 0.
+     */
+    static double entropy(long[] counts) {
+        long total = 0;
+        double sum = 0;
+        for (long count : counts) {
+            if (count > 0) {
+                total += count;
+                sum += count * Math.log(count);
+            }
+        }
+        if (total == 0)
+            return Double.NaN;
+        return (Math.log(total) - sum / total) / Math.log(2);
+    }
+
+    /**
+     * Returns true if the entropy of the counts shows that Huffman codes might pay off, so that
+     * building them is worth it.
+     * @param counts the count of each byte value.
+     * @param length the number of bytes counted, at least 1.
+     * @return false if no Huffman code of these counts saves 1/MIN_SAVING of the input.
+     */
+    static boolean mayPayOff(long[] counts, long length) {
+        double codeBytes = entropy(counts) * length / 8 + tableSize(counts);
+        return codeBytes + length / MIN_SAVING < length;
+    }
+
+    /**
+     * Returns true if one byte value makes up at least half of the counts, the only case in which
+     * the runs are counted.
+     * @param counts the count of each byte value.
+     * @param length the number of bytes counted.
+     * @return true if runs are worth counting.
+     */
+    static boolean mayRun(long[] counts, long length) {
+        long most = 0;
+        for (long count : counts)
+            most = Math.max(most, count);
+        return most * 2 >= length;
+    }
+
+    /**
+     * Chooses how to code an input from the sizes each choice would have.
+     * @param length the number of bytes of the input.
+     * @param huffmanBytes the size of the code table and codes, or -1 if they were not built.
+     * @param runBytes the size of the runs, or -1 if they were not counted.
+     * @return HUFFMAN, STORED or RUNS.
+     */
+    static int choose(long length, long huffmanBytes, long runBytes) {
+        if (runBytes >= 0 && runBytes < length && (huffmanBytes < 0 || runBytes < huffmanBytes))
+            return RUNS;
+        if (huffmanBytes >= 0 && huffmanBytes + length / MIN_SAVING < length)
+            return HUFFMAN;
+        return STORED;
+    }
+
+    /**
+     * Chooses how to code bytes held in memory, counting their runs if that may pay off and
+     * building their Huffman codes only if those may.
+     * @param data the array holding the bytes.
+     * @param offset the index of the first byte.
+     * @param length the number of bytes, at least 1.
+     * @param counts the count of each byte value.
+     * @param codeTable returns the Huffman codes of the counts, called only if they may pay off.
+     * @return HUFFMAN, STORED or RUNS.
+     */
+    static int choose(byte[] data, int offset, int length, long[] counts,
+                      Supplier<CodeTable> codeTable) {
+        long runBytes = mayRun(counts, length) ? runBytes(data, offset, length) : -1;
+        long huffmanBytes = -1;
+        if (mayPayOff(counts, length))
+            huffmanBytes = tableSize(counts) + (codeTable.get().encodedLength(counts) + 7) / 8;
+        return choose(length, huffmanBytes, runBytes);
+    }
+
+    /** the size of the code lengths written by CompressedFormat.writeCodeLengths(). */
+    static int tableSize(long[] counts) {
+        int symbols = 0;
+        for (long count : counts) {
+            if (count > 0)
+                symbols++;
+        }
+        return 1 + 2 * symbols;
+    }
+
+    /**
+     * Returns the number of bytes writeRuns() writes for part of an array.
+     * @param data the array.
+     * @param offset the index of the first byte.
+     * @param length the number of bytes.
+     * @return the size of the runs.
+     */
+    static long runBytes(byte[] data, int offset, int length) {
+        long size = 0;
+        int end = offset + length;
+        for (int i = offset; i < end; ) {
+            int start = i;
+            byte value = data[i++];
+            while (i < end && data[i] == value)
+                i++;
+            size += 1 + varintSize(i - start - 1);
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of bytes writeRuns() writes for a stream, reading it to its end.
+     * @param in the stream.
+     * @return the size of the runs.
+     * @throws IOException if the stream fails.
+     */
+    static long runBytes(InputStream in) throws IOException {
+        long size = 0;
+        int value = -1;
+        long run = 0;
+        byte[] chunk = new byte[CompressFile.BUFFER_SIZE];
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+            for (int i = 0; i < read; i++) {
+                int b = chunk[i] & 0xFF;
+                if (b == value) {
+                    run++;
+                } else {
+                    if (value >= 0)
+                        size += 1 + varintSize(run - 1);
+                    value = b;
+                    run = 1;
+                }
+            }
+        }
+        if (value >= 0)
+            size += 1 + varintSize(run - 1);
+        return size;
+    }
+
+    /**
+     * Writes the runs of part of an array.
+     * @param data the array.
+     * @param offset the index of the first byte.
+     * @param length the number of bytes.
+     * @param out the stream the runs are written to.
+     * @throws IOException if the stream fails.
+     */
+    static void writeRuns(byte[] data, int offset, int length, OutputStream out) throws IOException {
+        int end = offset + length;
+        for (int i = offset; i < end; ) {
+            int start = i;
+            byte value = data[i++];
+            while (i < end && data[i] == value)
+                i++;
+            out.write(value);
+            writeVarint(i - start - 1, out);
+        }
+    }
+
+    /**
+     * Writes the runs of a stream, reading it to its end.
+     * @param in the stream.
+     * @param out the stream the runs are written to.
+     * @throws IOException if a stream fails.
+     */
+    static void writeRuns(InputStream in, OutputStream out) throws IOException {
+        int value = -1;
+        long run = 0;
+        byte[] chunk = new byte[CompressFile.BUFFER_SIZE];
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+            for (int i = 0; i < read; i++) {
+                int b = chunk[i] & 0xFF;
+                if (b == value) {
+                    run++;
+                } else {
+                    if (value >= 0) {
+                        out.write(value);
+                        writeVarint(run - 1, out);
+                    }
+                    value = b;
+                    run = 1;
+                }
+            }
+        }
+        if (value >= 0) {
+            out.write(value);
+            writeVarint(run - 1, out);
+        }
+    }
+
+    /**
+     * Reads runs into an array until it holds length bytes.
+     * @param in the stream positioned at the first run.
+     * @param out the array the original bytes are written to.
+     * @param offset the index in out of the first byte.
+     * @param length the number of original bytes.
+     * @throws IOException if a run is longer than the bytes left, or the stream ends first.
+     */
+    static void readRuns(PackedBitInputStream in, byte[] out, int offset, int length) throws IOException {
+        int end = offset + length;
+        for (int i = offset; i < end; ) {
+            int value = readByte(in);
+            long run = readVarint(in) + 1;
+            if (run > end - i)
+                throw new IOException("Corrupt runs: a run of " + run + " bytes where " + (end - i) + " are left");
+            Arrays.fill(out, i, i + (int) run, (byte) value);
+            i += (int) run;
+        }
+    }
+
+    /**
+     * Reads runs and writes the bytes they stand for until there are length of them.
+     * @param in the stream positioned at the first run.
+     * @param out the stream the original bytes are written to.
+     * @param length the number of original bytes.
+     * @param checksum updated with every original byte.
+     * @throws IOException if a run is longer than the bytes left, or a stream ends first or fails.
+     */
+    static void copyRuns(PackedBitInputStream in, OutputStream out, long length, Checksum checksum)
+            throws IOException {
+        byte[] chunk = new byte[(int) Math.min(CompressFile.BUFFER_SIZE, Math.max(length, 1))];
+        int filled = 0;
+        for (long done = 0; done < length; ) {
+            int value = readByte(in);
+            long run = readVarint(in) + 1;
+            if (run > length - done)
+                throw new IOException("Corrupt runs: a run of " + run + " bytes where " + (length - done)
+                        + " are left");
+            done += run;
+            while (run > 0) {
+                int n = (int) Math.min(run, chunk.length - filled);
+                Arrays.fill(chunk, filled, filled + n, (byte) value);
+                filled += n;
+                run -= n;
+                if (filled == chunk.length) {
+                    checksum.update(chunk, 0, filled);
+                    out.write(chunk, 0, filled);
+                    filled = 0;
+                }
+            }
+        }
+        checksum.update(chunk, 0, filled);
+        out.write(chunk, 0, filled);
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value >>>= 7) != 0)
+            size++;
+        return size;
+    }
+
+    /**
+     * Writes a number 7 bits to a byte, low bits first, with the high bit set on all but the last byte.
+     * @param value the number, not negative.
+     * @param out the stream to write to.
+     * @throws IOException if the stream fails.
+     */
+    static void writeVarint(long value, OutputStream out) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Reads a number written by writeVarint().
+     * @param in the stream positioned at the number.
+     * @return the number.
+     * @throws IOException if the stream ends in the number or the number is too long.
+     */
+    static long readVarint(PackedBitInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 63; shift += 7) {
+            int b = in.read();
+            if (b == -1)
+                throw new EOFException("Compressed data is truncated: it ends in a number");
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Corrupt data: number too long");
+    }
+
+    private static int readByte(PackedBitInputStream in) throws IOException {
+        int b = in.read();
+        if (b == -1)
+            throw new EOFException("Compressed file is truncated: it ends before its last run");
+        return b;
+    }
+}
@@ -0,0 +1,85 @@
+import java.io.Serializable;
+
+/**
+ * Generic implementation of a Heap using an array list.
+ * @author Vincent Tran
+ * @param <E> This will be used for the tree, to create a Heap of type HuffmanTree
+ */
+class Heap<E extends Comparable<E>> implements Serializable {
+    private java.util.ArrayList<E> heap = new java.util.ArrayList<E>();
+
+    /** default heap constructor */
+    public Heap() {
+    }
+
+    /** create heap from an array of objects */
+    public Heap(E[] objects) {
+        for (int i = 0; i < objects.length; i++)
+            add(objects[i]);
+    }
+
+    /** add object to heap */
+    public void add(E object) {
+        heap.add(object); // add to the heap
+        int currentIndex = heap.size() - 1; // index of the last node
+
+        while (currentIndex > 0) {
+            int parentIndex = (currentIndex - 1) / 2;
+            if (heap.get(currentIndex).compareTo(heap.get(parentIndex)) > 0) { // if the current object is greater than its parent
+                // swap objects
+                E temp = heap.get(currentIndex);
+                heap.set(currentIndex, heap.get(parentIndex));
+                heap.set(parentIndex, temp);
+            }
+            else
+                break; // tree is a heap
+
+            currentIndex = parentIndex;
+        }
+    }
+
+    /** remove root from the heap and return the removed object */
+    public E remove() {
+        if (heap.size() == 0)
+            return null; // heap is empty
+
+        E removedObject = heap.get(0);
+
+        heap.set(0, heap.get(heap.size() - 1));
+        heap.remove(heap.size() - 1);
+
+        int currentIndex = 0;
+        while (currentIndex < heap.size()) {
+            int leftChildIndex = 2 * currentIndex + 1;
+            int rightChildIndex = 2 * currentIndex + 2;
+
+            // find maximum between two children
+            if (leftChildIndex >= heap.size())
+                break; // tree is a heap
+
+            int maxIndex = leftChildIndex; // set max to left child
+            if (rightChildIndex < heap.size()) {
+                if (heap.get(maxIndex).compareTo(heap.get(rightChildIndex)) < 0) { // if left child is less than the right
+                    maxIndex = rightChildIndex; // set max to right child
+                }
+            }
+
+            if (heap.get(currentIndex).compareTo(heap.get(maxIndex)) < 0) { // if current node is less than the max
+                // swap objects
+                E temp = heap.get(maxIndex);
+                heap.set(maxIndex, heap.get(currentIndex));
+                heap.set(currentIndex, temp);
+                currentIndex = maxIndex;
+            }
+            else
+                break; // tree is a heap
+        }
+
+        return removedObject;
+    }
+
+    /** return number of nodes in the tree */
+    public int getSize() {
+        return heap.size();
+    }
+}
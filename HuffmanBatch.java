@@ -0,0 +1,247 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Compresses or decompresses many files in one run, so that the JVM starts and warms up once
+ * instead of once per file.
+ * <br> 1. Collects the files: every regular file under a directory, the files listed one per
+ * line in a @ListFile, or the files named on the command line.
+ * <br> 2. Hands each file to a pool of -threads threads, which compress it in memory with
+ * HuffmanEncoder (or decompress it with HuffmanDecoder) and write it to the output directory.
+ * <br> 3. At most -io files are being read or written at a time, so that many threads do not
+ * flood the disk; the coding itself is not limited.
+ * <br> 4. A file that fails is reported and skipped. At the end it prints the number of files,
+ * the bytes read and written, and the throughput.
+ * <p>
+ *     Usage: java HuffmanBatch [-decompress] [-threads N] [-io N] [-order1] [-maxlen N] [-dict TABLE]
+ *     (Directory | @ListFile | File...) (OutputDirectory)
+ * </p>
+ * <p>
+ *     Compressed files are named after the original with .huf added, keeping their path relative
+ *     to the input directory; decompression removes the .huf again. Files named one by one are
+ *     written straight into the output directory, so files with the same name in different
+ *     directories would overwrite each other; they all fail instead.
+ * </p>
+ */
+public class HuffmanBatch {
+
+    /** suffix of the compressed files. */
+    static final String SUFFIX = ".huf";
+
+    private final boolean decompress;
+    private final HuffmanEncoder encoder;
+    private final HuffmanDecoder decoder;
+    private final Semaphore ioPermits;
+
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    HuffmanBatch(boolean decompress, HuffmanEncoder encoder, HuffmanDecoder decoder, int ioLimit) {
+        this.decompress = decompress;
+        this.encoder = encoder;
+        this.decoder = decoder;
+        this.ioPermits = new Semaphore(Math.max(1, ioLimit));
+    }
+
+    /**
+     * Runs a batch from the command line.
+     * @param args the options, the files to process and the output directory, see the class comment.
+     */
+    public static void main(String[] args) {
+        boolean decompress = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int ioLimit = 0;
+        int maxLength = 0;
+        boolean order1 = false;
+        File dictionary = null;
+        int i = 0;
+        try {
+            while (i < args.length && args[i].startsWith("-")) {
+                if (args[i].equals("-decompress")) {
+                    decompress = true;
+                } else if (args[i].equals("-threads") && i + 1 < args.length) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-io") && i + 1 < args.length) {
+                    ioLimit = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-order1")) {
+                    order1 = true;
+                } else if (args[i].equals("-maxlen") && i + 1 < args.length) {
+                    maxLength = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-dict") && i + 1 < args.length) {
+                    dictionary = new File(args[++i]);
+                } else {
+                    System.out.println("Unknown option: " + args[i]);
+                    printUsage();
+                    return;
+                }
+                i++;
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Not a number: " + args[i]);
+            printUsage();
+            return;
+        }
+
+        if (args.length - i < 2) {
+            printUsage();
+            return;
+        }
+
+        try {
+            HuffmanEncoder encoder = (dictionary != null) ? new HuffmanEncoder(dictionary)
+                    : new HuffmanEncoder(maxLength, order1);
+            HuffmanDecoder decoder = (dictionary != null) ? new HuffmanDecoder(dictionary) : new HuffmanDecoder();
+            String[] sources = Arrays.copyOfRange(args, i, args.length - 1);
+            Path outputDirectory = Paths.get(args[args.length - 1]);
+            // by default as many files are read or written at once as there are threads, up to 16
+            int io = (ioLimit > 0) ? ioLimit : Math.min(Math.max(1, threads), 16);
+            new HuffmanBatch(decompress, encoder, decoder, io).run(sources, outputDirectory, threads);
+        } catch (Exception e) {
+            System.out.println(e);
+        }
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: java HuffmanBatch [-decompress] [-threads N] [-io N] [-order1] [-maxlen N]"
+                + " [-dict TABLE] (Directory | @ListFile | File...) (OutputDirectory)");
+    }
+
+    /**
+     * Processes every file and prints the totals.
+     * @param sources a directory, a @ListFile, or files.
+     * @param outputDirectory the directory the results are written to.
+     * @param threads the number of threads processing files.
+     * @throws IOException if the files cannot be listed.
+     * @throws InterruptedException if interrupted while waiting for the files to finish.
+     */
+    void run(String[] sources, Path outputDirectory, int threads) throws IOException, InterruptedException {
+        List<Path[]> jobs = listJobs(sources, outputDirectory);
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        for (Path[] job : jobs)
+            pool.execute(() -> process(job[0], job[1]));
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long original = decompress ? bytesWritten.get() : bytesRead.get();
+        long compressed = decompress ? bytesRead.get() : bytesWritten.get();
+        System.out.printf("%s %d files (%d failed) in %.2f s: %d bytes read, %d bytes written",
+                decompress ? "Decompressed" : "Compressed", done.get(), failed.get(), seconds,
+                bytesRead.get(), bytesWritten.get());
+        if (original > 0)
+            System.out.printf(", compressed to %.1f%% of the original", 100.0 * compressed / original);
+        System.out.printf(", %.1f MB/s of original data, %.0f files/s.%n",
+                original / seconds / (1 << 20), done.get() / seconds);
+    }
+
+    /** pairs every source file with the file its result is written to. */
+    private List<Path[]> listJobs(String[] sources, Path outputDirectory) throws IOException {
+        List<Path[]> jobs = new ArrayList<>();
+        if (sources.length == 1 && Files.isDirectory(Paths.get(sources[0]))) {
+            Path root = Paths.get(sources[0]);
+            try (Stream<Path> files = Files.walk(root)) {
+                files.filter(Files::isRegularFile)
+                        .forEach(file -> jobs.add(new Path[] {file, target(outputDirectory, root.relativize(file))}));
+            }
+            return jobs;
+        }
+
+        List<String> names = new ArrayList<>();
+        for (String source : sources) {
+            if (source.startsWith("@"))
+                names.addAll(Files.readAllLines(Paths.get(source.substring(1))));
+            else
+                names.add(source);
+        }
+        Map<Path, List<Path>> sourcesByTarget = new LinkedHashMap<>();
+        for (String name : names) {
+            if (name.isBlank())
+                continue;
+            Path file = Paths.get(name.trim());
+            List<Path> sourcesOfTarget = sourcesByTarget.computeIfAbsent(target(outputDirectory, file.getFileName()),
+                    target -> new ArrayList<>());
+            // a file named twice is processed once
+            if (sourcesOfTarget.stream().noneMatch(source -> sameFile(source, file)))
+                sourcesOfTarget.add(file);
+        }
+        for (Map.Entry<Path, List<Path>> entry : sourcesByTarget.entrySet()) {
+            List<Path> sourcesOfTarget = entry.getValue();
+            if (sourcesOfTarget.size() == 1) {
+                jobs.add(new Path[] {sourcesOfTarget.get(0), entry.getKey()});
+                continue;
+            }
+            for (Path source : sourcesOfTarget) {
+                failed.incrementAndGet();
+                System.err.println("Failed: " + source + ": " + sourcesOfTarget.size()
+                        + " files would be written to " + entry.getKey());
+            }
+        }
+        return jobs;
+    }
+
+    private static boolean sameFile(Path a, Path b) {
+        return a.toAbsolutePath().normalize().equals(b.toAbsolutePath().normalize());
+    }
+
+    /** returns where the result for a file is written: with .huf added, or removed when decompressing. */
+    private Path target(Path outputDirectory, Path relative) {
+        String name = relative.getFileName().toString();
+        if (!decompress)
+            name = name + SUFFIX;
+        else if (name.endsWith(SUFFIX) && name.length() > SUFFIX.length())
+            name = name.substring(0, name.length() - SUFFIX.length());
+        else
+            name = name + ".out";
+        Path parent = relative.getParent();
+        return outputDirectory.resolve((parent != null) ? parent.resolve(name) : Paths.get(name));
+    }
+
+    /** compresses or decompresses one file, reporting rather than throwing a failure. */
+    private void process(Path source, Path target) {
+        try {
+            byte[] input;
+            ioPermits.acquire();
+            try {
+                input = Files.readAllBytes(source);
+            } finally {
+                ioPermits.release();
+            }
+
+            byte[] output = decompress ? decoder.decode(ByteBuffer.wrap(input)) : encoder.encode(input);
+
+            ioPermits.acquire();
+            try {
+                Path parent = target.getParent();
+                if (parent != null)
+                    Files.createDirectories(parent);
+                Files.write(target, output);
+            } finally {
+                ioPermits.release();
+            }
+            bytesRead.addAndGet(input.length);
+            bytesWritten.addAndGet(output.length);
+            done.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception | OutOfMemoryError e) {
+            failed.incrementAndGet();
+            System.err.println("Failed: " + source + ": " + e);
+        }
+    }
+}
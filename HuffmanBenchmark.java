@@ -0,0 +1,351 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Benchmarks for the stages of compression and decompression, run from the command line.
+ * <br> 1. Each benchmark runs on text.txt, fasta.txt and four synthetic 1 MB inputs:
+ * uniform random bytes, a skewed (geometric) distribution, a single repeated byte and
+ * multilingual UTF-8 text. Each file round trip is first checked to restore its input exactly.
+ * <br> 2. Each one is warmed up so the JIT compiles it, then timed for a fixed period.
+ * <br> 3. It reports throughput in MB of original input per second, and the bytes allocated
+ * per operation (the figure JMH's -prof gc reports as gc.alloc.rate.norm).
+ * <p>
+ *     Usage: java HuffmanBenchmark [seconds per benchmark] [benchmark name filter]
+ * </p>
+ */
+public class HuffmanBenchmark {
+
+    /** size of the synthetic inputs. */
+    static final int SYNTHETIC_SIZE = 1 << 20;
+
+    /** results are folded into this so that the JIT cannot remove the benchmarked work. */
+    static volatile long sink;
+
+    /** a benchmark operation on one input. */
+    interface Operation {
+        long run() throws Exception;
+    }
+
+    /**
+     * Runs every benchmark whose name contains the filter, on every input.
+     * @param args optionally the number of seconds to measure each benchmark, then a name filter.
+     * @throws Exception if an input cannot be read or a benchmark fails.
+     */
+    public static void main(String[] args) throws Exception {
+        double seconds = (args.length > 0) ? Double.parseDouble(args[0]) : 2.0;
+        String filter = (args.length > 1) ? args[1] : "";
+
+        String[] names = {"text.txt", "fasta.txt", "uniform", "skewed", "single", "utf-8"};
+        byte[][] inputs = {
+                readIfExists("text.txt"), readIfExists("fasta.txt"),
+                uniform(SYNTHETIC_SIZE), skewed(SYNTHETIC_SIZE), single(SYNTHETIC_SIZE), utf8(SYNTHETIC_SIZE)};
+
+        System.out.printf("%-28s %-10s %12s %14s%n", "Benchmark", "Input", "MB/s", "alloc B/op");
+        for (int i = 0; i < inputs.length; i++) {
+            if (inputs[i] != null)
+                runAll(names[i], inputs[i], seconds, filter);
+        }
+    }
+
+    /** runs every benchmark on one input. */
+    private static void runAll(String name, byte[] input, double seconds, String filter) throws Exception {
+        String text = new String(input, StandardCharsets.ISO_8859_1);
+        int[] frequencies = CompressFile.calculateFrequencies(text);
+        HuffmanTree tree = CompressFile.getHuffmanTree(frequencies);
+        String[] charKey = tree.getCode(tree.root);
+        String binaryString = CompressFile.writeMessage(charKey, text);
+        CodeTable codeTable = CompressFile.getCanonicalCode(CompressFile.calculateFrequencies(ByteBuffer.wrap(input)), 0);
+        byte[] compressed = CompressFile.compress(input);
+        ByteBuffer compressedBuffer = ByteBuffer.wrap(compressed);
+        DecodeTable decodeTable = new DecodeTable(codeTable);
+
+        File source = File.createTempFile("bench", ".in");
+        File target = File.createTempFile("bench", ".huf");
+        File restored = File.createTempFile("bench", ".out");
+        File bits = File.createTempFile("bench", ".bits");
+        for (File f : new File[] {source, target, restored, bits})
+            f.deleteOnExit();
+        Files.write(source.toPath(), input);
+
+        PrintStream console = System.out;
+        bench("calculateFrequencies", name, input.length, seconds, filter,
+                () -> CompressFile.calculateFrequencies(ByteBuffer.wrap(input))[0]);
+        bench("calculateFrequencies(String)", name, input.length, seconds, filter,
+                () -> CompressFile.calculateFrequencies(text)[0]);
+        bench("count one histogram", name, input.length, seconds, filter, () -> {
+            long[] single = new long[256];
+            for (byte b : input)
+                single[b & 0xFF]++;
+            return single[0];
+        });
+        bench("ByteCounter.count", name, input.length, seconds, filter, () -> {
+            long[] arrayCounts = new long[256];
+            ByteCounter.count(input, 0, input.length, arrayCounts);
+            return arrayCounts[0];
+        });
+        ByteBuffer direct = ByteBuffer.allocateDirect(input.length).put(input).flip();
+        bench("ByteCounter.count(direct)", name, input.length, seconds, filter, () -> {
+            long[] directCounts = new long[256];
+            ByteCounter.count(direct, directCounts);
+            return directCounts[0];
+        });
+        // large enough to be split across threads
+        ByteBuffer tiled = tile(input, 8 * ByteCounter.PARALLEL_THRESHOLD);
+        bench("ByteCounter.countParallel", name, tiled.remaining(), seconds, filter, () -> {
+            long[] tiledCounts = new long[256];
+            ByteCounter.countParallel(tiled, tiledCounts);
+            return tiledCounts[0];
+        });
+        bench("getHuffmanTree", name, input.length, seconds, filter,
+                () -> CompressFile.getHuffmanTree(frequencies).root.weight);
+        long[] counts = CompressFile.calculateFrequencies(ByteBuffer.wrap(input));
+        CodeLengths codeLengths = new CodeLengths();
+        int[] lengths = new int[256];
+        bench("CodeLengths.huffman", name, input.length, seconds, filter,
+                () -> codeLengths.huffman(counts, lengths)[0]);
+        bench("getCode/assignCode", name, input.length, seconds, filter,
+                () -> tree.getCode(tree.root).length);
+        bench("CodeTable.fromTree", name, input.length, seconds, filter,
+                () -> CodeTable.fromTree(tree.root).maxLength);
+        bench("writeMessage+writeBits", name, input.length, seconds, filter, () -> {
+            try (BitOutputStream bos = new BitOutputStream(bits, false)) {
+                bos.writeBits(CompressFile.writeMessage(charKey, text));
+            }
+            return bits.length();
+        });
+        bench("writeMessage(CodeTable)", name, input.length, seconds, filter, () -> {
+            PackedBitOutputStream out = new PackedBitOutputStream(OutputStream.nullOutputStream());
+            CompressFile.writeMessage(codeTable, ByteBuffer.wrap(input), out);
+            out.close();
+            return 0;
+        });
+        bench("decodeBinaryString", name, input.length, seconds, filter,
+                () -> DecompressFile.decodeBinaryString(binaryString, tree).length());
+        // inputs Huffman codes do not shrink are stored or run-length coded instead
+        if (CompressedFormat.readFormat(compressedBuffer) == CompressedFormat.CANONICAL) {
+            bench("DecodeTable.decode", name, input.length, seconds, filter, () -> {
+                PackedBitInputStream in = new PackedBitInputStream(compressedBuffer);
+                CompressedFormat.readHeader(in, CompressedFormat.CANONICAL);
+                CompressedFormat.readCodeLengths(in);
+                long sum = 0;
+                for (int i = 0; i < input.length; i++)
+                    sum += decodeTable.decode(in);
+                return sum;
+            });
+        }
+        // the whole input as one block, with one bitstream and with BlockCodec.STREAMS
+        byte[] decodedBlock = new byte[input.length];
+        for (boolean interleaved : new boolean[] {false, true}) {
+            BlockCodec.EncodedBlock encoded = BlockCodec.encodeBlock(input, input.length, 0, null, interleaved);
+            if (encoded.lengths == null)
+                continue; // stored or runs, Huffman codes would not pay off
+            DecodeTable blockTable = new DecodeTable(CodeTable.canonical(encoded.lengths));
+            int tableByte = interleaved ? BlockCodec.INTERLEAVED : 0;
+            bench(interleaved ? "decodeBlock(interleaved)" : "decodeBlock", name, input.length, seconds, filter, () -> {
+                PackedBitInputStream in = new PackedBitInputStream(ByteBuffer.wrap(encoded.codes));
+                BlockCodec.decodeBlock(in, tableByte, blockTable, decodedBlock, 0, decodedBlock.length);
+                return decodedBlock[0];
+            });
+        }
+        // each transform on its own, and the size of the input as one block after each pipeline
+        for (String stage : new String[] {"bwt", "mtf", "rle0", "dna"}) {
+            Transform transform = TransformPipeline.forName(stage);
+            byte[] transformed = transform.forward(input, input.length);
+            String benchmark = transform.getClass().getName();
+            bench(benchmark + ".forward", name, input.length, seconds, filter,
+                    () -> transform.forward(input, input.length).length);
+            bench(benchmark + ".inverse", name, input.length, seconds, filter,
+                    () -> transform.inverse(transformed, transformed.length, input.length).length);
+        }
+        if ("transform".contains(filter) || filter.contains("transform")) {
+            StringBuilder sizes = new StringBuilder("none ")
+                    .append(BlockCodec.encodeBlock(input, input.length, 0, null).size());
+            for (TransformPipeline pipeline : TransformPipeline.parse("bwt+mtf+rle0,mtf+rle0,dna")) {
+                byte[] transformed = pipeline.forward(input, input.length);
+                BlockCodec.EncodedBlock encoded = BlockCodec.encodeBlock(transformed, transformed.length, 0, null);
+                sizes.append(", ").append(pipeline).append(' ').append(encoded.size() + pipeline.size() + 4);
+            }
+            System.out.printf("%-28s %-10s %12s %s bytes%n", "transformed size", name, "", sizes);
+        }
+        bench("compress(byte[])", name, input.length, seconds, filter,
+                () -> CompressFile.compress(input).length);
+        bench("decompress(ByteBuffer)", name, input.length, seconds, filter,
+                () -> DecompressFile.decompress(compressedBuffer).length);
+        ByteBuffer contextCompressed = ByteBuffer.wrap(CompressFile.compressContext(ByteBuffer.wrap(input), 0));
+        if ("order1".contains(filter) || filter.contains("order1"))
+            System.out.printf("%-28s %-10s %12s order-0 %d, order-1 %d bytes%n", "compressed size", name, "",
+                    compressed.length, contextCompressed.remaining());
+        bench("compress(-order1)", name, input.length, seconds, filter,
+                () -> CompressFile.compressContext(ByteBuffer.wrap(input), 0).length);
+        bench("decompress(-order1)", name, input.length, seconds, filter,
+                () -> DecompressFile.decompress(contextCompressed).length);
+        StaticTable dictionary = new StaticTable(CompressFile.getCanonicalCode(smoothed(counts), 15).lengths);
+        ByteBuffer dictionaryCompressed = ByteBuffer.wrap(CompressFile.compress(ByteBuffer.wrap(input), dictionary));
+        bench("compress(-dict)", name, input.length, seconds, filter,
+                () -> CompressFile.compress(ByteBuffer.wrap(input), dictionary).length);
+        bench("decompress(-dict)", name, input.length, seconds, filter,
+                () -> DecompressFile.decompress(dictionaryCompressed, dictionary).length);
+
+        // the file benchmarks print a line per call, which is not what is being measured
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            roundTrip("file round trip", name, input.length, seconds, filter, console, source, restored, () -> {
+                CompressFile.compressFileCanonical(source, target);
+                DecompressFile.decompressCanonical(target, restored);
+                return restored.length();
+            });
+            roundTrip("file round trip -stream", name, input.length, seconds, filter, console, source, restored, () -> {
+                CompressFile.compressFileStreaming(source, target);
+                DecompressFile.decompressTree(target, restored);
+                return restored.length();
+            });
+            roundTrip("file round trip -blocks", name, input.length, seconds, filter, console, source, restored, () -> {
+                CompressFile.compressFileBlocks(source, target, BlockCodec.DEFAULT_BLOCK_SIZE,
+                        Runtime.getRuntime().availableProcessors(), 0);
+                DecompressFile.decompressBlocks(target, restored, Runtime.getRuntime().availableProcessors());
+                return restored.length();
+            });
+            TransformPipeline[] auto = TransformPipeline.parse("auto");
+            roundTrip("file round trip -transform", name, input.length, seconds, filter, console, source, restored, () -> {
+                CompressFile.compressFileBlocks(source, target, BlockCodec.DEFAULT_BLOCK_SIZE,
+                        Runtime.getRuntime().availableProcessors(), 0, null, false, auto);
+                DecompressFile.decompressBlocks(target, restored, Runtime.getRuntime().availableProcessors());
+                return restored.length();
+            });
+            roundTrip("file round trip -adaptive", name, input.length, seconds, filter, console, source, restored, () -> {
+                CompressFile.compressFileAdaptive(source, target, AdaptiveCodec.DEFAULT_REBUILD_INTERVAL);
+                DecompressFile.decompressAdaptive(target, restored);
+                return restored.length();
+            });
+        } finally {
+            System.setOut(console);
+        }
+    }
+
+    private static void bench(String benchmark, String input, long bytes, double seconds, String filter,
+                              Operation operation) throws Exception {
+        bench(benchmark, input, bytes, seconds, filter, System.out, operation);
+    }
+
+    /**
+     * Checks that a file round trip restores the input exactly, then measures it like bench().
+     * @param source the input file.
+     * @param restored the file the round trip writes the input back to.
+     * @throws IllegalStateException if the restored file differs from the input.
+     */
+    private static void roundTrip(String benchmark, String input, long bytes, double seconds, String filter,
+                                  PrintStream console, File source, File restored, Operation operation) throws Exception {
+        if (!benchmark.contains(filter))
+            return;
+        operation.run();
+        if (!Arrays.equals(Files.readAllBytes(source.toPath()), Files.readAllBytes(restored.toPath())))
+            throw new IllegalStateException(benchmark + " does not restore " + input);
+        bench(benchmark, input, bytes, seconds, filter, console, operation);
+    }
+
+    /**
+     * Warms up an operation, then runs it for the given time and prints its throughput and allocation.
+     * @param benchmark the name of the benchmark.
+     * @param input the name of the input.
+     * @param bytes the size of the input, for the throughput.
+     * @param seconds how long to measure for; the warm-up takes half as long.
+     * @param filter the benchmark is skipped unless its name contains this.
+     * @param console where the result is printed.
+     * @param operation the operation to measure.
+     */
+    private static void bench(String benchmark, String input, long bytes, double seconds, String filter,
+                              PrintStream console, Operation operation) throws Exception {
+        if (!benchmark.contains(filter))
+            return;
+
+        long result = 0;
+        long warmupEnd = System.nanoTime() + (long) (seconds * 0.5e9);
+        while (System.nanoTime() < warmupEnd)
+            result += operation.run();
+
+        long operations = 0;
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long end = start + (long) (seconds * 1e9);
+        long now;
+        do {
+            result += operation.run();
+            operations++;
+            now = System.nanoTime();
+        } while (now < end);
+        long allocated = allocatedBytes() - allocatedBefore;
+        sink += result;
+
+        double megabytesPerSecond = (double) bytes * operations / ((now - start) / 1e9) / (1 << 20);
+        console.printf("%-28s %-10s %12.1f %14d%n", benchmark, input, megabytesPerSecond,
+                (allocated < 0) ? -1 : allocated / operations);
+    }
+
+    /** returns the bytes allocated by this thread so far, or -1 if the JVM does not track it. */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return -1;
+    }
+
+    /** the counts with every byte value present, as StaticTable.train() makes them. */
+    private static long[] smoothed(long[] counts) {
+        long[] smoothed = counts.clone();
+        for (int i = 0; i < smoothed.length; i++)
+            smoothed[i]++;
+        return smoothed;
+    }
+
+    /** the input repeated to fill a buffer of at least the given size. */
+    private static ByteBuffer tile(byte[] input, int size) {
+        ByteBuffer tiled = ByteBuffer.allocate((size + input.length - 1) / input.length * input.length);
+        while (tiled.hasRemaining())
+            tiled.put(input);
+        return tiled.flip();
+    }
+
+    private static byte[] readIfExists(String path) throws IOException {
+        File file = new File(path);
+        return file.isFile() ? Files.readAllBytes(file.toPath()) : null;
+    }
+
+    /** every byte value equally likely. */
+    static byte[] uniform(int size) {
+        byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+
+    /** byte value k occurs about twice as often as k + 1, giving codes of up to 20 or so bits. */
+    static byte[] skewed(int size) {
+        Random random = new Random(42);
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++)
+            bytes[i] = (byte) Math.min(255, Long.numberOfTrailingZeros(random.nextLong() | Long.MIN_VALUE));
+        return bytes;
+    }
+
+    /** text in several scripts, encoded as UTF-8, so most characters take two or three bytes. */
+    static byte[] utf8(int size) {
+        String[] words = {"the", "Gr\u00FC\u00DFe", "na\u00EFve", "\u0395\u03BB\u03BB\u03B7\u03BD\u03B9\u03BA\u03AC", "\u0440\u0443\u0441\u0441\u043A\u0438\u0439", "\u65E5\u672C\u8A9E", "\u4E2D\u6587", "\uD55C\uAD6D\uC5B4", "\u05E2\u05D1\u05E8\u05D9\u05EA", "emoji\uD83D\uDE00"};
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder();
+        while (text.length() < size / 2)
+            text.append(words[random.nextInt(words.length)]).append((random.nextInt(8) == 0) ? '\n' : ' ');
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+        return Arrays.copyOf(bytes, Math.min(bytes.length, size));
+    }
+
+    /** one byte value repeated. */
+    static byte[] single(int size) {
+        byte[] bytes = new byte[size];
+        Arrays.fill(bytes, (byte) 'A');
+        return bytes;
+    }
+}
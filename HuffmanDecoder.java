@@ -0,0 +1,204 @@
+import java.io.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * Decompresses bytes written by CompressFile or HuffmanEncoder, for use as a library instead of
+ * from the command line. Nothing is printed and every failure is thrown to the caller as an
+ * IOException.
+ * <br> 1. decode() decompresses a whole message held in a byte array or ByteBuffer (heap or
+ * direct) in any format but the legacy serialized tree; the format is read from the header.
+ * <br> 2. wrap() returns an InputStream that decompresses a stream in the adaptive format as it is read.
+ * <p>
+ *     A decoder holds only its settings, so one instance can be shared by any number of threads.
+ *     Decode tables are taken from CodeTableCache.SHARED, so messages compressed with the same
+ *     codes do not build them again. Every message is counted and timed in HuffmanMetrics, which
+ *     is registered with JMX when this class is first used.
+ * </p>
+ */
+public final class HuffmanDecoder {
+
+    private final StaticTable dictionary;
+
+    static {
+        HuffmanMetrics.registerMBean();
+    }
+
+    /**
+     * Constructs a decoder for every format that needs no trained code table.
+     */
+    public HuffmanDecoder() {
+        this.dictionary = null;
+    }
+
+    /**
+     * Constructs a decoder that can also decompress the dictionary format made with a code table
+     * trained by CompressFile -train.
+     * @param dictionary the code table file.
+     * @throws IOException if the table cannot be read or is not a valid table.
+     */
+    public HuffmanDecoder(File dictionary) throws IOException {
+        this.dictionary = StaticTable.load(dictionary);
+    }
+
+    HuffmanDecoder(StaticTable dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Reads the length of the original message from the header of compressed bytes, for example
+     * to size the target of decode(ByteBuffer, ByteBuffer).
+     * @param compressed the compressed bytes from its position; the position is not moved.
+     * @return the length of the original message in bytes, or -1 for the adaptive format,
+     * which does not record it.
+     * @throws IOException if the bytes do not start with a header of a format this class decodes.
+     */
+    public static long decodedLength(ByteBuffer compressed) throws IOException {
+        int format = CompressedFormat.readFormat(compressed);
+        if (format == CompressedFormat.ADAPTIVE)
+            return -1;
+        if (format == CompressedFormat.LEGACY || format == CompressedFormat.TREE
+                || format == CompressedFormat.TREE_BYTES)
+            throw new IOException("Not a compressed message");
+        return CompressedFormat.readHeader(compressed, format).originalLength;
+    }
+
+    /**
+     * Decompresses a message.
+     * @param compressed the compressed bytes.
+     * @return the original bytes.
+     * @throws IOException if the bytes are corrupt or truncated, in the legacy format, compressed with a
+     *                     code table this decoder does not have, or decompress to more than fits in an array.
+     */
+    public byte[] decode(byte[] compressed) throws IOException {
+        return decode(ByteBuffer.wrap(compressed));
+    }
+
+    /**
+     * Decompresses a message.
+     * @param compressed the compressed bytes from its position to its limit; the position is not moved.
+     * @return the original bytes.
+     * @throws IOException if the bytes are corrupt or truncated, in the legacy format, compressed with a
+     *                     code table this decoder does not have, or decompress to more than fits in an array.
+     *                     The checksum in the header is compared with the decoded bytes.
+     */
+    public byte[] decode(ByteBuffer compressed) throws IOException {
+        int format = CompressedFormat.readFormat(compressed);
+        boolean adaptive = format == CompressedFormat.ADAPTIVE;
+        HuffmanMetrics.Run run = HuffmanMetrics.start("decompress", DecompressFile.formatName(format, false));
+        byte[] original;
+        if (adaptive) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(compressed.remaining() * 2);
+            AdaptiveCodec.decompress(new PackedBitInputStream(compressed.duplicate()), bytes);
+            original = bytes.toByteArray();
+        } else {
+            original = DecompressFile.decompress(compressed, dictionary);
+        }
+        run.phase(HuffmanMetrics.Phase.DECODE);
+        run.finish(compressed.remaining(), original.length);
+        return original;
+    }
+
+    /**
+     * Decompresses a message into a buffer. Both buffers may be heap or direct buffers.
+     * @param source the compressed bytes from its position to its limit, and its position is
+     *               moved to its limit.
+     * @param target the original bytes are stored from its position, which is moved past them.
+     * @return the number of original bytes.
+     * @throws IOException if the bytes are corrupt, see decode(ByteBuffer).
+     * @throws BufferOverflowException if target has too little room; then neither position is moved.
+     */
+    public int decode(ByteBuffer source, ByteBuffer target) throws IOException {
+        long originalLength = decodedLength(source);
+        if (originalLength > target.remaining())
+            throw new BufferOverflowException();
+        byte[] original = decode(source);
+        if (original.length > target.remaining())
+            throw new BufferOverflowException();
+        target.put(original);
+        source.position(source.limit());
+        return original.length;
+    }
+
+    /**
+     * Decompresses a stream in the adaptive format until its end. Neither stream is closed.
+     * @param in the compressed stream.
+     * @param out the stream the original bytes are written to.
+     * @throws IOException if the compressed stream is corrupt or ends early, or a stream fails.
+     */
+    public void decode(InputStream in, OutputStream out) throws IOException {
+        AdaptiveCodec.decompress(in, out);
+    }
+
+    /**
+     * Returns a stream that decompresses a stream in the adaptive format, written by
+     * HuffmanEncoder.wrap() or CompressFile -adaptive, as it is read. Closing it closes in.
+     * Like other streams, it must not be read by several threads at once.
+     * @param in the compressed stream.
+     * @return the decompressing stream.
+     */
+    public InputStream wrap(InputStream in) {
+        return new DecodingInputStream(in);
+    }
+
+    /** reads a compressed stream a frame at a time. */
+    private static class DecodingInputStream extends InputStream {
+        private final DataInputStream in;
+        private AdaptiveCodec codec;
+        private final byte[] frame = new byte[AdaptiveCodec.FRAME_SIZE];
+        private int position;
+        private int count;
+        private boolean ended;
+
+        DecodingInputStream(InputStream in) {
+            this.in = new DataInputStream(new BufferedInputStream(in));
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill())
+                return -1;
+            return frame[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            if (len == 0)
+                return 0;
+            if (!fill())
+                return -1;
+            int n = Math.min(len, count - position);
+            System.arraycopy(frame, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return count - position;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        /** decodes the next frame if this one is used up; returns false at the end of the stream. */
+        private boolean fill() throws IOException {
+            // the header is read on the first read, so that wrap() does not block
+            if (codec == null)
+                codec = AdaptiveCodec.readHeader(in);
+            while (position == count && !ended) {
+                count = codec.readFrame(in, frame);
+                position = 0;
+                if (count < 0) {
+                    count = 0;
+                    ended = true;
+                }
+            }
+            return position < count;
+        }
+    }
+}
@@ -0,0 +1,358 @@
+import java.io.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.zip.Checksum;
+
+/**
+ * Compresses bytes in the same formats as CompressFile, for use as a library instead of from
+ * the command line. Nothing is printed and every failure is thrown to the caller.
+ * <br> 1. encode() compresses a whole message held in a byte array or ByteBuffer (heap or direct)
+ * into the canonical format, the context format (order-1) or the dictionary format. Like
+ * CompressFile, the canonical encoder stores a message as it is or as runs when Huffman codes
+ * would not pay off (see FallbackCodec).
+ * <br> 2. wrap() returns an OutputStream that compresses everything written to it in one pass
+ * into the adaptive format, for data whose length is not known in advance.
+ * <p>
+ *     An encoder holds only its settings, so one instance can be shared by any number of threads.
+ *     The counts, code tables and output buffer used while encoding belong to the calling thread
+ *     and are reused by its next call, so encoding many messages allocates little besides the results.
+ *     Decompress with HuffmanDecoder or DecompressFile. Every message is counted and timed in
+ *     HuffmanMetrics, which is registered with JMX when this class is first used.
+ * </p>
+ */
+public final class HuffmanEncoder {
+
+    /** per-thread state reused from one call to the next. */
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    /** output buffers larger than this are not kept for the next call. */
+    private static final int MAX_RETAINED_BUFFER = 1 << 20;
+
+    static {
+        HuffmanMetrics.registerMBean();
+    }
+
+    private static class Scratch {
+        final long[] counts = new long[256];
+        final CodeLengths codeLengths = new CodeLengths();
+        final CodeTable codeTable = new CodeTable();
+        final Checksum checksum = CompressedFormat.newChecksum();
+        long[][] contextCounts;
+        Output bytes;
+        PackedBitOutputStream bits;
+
+        /** returns the bit stream, writing into an empty buffer. */
+        PackedBitOutputStream bits() {
+            if (bytes == null || bytes.size() > MAX_RETAINED_BUFFER) {
+                bytes = new Output();
+                bits = new PackedBitOutputStream(bytes, 16 * 1024);
+            }
+            bytes.reset();
+            return bits;
+        }
+    }
+
+    /** a ByteArrayOutputStream that can copy its bytes into a ByteBuffer without an extra array. */
+    private static class Output extends ByteArrayOutputStream {
+        Output() {
+            super(4096);
+        }
+
+        void copyTo(ByteBuffer target) {
+            target.put(buf, 0, count);
+        }
+    }
+
+    private final int maxLength;
+    private final boolean order1;
+    private final StaticTable dictionary;
+
+    /**
+     * Constructs an encoder for the canonical format with codes of any length, what CompressFile
+     * writes by default.
+     */
+    public HuffmanEncoder() {
+        this(0, false);
+    }
+
+    /**
+     * Constructs an encoder for the canonical or context format.
+     * @param maxLength the longest code allowed, or 0 for no limit.
+     * @param order1 true to code each byte with a table chosen by the byte before it (-order1).
+     * @throws IllegalArgumentException if maxLength is negative. Encoding throws it too if a message
+     *                                  has more byte values than codes of maxLength bits allow.
+     */
+    public HuffmanEncoder(int maxLength, boolean order1) {
+        if (maxLength < 0)
+            throw new IllegalArgumentException("Negative code length limit " + maxLength);
+        this.maxLength = maxLength;
+        this.order1 = order1;
+        this.dictionary = null;
+    }
+
+    /**
+     * Constructs an encoder for the dictionary format, with a code table trained by CompressFile -train.
+     * @param dictionary the code table file.
+     * @throws IOException if the table cannot be read or is not a valid table.
+     */
+    public HuffmanEncoder(File dictionary) throws IOException {
+        this(StaticTable.load(dictionary));
+    }
+
+    HuffmanEncoder(StaticTable dictionary) {
+        this.maxLength = 0;
+        this.order1 = false;
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Compresses a message.
+     * @param data the bytes to compress.
+     * @return the compressed bytes.
+     */
+    public byte[] encode(byte[] data) {
+        return encode(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Compresses a message, the same bytes CompressFile writes for a file with this content.
+     * @param data the bytes from its position to its limit are compressed; the position is not moved.
+     * @return the compressed bytes.
+     */
+    public byte[] encode(ByteBuffer data) {
+        return encodeToScratch(data).toByteArray();
+    }
+
+    /**
+     * Compresses a message into a buffer. Both buffers may be heap or direct buffers.
+     * @param source the bytes from its position to its limit are compressed, and its position
+     *               is moved to its limit.
+     * @param target the compressed bytes are stored from its position, which is moved past them.
+     * @return the number of compressed bytes.
+     * @throws BufferOverflowException if target has too little room; then neither position is moved.
+     */
+    public int encode(ByteBuffer source, ByteBuffer target) {
+        Output bytes = encodeToScratch(source);
+        if (bytes.size() > target.remaining())
+            throw new BufferOverflowException();
+        bytes.copyTo(target);
+        source.position(source.limit());
+        return bytes.size();
+    }
+
+    /**
+     * Compresses a stream until it ends, in one pass into the adaptive format. Neither stream is closed.
+     * @param in the stream to compress.
+     * @param out the stream the compressed bytes are written to.
+     * @throws IOException if a stream fails.
+     */
+    public void encode(InputStream in, OutputStream out) throws IOException {
+        AdaptiveCodec.compress(in, out, AdaptiveCodec.DEFAULT_REBUILD_INTERVAL);
+    }
+
+    /**
+     * Returns a stream that compresses everything written to it in one pass into the adaptive
+     * format (see AdaptiveCodec), whatever the settings of this encoder. Flushing it writes
+     * the bytes so far as a frame of their own, and closing it ends the compressed stream and
+     * closes out. Like other streams, it must not be written by several threads at once.
+     * @param out the stream the compressed bytes are written to.
+     * @return the compressing stream.
+     * @throws IOException if the header cannot be written to out.
+     */
+    public OutputStream wrap(OutputStream out) throws IOException {
+        return new EncodingOutputStream(out);
+    }
+
+    /** compresses a message into this thread's output buffer, which is returned. */
+    private Output encodeToScratch(ByteBuffer data) {
+        Scratch scratch = SCRATCH.get();
+        PackedBitOutputStream out = scratch.bits();
+        HuffmanMetrics.Run run = HuffmanMetrics.start("compress",
+                (dictionary != null) ? "dict" : order1 ? "order1" : "canonical");
+        scratch.checksum.reset();
+        scratch.checksum.update(data.duplicate());
+        int checksum = (int) scratch.checksum.getValue();
+        try {
+            if (dictionary != null) {
+                CompressedFormat.writeHeader(out, CompressedFormat.DICTIONARY, data.remaining(), checksum);
+                out.writeInt(dictionary.id);
+                CompressFile.writeMessage(dictionary.codeTable, data, out);
+            } else if (order1) {
+                encodeContext(data, checksum, scratch, run, out);
+            } else if (!data.hasRemaining()) {
+                CompressedFormat.writeHeader(out, CompressedFormat.CANONICAL, 0, checksum);
+            } else {
+                encodeCanonical(data, checksum, scratch, run, out);
+            }
+            out.alignToByte();
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // a ByteArrayOutputStream does not throw
+        }
+        run.phase(HuffmanMetrics.Phase.ENCODE);
+        run.finish(data.remaining(), scratch.bytes.size());
+        return scratch.bytes;
+    }
+
+    private void encodeCanonical(ByteBuffer data, int checksum, Scratch scratch, HuffmanMetrics.Run run,
+                                 PackedBitOutputStream out) throws IOException {
+        int length = data.remaining();
+        long[] counts = scratch.counts;
+        Arrays.fill(counts, 0);
+        ByteCounter.countParallel(data, counts);
+        run.phase(HuffmanMetrics.Phase.COUNT);
+
+        long runBytes = -1;
+        if (FallbackCodec.mayRun(counts, length))
+            runBytes = data.hasArray()
+                    ? FallbackCodec.runBytes(data.array(), data.arrayOffset() + data.position(), length)
+                    : FallbackCodec.runBytes(new ByteBufferInput(data.duplicate()));
+        CodeTable codeTable = null;
+        long huffmanBytes = -1;
+        if (FallbackCodec.mayPayOff(counts, length)) {
+            codeTable = scratch.codeLengths.canonicalCode(counts, maxLength, scratch.codeTable);
+            huffmanBytes = FallbackCodec.tableSize(counts) + (codeTable.encodedLength(counts) + 7) / 8;
+        }
+        int choice = FallbackCodec.choose(length, huffmanBytes, runBytes);
+        run.phase(HuffmanMetrics.Phase.BUILD_TABLE);
+
+        if (choice == FallbackCodec.STORED) {
+            CompressedFormat.writeHeader(out, CompressedFormat.STORED, length, checksum);
+            if (data.hasArray())
+                out.write(data.array(), data.arrayOffset() + data.position(), length);
+            else
+                new ByteBufferInput(data.duplicate()).transferTo(out);
+        } else if (choice == FallbackCodec.RUNS) {
+            CompressedFormat.writeHeader(out, CompressedFormat.RUNS, length, checksum);
+            FallbackCodec.writeRuns(new ByteBufferInput(data.duplicate()), out);
+        } else {
+            CompressedFormat.writeHeader(out, CompressedFormat.CANONICAL, length, checksum);
+            CompressedFormat.writeCodeLengths(out, codeTable.lengths);
+            CompressFile.writeMessage(codeTable, data, out);
+        }
+    }
+
+    /** reads the bytes of a buffer, moving its position. */
+    private static class ByteBufferInput extends InputStream {
+        private final ByteBuffer bytes;
+
+        ByteBufferInput(ByteBuffer bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read() {
+            return bytes.hasRemaining() ? bytes.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!bytes.hasRemaining())
+                return -1;
+            len = Math.min(len, bytes.remaining());
+            bytes.get(b, off, len);
+            return len;
+        }
+    }
+
+    private void encodeContext(ByteBuffer data, int checksum, Scratch scratch, HuffmanMetrics.Run run,
+                               PackedBitOutputStream out) throws IOException {
+        int length = data.remaining();
+        if (length == 0) {
+            CompressedFormat.writeHeader(out, CompressedFormat.CONTEXT, length, checksum);
+            return;
+        }
+
+        byte[] array;
+        int offset;
+        if (data.hasArray()) {
+            array = data.array();
+            offset = data.arrayOffset() + data.position();
+        } else {
+            array = new byte[length];
+            data.duplicate().get(array);
+            offset = 0;
+        }
+        if (scratch.contextCounts == null)
+            scratch.contextCounts = new long[256][256];
+        long[][] counts = scratch.contextCounts;
+        for (long[] row : counts)
+            Arrays.fill(row, 0);
+        ContextModel.count(counts, array, offset, length, 0);
+        long[] order0 = ContextModel.order0(counts);
+        long runBytes = FallbackCodec.mayRun(order0, length) ? FallbackCodec.runBytes(array, offset, length) : -1;
+        ContextModel model = ContextModel.build(counts, maxLength);
+        if (!model.paysOff(counts, order0, maxLength, runBytes)) {
+            // the same bytes compressFileContext() writes for a file order-1 codes do not pay for
+            encodeCanonical(data, checksum, scratch, run, out);
+            return;
+        }
+        CompressedFormat.writeHeader(out, CompressedFormat.CONTEXT, length, checksum);
+        model.write(out);
+        model.encode(array, offset, length, 0, out);
+    }
+
+    /** buffers what is written to it and compresses it a frame at a time. */
+    private static class EncodingOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final AdaptiveCodec codec;
+        private final byte[] frame = new byte[AdaptiveCodec.FRAME_SIZE];
+        private int count;
+        private boolean closed;
+
+        EncodingOutputStream(OutputStream out) throws IOException {
+            this.out = new DataOutputStream(out);
+            this.codec = AdaptiveCodec.writeHeader(this.out, AdaptiveCodec.DEFAULT_REBUILD_INTERVAL);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (closed)
+                throw new IOException("Stream closed");
+            if (count == frame.length)
+                writeFrame();
+            frame[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            if (closed)
+                throw new IOException("Stream closed");
+            while (len > 0) {
+                if (count == frame.length)
+                    writeFrame();
+                int n = Math.min(len, frame.length - count);
+                System.arraycopy(b, off, frame, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (closed)
+                return;
+            writeFrame();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            writeFrame();
+            AdaptiveCodec.writeEnd(out);
+            out.close();
+        }
+
+        private void writeFrame() throws IOException {
+            codec.writeFrame(frame, count, out);
+            count = 0;
+        }
+    }
+}
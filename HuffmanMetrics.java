@@ -0,0 +1,298 @@
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and phase timings of compression and decompression, cheap enough to leave on.
+ * <br> 1. Each compression or decompression is a Run, which times its phases (one System.nanoTime()
+ * call per phase, not per byte) and may record the entropy of the input and the average length
+ * of the codes used for it.
+ * <br> 2. A finished run is added to process-wide totals kept in LongAdders, which many threads
+ * can update without contention, and its summary becomes the last run.
+ * <br> 3. The totals can be read over JMX (see HuffmanMetricsMBean) once registerMBean() has been
+ * called, which HuffmanEncoder and HuffmanDecoder do, and a run's summary is available as one
+ * line of JSON, which CompressFile and DecompressFile print to standard error with -metrics.
+ */
+public class HuffmanMetrics implements HuffmanMetricsMBean {
+
+    /** the phases a run is timed in. */
+    enum Phase {
+        READ, COUNT, BUILD_TABLE, ENCODE, WRITE, DECODE;
+
+        final String jsonName() {
+            String[] words = name().toLowerCase(Locale.ROOT).split("_");
+            return (words.length == 1) ? words[0] : words[0] + Character.toUpperCase(words[1].charAt(0))
+                    + words[1].substring(1);
+        }
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    /** the totals of this process. */
+    static final HuffmanMetrics GLOBAL = new HuffmanMetrics();
+
+    /**
+     * incremented wherever Huffman codes are computed from counts, or decode tables built; never
+     * reset, since runs in progress measure against them.
+     */
+    static final LongAdder CODE_TABLES_BUILT = new LongAdder();
+    static final LongAdder DECODE_TABLES_BUILT = new LongAdder();
+
+    private final LongAdder compressRuns = new LongAdder();
+    private final LongAdder decompressRuns = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder compressedIn = new LongAdder();
+    private final LongAdder compressedOut = new LongAdder();
+    private final LongAdder[] phaseNanos = new LongAdder[PHASES.length];
+    private volatile Run lastRun;
+    /** the table counters when reset() was last called, which the MBean getters count from. */
+    private volatile long codeTablesAtReset;
+    private volatile long decodeTablesAtReset;
+    private static boolean registered;
+
+    private HuffmanMetrics() {
+        for (int i = 0; i < phaseNanos.length; i++)
+            phaseNanos[i] = new LongAdder();
+    }
+
+    /**
+     * Registers the totals with the platform MBean server as huffman:type=HuffmanMetrics, once.
+     * A failure is ignored: the totals are still kept.
+     */
+    static synchronized void registerMBean() {
+        if (registered)
+            return;
+        registered = true;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(GLOBAL, new ObjectName("huffman:type=HuffmanMetrics"));
+        } catch (JMException | SecurityException e) {
+            // metrics stay available through GLOBAL and the JSON summaries
+        }
+    }
+
+    /**
+     * Starts timing a run.
+     * @param operation "compress" or "decompress".
+     * @param format the name of the format, as used on the command line.
+     * @return the run.
+     */
+    static Run start(String operation, String format) {
+        return new Run(operation, format);
+    }
+
+    /** one compression or decompression, timed phase by phase. */
+    static class Run {
+        final String operation;
+        final String format;
+        final long[] nanos = new long[PHASES.length];
+        private final long start;
+        private long mark;
+        private final long codeTablesAtStart = CODE_TABLES_BUILT.sum();
+        private final long decodeTablesAtStart = DECODE_TABLES_BUILT.sum();
+        long codeTablesBuilt;
+        long decodeTablesBuilt;
+        long bytesIn;
+        long bytesOut;
+        long totalNanos;
+        /** bits per byte of the input's order-0 entropy and of the codes used, or NaN if not recorded. */
+        double entropy = Double.NaN;
+        double averageCodeLength = Double.NaN;
+
+        private Run(String operation, String format) {
+            this.operation = operation;
+            this.format = format;
+            this.start = System.nanoTime();
+            this.mark = start;
+        }
+
+        /**
+         * Ends a phase: the time since the previous phase ended (or the run started) is added to it.
+         * @param phase the phase that just ended.
+         */
+        void phase(Phase phase) {
+            long now = System.nanoTime();
+            nanos[phase.ordinal()] += now - mark;
+            mark = now;
+        }
+
+        /**
+         * Records the entropy of the byte counts and the average length of the codes used for them.
+         * @param counts the count of each byte value.
+         * @param codeTable the codes the bytes are written with.
+         */
+        void code(long[] counts, CodeTable codeTable) {
+            long total = 0;
+            for (long count : counts)
+                total += count;
+            if (total == 0)
+                return;
+            entropy = FallbackCodec.entropy(counts);
+            averageCodeLength = (double) codeTable.encodedLength(counts) / total;
+        }
+
+        /**
+         * Records the entropy and average code length like code(long[], CodeTable), from int counts.
+         * @param frequencies the count of each character.
+         * @param codeTable the codes the characters are written with.
+         */
+        void code(int[] frequencies, CodeTable codeTable) {
+            long[] counts = new long[frequencies.length];
+            for (int i = 0; i < counts.length; i++)
+                counts[i] = frequencies[i];
+            code(counts, codeTable);
+        }
+
+        /**
+         * Ends the run and adds it to the process totals.
+         * @param bytesIn the bytes read: the original length when compressing.
+         * @param bytesOut the bytes written.
+         * @return this run.
+         */
+        Run finish(long bytesIn, long bytesOut) {
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+            this.totalNanos = System.nanoTime() - start;
+            this.codeTablesBuilt = CODE_TABLES_BUILT.sum() - codeTablesAtStart;
+            this.decodeTablesBuilt = DECODE_TABLES_BUILT.sum() - decodeTablesAtStart;
+            GLOBAL.add(this);
+            return this;
+        }
+
+        /**
+         * Returns the summary of the run as a JSON object on one line. The table counts include
+         * tables built by other threads during the run.
+         * @return the JSON text.
+         */
+        String toJson() {
+            StringBuilder json = new StringBuilder(320);
+            json.append("{\"operation\":\"").append(operation).append("\",\"format\":\"").append(format)
+                    .append("\",\"bytesIn\":").append(bytesIn).append(",\"bytesOut\":").append(bytesOut);
+            long original = operation.equals("compress") ? bytesIn : bytesOut;
+            long compressed = operation.equals("compress") ? bytesOut : bytesIn;
+            if (original > 0)
+                json.append(",\"ratio\":").append(String.format(Locale.ROOT, "%.4f", (double) compressed / original));
+            if (!Double.isNaN(entropy))
+                json.append(String.format(Locale.ROOT, ",\"entropy\":%.4f,\"averageCodeLength\":%.4f",
+                        entropy, averageCodeLength));
+            json.append(",\"codeTablesBuilt\":").append(codeTablesBuilt)
+                    .append(",\"decodeTablesBuilt\":").append(decodeTablesBuilt)
+                    .append(",\"totalNanos\":").append(totalNanos).append(",\"phaseNanos\":{");
+            boolean first = true;
+            for (Phase phase : PHASES) {
+                if (nanos[phase.ordinal()] == 0)
+                    continue;
+                json.append(first ? "" : ",").append('"').append(phase.jsonName()).append("\":")
+                        .append(nanos[phase.ordinal()]);
+                first = false;
+            }
+            return json.append("}}").toString();
+        }
+    }
+
+    private void add(Run run) {
+        (run.operation.equals("compress") ? compressRuns : decompressRuns).increment();
+        bytesIn.add(run.bytesIn);
+        bytesOut.add(run.bytesOut);
+        if (run.operation.equals("compress")) {
+            compressedIn.add(run.bytesIn);
+            compressedOut.add(run.bytesOut);
+        }
+        for (int i = 0; i < phaseNanos.length; i++) {
+            if (run.nanos[i] != 0)
+                phaseNanos[i].add(run.nanos[i]);
+        }
+        lastRun = run;
+    }
+
+    /** returns the last finished run, or null. */
+    Run lastRun() {
+        return lastRun;
+    }
+
+    @Override
+    public long getCompressRuns() {
+        return compressRuns.sum();
+    }
+
+    @Override
+    public long getDecompressRuns() {
+        return decompressRuns.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        long original = compressedIn.sum();
+        return (original == 0) ? 0 : (double) compressedOut.sum() / original;
+    }
+
+    @Override
+    public long getReadNanos() {
+        return phaseNanos[Phase.READ.ordinal()].sum();
+    }
+
+    @Override
+    public long getCountNanos() {
+        return phaseNanos[Phase.COUNT.ordinal()].sum();
+    }
+
+    @Override
+    public long getBuildTableNanos() {
+        return phaseNanos[Phase.BUILD_TABLE.ordinal()].sum();
+    }
+
+    @Override
+    public long getEncodeNanos() {
+        return phaseNanos[Phase.ENCODE.ordinal()].sum();
+    }
+
+    @Override
+    public long getWriteNanos() {
+        return phaseNanos[Phase.WRITE.ordinal()].sum();
+    }
+
+    @Override
+    public long getDecodeNanos() {
+        return phaseNanos[Phase.DECODE.ordinal()].sum();
+    }
+
+    @Override
+    public long getCodeTablesBuilt() {
+        return CODE_TABLES_BUILT.sum() - codeTablesAtReset;
+    }
+
+    @Override
+    public long getDecodeTablesBuilt() {
+        return DECODE_TABLES_BUILT.sum() - decodeTablesAtReset;
+    }
+
+    @Override
+    public String getLastRun() {
+        Run run = lastRun;
+        return (run == null) ? "" : run.toJson();
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder adder : new LongAdder[] {compressRuns, decompressRuns, bytesIn, bytesOut,
+                compressedIn, compressedOut})
+            adder.reset();
+        for (LongAdder adder : phaseNanos)
+            adder.reset();
+        codeTablesAtReset = CODE_TABLES_BUILT.sum();
+        decodeTablesAtReset = DECODE_TABLES_BUILT.sum();
+        lastRun = null;
+    }
+}
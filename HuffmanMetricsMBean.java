@@ -0,0 +1,44 @@
+/**
+ * The management interface of HuffmanMetrics, the attributes JMX clients such as jconsole see
+ * under the name huffman:type=HuffmanMetrics. Times are in nanoseconds and totals are since
+ * the process started or reset() was last called.
+ */
+public interface HuffmanMetricsMBean {
+
+    long getCompressRuns();
+
+    long getDecompressRuns();
+
+    /** bytes read by compression and decompression runs. */
+    long getBytesIn();
+
+    /** bytes written by compression and decompression runs. */
+    long getBytesOut();
+
+    /** compressed bytes per original byte over all compression runs. */
+    double getCompressionRatio();
+
+    long getReadNanos();
+
+    long getCountNanos();
+
+    long getBuildTableNanos();
+
+    long getEncodeNanos();
+
+    long getWriteNanos();
+
+    long getDecodeNanos();
+
+    /** number of Huffman codes computed from byte counts. */
+    long getCodeTablesBuilt();
+
+    /** number of decode tables built from code lengths. */
+    long getDecodeTablesBuilt();
+
+    /** the summary of the last finished run, as a JSON object. */
+    String getLastRun();
+
+    /** sets every total back to zero and forgets the last run. */
+    void reset();
+}
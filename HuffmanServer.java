@@ -0,0 +1,620 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A long-running compression server, so that programs which compress many small messages pay
+ * for starting and warming up a JVM once instead of once per message.
+ * <br> 1. Listens on a Unix domain socket (-socket PATH) or on a TCP port of the loopback
+ * address only (-port N, DEFAULT_PORT by default). Each connection may send any number of
+ * requests, one after another.
+ * <br> 2. A connection's thread reads each request whole into the connection's buffer, then
+ * waits for one of the -workers + -queue slots, and reads nothing more until the response is
+ * written. While every slot is taken, the clients' writes block once the socket buffers fill:
+ * the server pushes back instead of buffering an unbounded backlog. At most -connections clients
+ * are served at once; the rest wait to be accepted.
+ * <br> 3. Requests are handed to a pool of -workers threads with a queue of -queue requests.
+ * A worker only codes the request's bytes with HuffmanEncoder or HuffmanDecoder, whose counts
+ * and code tables belong to the worker thread and are reused by its next request, into the
+ * connection's response buffer. Workers never touch a socket, so a slow client cannot hold one.
+ * <br> 4. A client that sends or takes nothing for -timeout seconds in the middle of a request
+ * or its response is disconnected. Between requests, a connection may stay idle for any time.
+ * <br> 5. A request that fails, such as corrupt compressed bytes or a missing file, gets an
+ * ERROR response with the message, and the connection stays open.
+ * <br> 6. Files are read and written only for clients on the Unix domain socket, which only the
+ * server's own user may connect to. Any local user can connect to the TCP port, so there the
+ * file commands are refused and only messages are coded.
+ * <p>
+ *     Usage: java HuffmanServer [-socket PATH | -port N] [-workers N] [-queue N] [-connections N]
+ *     [-maxrequest SIZE] [-timeout SECONDS] [-order1] [-maxlen N] [-dict TABLE]
+ * </p>
+ * <p>
+ *     Protocol, all integers big-endian: a request is a command byte, the length of its bytes
+ *     (4 bytes) and the bytes. COMPRESS and DECOMPRESS send a whole message and get back the
+ *     compressed or original bytes, in the formats CompressFile writes by default (or with
+ *     -order1, -maxlen, -dict). COMPRESS_FILE and DECOMPRESS_FILE send a flags byte, then the
+ *     paths of the source and target files in UTF-8, separated by a zero byte, and get back the
+ *     length of the file written (8 bytes). A target that already exists is an error unless the
+ *     flags include OVERWRITE. A response is a status byte, OK or ERROR, the length of its bytes
+ *     (4 bytes) and the bytes: the result, or the message of an error in UTF-8. See Client.
+ * </p>
+ */
+public class HuffmanServer {
+
+    /** commands, the first byte of a request. */
+    static final int COMPRESS = 'C';
+    static final int DECOMPRESS = 'D';
+    static final int COMPRESS_FILE = 'c';
+    static final int DECOMPRESS_FILE = 'd';
+    /** flag of a file request that may replace an existing target. */
+    static final int OVERWRITE = 1;
+
+    /** statuses, the first byte of a response. */
+    static final int OK = 0;
+    static final int ERROR = 1;
+
+    /** TCP port listened on when neither -socket nor -port is given. */
+    static final int DEFAULT_PORT = 7473;
+    /** default largest request, in bytes. */
+    static final int DEFAULT_MAX_REQUEST = 256 << 20;
+    /** default longest wait for a client in the middle of a request, in seconds. */
+    static final int DEFAULT_TIMEOUT = 30;
+    /** connection buffers larger than this are not kept for the next request. */
+    private static final int MAX_RETAINED_BUFFER = 16 << 20;
+    /** bytes of the head of a request or response: a command or status byte and a length. */
+    private static final int HEAD_SIZE = 5;
+
+    /** a connection's buffers, reused from one request to the next. */
+    private static class Buffers {
+        ByteBuffer request = ByteBuffer.allocate(64 * 1024);
+        ByteBuffer response = ByteBuffer.allocateDirect(64 * 1024);
+        final ByteBuffer head = ByteBuffer.allocateDirect(HEAD_SIZE);
+
+        /** returns the request buffer, cleared and limited to length bytes. */
+        ByteBuffer request(int length) {
+            if (request.capacity() < length || request.capacity() > MAX_RETAINED_BUFFER)
+                request = ByteBuffer.allocate(Math.max(length, 64 * 1024));
+            request.clear().limit(length);
+            return request;
+        }
+
+        /** returns the response buffer, cleared, with room for at least length bytes. */
+        ByteBuffer response(int length) {
+            if (response.capacity() < length || response.capacity() > MAX_RETAINED_BUFFER)
+                response = ByteBuffer.allocateDirect(Math.max(length, 64 * 1024));
+            response.clear();
+            return response;
+        }
+    }
+
+    private final HuffmanEncoder encoder;
+    private final HuffmanDecoder decoder;
+    private final int maxRequest;
+    /** longest wait for a client in the middle of a request or response, in milliseconds. */
+    private final long timeout;
+    private final int workerCount;
+    private final ExecutorService workers;
+    /** a slot for each worker and each place in its queue, taken before a request is read. */
+    private final Semaphore slots;
+    private final Semaphore connections;
+    private final ExecutorService connectionThreads = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "huffman-connection");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Constructs a server that is not listening yet.
+     * @param encoder compresses the messages and files of requests.
+     * @param decoder decompresses them.
+     * @param workers the number of threads coding requests.
+     * @param queue the number of requests waiting for a worker before the server stops reading.
+     * @param connections the number of clients served at once.
+     * @param maxRequest the largest request accepted, in bytes.
+     * @param timeout the longest wait for a client in the middle of a request or response, in milliseconds.
+     */
+    HuffmanServer(HuffmanEncoder encoder, HuffmanDecoder decoder, int workers, int queue, int connections,
+                  int maxRequest, long timeout) {
+        this.encoder = encoder;
+        this.decoder = decoder;
+        this.maxRequest = maxRequest;
+        this.timeout = Math.max(1, timeout);
+        workers = Math.max(1, workers);
+        queue = Math.max(0, queue);
+        this.workerCount = workers;
+        // the slots bound the queue; a bounded queue of its own could reject a request submitted
+        // between a worker finishing its last one and taking the next
+        this.workers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "huffman-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.slots = new Semaphore(workers + queue);
+        this.connections = new Semaphore(Math.max(1, connections));
+    }
+
+    /**
+     * Runs a server from the command line until it is stopped.
+     * @param args the options, see the class comment.
+     */
+    public static void main(String[] args) {
+        String socket = null;
+        int port = DEFAULT_PORT;
+        int workers = Runtime.getRuntime().availableProcessors();
+        int queue = -1;
+        int connections = 64;
+        int maxRequest = DEFAULT_MAX_REQUEST;
+        int timeout = DEFAULT_TIMEOUT;
+        int maxLength = 0;
+        boolean order1 = false;
+        File dictionary = null;
+        int i = 0;
+        try {
+            while (i < args.length) {
+                if (args[i].equals("-socket") && i + 1 < args.length) {
+                    socket = args[++i];
+                } else if (args[i].equals("-port") && i + 1 < args.length) {
+                    port = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-workers") && i + 1 < args.length) {
+                    workers = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-queue") && i + 1 < args.length) {
+                    queue = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-connections") && i + 1 < args.length) {
+                    connections = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-maxrequest") && i + 1 < args.length) {
+                    maxRequest = CompressFile.parseSize(args[++i]);
+                } else if (args[i].equals("-timeout") && i + 1 < args.length) {
+                    timeout = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-order1")) {
+                    order1 = true;
+                } else if (args[i].equals("-maxlen") && i + 1 < args.length) {
+                    maxLength = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-dict") && i + 1 < args.length) {
+                    dictionary = new File(args[++i]);
+                } else {
+                    System.out.println("Unknown option: " + args[i]);
+                    printUsage();
+                    return;
+                }
+                i++;
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Not a number: " + args[i]);
+            printUsage();
+            return;
+        }
+
+        try {
+            HuffmanEncoder encoder = (dictionary != null) ? new HuffmanEncoder(dictionary)
+                    : new HuffmanEncoder(maxLength, order1);
+            HuffmanDecoder decoder = (dictionary != null) ? new HuffmanDecoder(dictionary) : new HuffmanDecoder();
+            // by default two requests wait for each worker
+            HuffmanServer server = new HuffmanServer(encoder, decoder, workers,
+                    (queue >= 0) ? queue : 2 * Math.max(1, workers), connections, maxRequest,
+                    timeout * 1000L);
+            if (socket != null)
+                server.serve(Paths.get(socket));
+            else
+                server.serve(port);
+        } catch (Exception e) {
+            System.out.println(e);
+        }
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: java HuffmanServer [-socket PATH | -port N] [-workers N] [-queue N]"
+                + " [-connections N] [-maxrequest SIZE] [-timeout SECONDS] [-order1] [-maxlen N] [-dict TABLE]");
+    }
+
+    /**
+     * Listens on a Unix domain socket until the process is stopped. A socket file left behind
+     * by a server that is no longer running is replaced, and the file is removed on exit.
+     * @param path the path of the socket file.
+     * @throws IOException if the socket cannot be created or another server is listening on it.
+     */
+    void serve(Path path) throws IOException {
+        UnixDomainSocketAddress address = UnixDomainSocketAddress.of(path);
+        if (Files.exists(path)) {
+            boolean listening;
+            try {
+                SocketChannel probe = SocketChannel.open(address);
+                probe.close();
+                listening = true;
+            } catch (IOException e) {
+                listening = false;
+            }
+            if (listening)
+                throw new IOException("A server is already listening on " + path);
+            Files.delete(path);
+        }
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(address);
+        try {
+            // connecting needs write permission on the socket file
+            Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            // no POSIX permissions here: the directory holding the socket must keep other users out
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+                Files.deleteIfExists(path);
+            } catch (IOException ignored) {
+                // exiting anyway
+            }
+        }));
+        serve(server, address, true);
+    }
+
+    /**
+     * Listens on a TCP port of the loopback address until the process is stopped. File requests
+     * are refused, since any local user can connect.
+     * @param port the port, or 0 for any free port.
+     * @throws IOException if the port cannot be listened on.
+     */
+    void serve(int port) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        serve(server, server.getLocalAddress(), false);
+    }
+
+    /**
+     * Accepts clients, each served on a thread of its own, until the channel is closed.
+     * @param server the listening channel.
+     * @param address the address it listens on, to print.
+     * @param fileRequests true to read and write files for clients, false to refuse file requests.
+     * @throws IOException if accepting fails.
+     */
+    void serve(ServerSocketChannel server, SocketAddress address, boolean fileRequests) throws IOException {
+        System.out.println("Listening on " + address + " with " + workerCount + " workers.");
+        try {
+            while (true) {
+                // clients beyond the limit wait in the listen backlog
+                connections.acquireUninterruptibly();
+                SocketChannel client;
+                try {
+                    client = server.accept();
+                } catch (IOException e) {
+                    connections.release();
+                    throw e;
+                }
+                connectionThreads.execute(() -> {
+                    try (SocketChannel channel = client) {
+                        serveConnection(channel, fileRequests);
+                    } catch (IOException e) {
+                        // the client went away
+                    } finally {
+                        connections.release();
+                    }
+                });
+            }
+        } catch (ClosedChannelException e) {
+            // stopped
+        } finally {
+            workers.shutdownNow();
+            connectionThreads.shutdownNow();
+        }
+    }
+
+    /**
+     * Serves the requests of one client until it closes the connection.
+     * @param channel the connection.
+     * @param fileRequests true to serve file requests, false to answer them with an error.
+     * @throws IOException if the connection fails or times out, or a request is malformed.
+     */
+    private void serveConnection(SocketChannel channel, boolean fileRequests) throws IOException {
+        // blocking reads and writes of a channel cannot time out, so waits go through a selector
+        channel.configureBlocking(false);
+        try (Selector selector = Selector.open()) {
+            SelectionKey key = channel.register(selector, 0);
+            Buffers buffers = new Buffers();
+            while (true) {
+                ByteBuffer head = buffers.head.clear();
+                if (!readFully(key, head, true))
+                    return;
+                head.flip();
+                int command = head.get();
+                int length = head.getInt();
+                if (command != COMPRESS && command != DECOMPRESS && command != COMPRESS_FILE
+                        && command != DECOMPRESS_FILE) {
+                    // the request's bytes cannot be skipped without its length being trusted
+                    respondError(key, "Unknown command " + command);
+                    return;
+                }
+                if (length < 0 || length > maxRequest) {
+                    respondError(key, "Request of " + (length & 0xFFFFFFFFL) + " bytes is larger than "
+                            + maxRequest);
+                    return;
+                }
+
+                // the request is read whole before it takes a slot, so a client that stalls in the
+                // middle of one holds only its own connection
+                ByteBuffer request = buffers.request(length);
+                readFully(key, request, false);
+                request.flip();
+                if (!fileRequests && command != COMPRESS && command != DECOMPRESS) {
+                    respondError(key, "File requests are only served on a Unix domain socket");
+                    continue;
+                }
+
+                // backpressure: nothing more is read until a worker or a place in the queue is free
+                ByteBuffer response;
+                slots.acquireUninterruptibly();
+                try {
+                    response = workers.submit(() -> codeRequest(command, request, buffers)).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while serving a request");
+                } catch (ExecutionException e) {
+                    respondError(key, e.getCause().toString());
+                    continue;
+                } finally {
+                    slots.release();
+                }
+                respond(key, buffers.head, OK, response);
+            }
+        }
+    }
+
+    /**
+     * Codes the bytes of a request, on a worker.
+     * @param command the command of the request.
+     * @param request the bytes of the request.
+     * @param buffers the buffers of the connection the request came on.
+     * @return the bytes of the response.
+     * @throws IOException if the request fails, such as corrupt compressed bytes or a missing file.
+     */
+    private ByteBuffer codeRequest(int command, ByteBuffer request, Buffers buffers) throws IOException {
+        if (command == COMPRESS)
+            return compress(request, buffers);
+        if (command == DECOMPRESS)
+            return ByteBuffer.wrap(decoder.decode(request));
+        return buffers.response(8).putLong(codeFile(request, command == COMPRESS_FILE)).flip();
+    }
+
+    /** compresses a message into the connection's response buffer. */
+    private ByteBuffer compress(ByteBuffer message, Buffers buffers) {
+        // a message Huffman codes would not shrink is stored behind the header
+        ByteBuffer response = buffers.response(message.remaining() + CompressedFormat.HEADER_SIZE + 1024);
+        try {
+            encoder.encode(message, response);
+        } catch (BufferOverflowException e) {
+            // a context format table larger than the message
+            return ByteBuffer.wrap(encoder.encode(message));
+        }
+        return response.flip();
+    }
+
+    /**
+     * Compresses or decompresses a file to another.
+     * @param request the flags byte, then the source and target paths in UTF-8, separated by a zero byte.
+     * @param compress true to compress, false to decompress.
+     * @return the length of the file written.
+     * @throws IOException if a file cannot be read or written, the target exists and may not be
+     *                     overwritten, or the source is corrupt.
+     */
+    private long codeFile(ByteBuffer request, boolean compress) throws IOException {
+        if (!request.hasRemaining())
+            throw new IOException("Expected flags and a source and a target path");
+        int flags = request.get();
+        String[] names = StandardCharsets.UTF_8.decode(request).toString().split("\0", -1);
+        if (names.length != 2 || names[0].isEmpty() || names[1].isEmpty())
+            throw new IOException("Expected a source and a target path");
+        byte[] input = Files.readAllBytes(Paths.get(names[0]));
+        byte[] output = compress ? encoder.encode(input) : decoder.decode(input);
+        // CREATE_NEW fails if the target exists, even if it appeared since the request was made
+        if ((flags & OVERWRITE) != 0)
+            Files.write(Paths.get(names[1]), output);
+        else
+            Files.write(Paths.get(names[1]), output, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+        return output.length;
+    }
+
+    private void respondError(SelectionKey key, String message) throws IOException {
+        respond(key, ByteBuffer.allocate(HEAD_SIZE), ERROR, ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /** writes the head and the bytes of a response. */
+    private void respond(SelectionKey key, ByteBuffer head, int status, ByteBuffer body) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        head.clear();
+        head.put((byte) status).putInt(body.remaining()).flip();
+        ByteBuffer[] buffers = {head, body};
+        while (head.hasRemaining() || body.hasRemaining()) {
+            if (channel.write(buffers) == 0)
+                await(key, SelectionKey.OP_WRITE, timeout);
+        }
+    }
+
+    /**
+     * Reads from a channel until the buffer is full.
+     * @return false if the channel ended before the first byte and endAllowed is true.
+     * @throws EOFException if the channel ends after the first byte.
+     * @throws SocketTimeoutException if the client sends nothing for the timeout after the first
+     *                                byte, or before it unless endAllowed is true.
+     */
+    private boolean readFully(SelectionKey key, ByteBuffer buffer, boolean endAllowed) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        boolean first = true;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer);
+            if (read < 0) {
+                if (first && endAllowed)
+                    return false;
+                throw new EOFException("Connection closed in the middle of a request");
+            }
+            if (read > 0)
+                first = false;
+            else
+                // a connection may wait for its next request for any time, not in the middle of one
+                await(key, SelectionKey.OP_READ, (first && endAllowed) ? 0 : timeout);
+        }
+        return true;
+    }
+
+    /**
+     * Waits until a channel is ready for an operation.
+     * @param timeout the longest wait in milliseconds, or 0 to wait for any time.
+     * @throws SocketTimeoutException if the wait times out.
+     * @throws InterruptedIOException if the thread is interrupted.
+     */
+    private static void await(SelectionKey key, int operation, long timeout) throws IOException {
+        key.interestOps(operation);
+        int ready = key.selector().select(timeout);
+        key.selector().selectedKeys().clear();
+        if (Thread.interrupted())
+            throw new InterruptedIOException("Interrupted while waiting for a client");
+        if (ready == 0 && timeout > 0)
+            throw new SocketTimeoutException("Client sent or took nothing for " + timeout + " ms");
+    }
+
+    /**
+     * A client of HuffmanServer. It sends one request at a time, so it must not be used by several
+     * threads at once; open a client per thread instead.
+     */
+    public static class Client implements Closeable {
+
+        private final SocketChannel channel;
+        private final ByteBuffer head = ByteBuffer.allocate(HEAD_SIZE);
+
+        private Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Connects to a server listening on a Unix domain socket.
+         * @param path the path of the socket file.
+         * @return the client.
+         * @throws IOException if no server is listening there.
+         */
+        public static Client connect(Path path) throws IOException {
+            return new Client(SocketChannel.open(UnixDomainSocketAddress.of(path)));
+        }
+
+        /**
+         * Connects to a server listening on a TCP port of the loopback address.
+         * @param port the port.
+         * @return the client.
+         * @throws IOException if no server is listening there.
+         */
+        public static Client connect(int port) throws IOException {
+            return new Client(SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port)));
+        }
+
+        /**
+         * Compresses a message.
+         * @param data the bytes to compress.
+         * @return the compressed bytes.
+         * @throws IOException if the connection fails or the server reports an error.
+         */
+        public byte[] compress(byte[] data) throws IOException {
+            return request(COMPRESS, data);
+        }
+
+        /**
+         * Decompresses a message.
+         * @param compressed the compressed bytes.
+         * @return the original bytes.
+         * @throws IOException if the connection fails, or the server reports an error such as corrupt bytes.
+         */
+        public byte[] decompress(byte[] compressed) throws IOException {
+            return request(DECOMPRESS, compressed);
+        }
+
+        /**
+         * Has the server compress a file it can read to a new file. Only a server on a Unix
+         * domain socket serves file requests.
+         * @param source the path of the file to compress.
+         * @param target the path the compressed file is written to.
+         * @param overwrite true to replace the target if it exists, false to fail instead.
+         * @return the length of the compressed file.
+         * @throws IOException if the connection fails or the server reports an error.
+         */
+        public long compressFile(String source, String target, boolean overwrite) throws IOException {
+            return ByteBuffer.wrap(request(COMPRESS_FILE, fileRequest(source, target, overwrite))).getLong();
+        }
+
+        /**
+         * Has the server decompress a file it can read to a new file. Only a server on a Unix
+         * domain socket serves file requests.
+         * @param source the path of the compressed file.
+         * @param target the path the original bytes are written to.
+         * @param overwrite true to replace the target if it exists, false to fail instead.
+         * @return the length of the decompressed file.
+         * @throws IOException if the connection fails or the server reports an error.
+         */
+        public long decompressFile(String source, String target, boolean overwrite) throws IOException {
+            return ByteBuffer.wrap(request(DECOMPRESS_FILE, fileRequest(source, target, overwrite))).getLong();
+        }
+
+        private static byte[] fileRequest(String source, String target, boolean overwrite) {
+            byte[] paths = (source + "\0" + target).getBytes(StandardCharsets.UTF_8);
+            byte[] request = new byte[1 + paths.length];
+            request[0] = (byte) (overwrite ? OVERWRITE : 0);
+            System.arraycopy(paths, 0, request, 1, paths.length);
+            return request;
+        }
+
+        /** sends a request and waits for its response. */
+        private byte[] request(int command, byte[] data) throws IOException {
+            head.clear();
+            head.put((byte) command).putInt(data.length).flip();
+            ByteBuffer body = ByteBuffer.wrap(data);
+            ByteBuffer[] buffers = {head, body};
+            while (head.hasRemaining() || body.hasRemaining())
+                channel.write(buffers);
+
+            head.clear();
+            readFully(head);
+            head.flip();
+            int status = head.get();
+            int length = head.getInt();
+            if (length < 0)
+                throw new IOException("Bad response length " + length);
+            ByteBuffer response = ByteBuffer.allocate(length);
+            readFully(response);
+            if (status != OK)
+                throw new IOException(new String(response.array(), StandardCharsets.UTF_8));
+            return response.array();
+        }
+
+        /** reads from the server until the buffer is full. */
+        private void readFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0)
+                    throw new EOFException("Connection closed in the middle of a response");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
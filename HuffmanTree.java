@@ -0,0 +1,127 @@
+import java.io.Serializable;
+
+/**
+ *
+ * This class creates a Huffman Tree for encoding/decoding characters.
+ * <br> It contains an inner class HuffmanNode to represent each "node" or character in the tree.
+ *
+ * <p>
+ *     This class contains methods that allow users to compare Huffman trees based on weight,
+ *     and get the array mapping characters to Huffman codes.
+ * </p>
+ *
+ * @author Arshmeet Kaur
+ */
+class HuffmanTree implements Comparable<HuffmanTree>, Serializable {
+
+    // for easy serialization.
+    private static final long serialVersionUID = 2939177167726658626L;
+
+    HuffmanNode root;
+    private String[] encodings;
+
+    /**
+     * Constructs a huffman tree with two children. Sets left and right child and weight
+     * which is the combined weight of the child trees.
+     * @param h1 left child.
+     * @param h2 right child.
+     */
+    public HuffmanTree(HuffmanTree h1, HuffmanTree h2) {
+        root = new HuffmanNode();
+        root.left = h1.root;
+        root.right = h2.root;
+        root.weight = h1.root.weight + h2.root.weight;
+    }
+
+    /**
+     * Constructs a huffman tree which is a leaf. Sets it weight and the "data", which is
+     * the character that it holds.
+     * @param weight
+     * @param data
+     */
+    public HuffmanTree(int weight, char data) {
+        this.root = new HuffmanNode(weight, data);
+    }
+
+    /**
+     * compareTo() method is implemented to be in reverse order. In the Huffman Algorithm, we use a MinHeap.
+     * However, here, we have used a max heap, so to easily convert to a min heap, we reverse the comparing order.
+     * @param h the object to be compared.
+     * @return -1 if the current weight is larger, 0 if weight is equal, 1 if current weight is lesser.
+     */
+    @Override
+    public int compareTo(HuffmanTree h) {
+        boolean hDifference = this.root.weight > h.root.weight;
+        if (hDifference)
+            return -1;
+        else if (this.root.weight == h.root.weight)
+            return 0;
+        else
+            return 1;
+    }
+
+    /**
+     * Returns the key of ASCII characters to Huffman encoding string.
+     * @param root is the "root" of the HuffmanNode passed into the HuffmanTree.
+     * @return an array mapping the ASCII character (index of array) to the string of its huffman code.
+     */
+    public String[] getCode(HuffmanTree.HuffmanNode root) {
+        // if the tree is empty...
+        if (root == null)
+            return null;
+        // the string array of codes is 256, one for each ASCII character
+        String[] encoding = new String[256];
+        // fill the array with the code for each character
+        assignCode(root, encoding);
+        this.encodings = encoding;
+        return encoding;
+    }
+
+    /**
+     * Helper method of getCode() fills the encoding array passed in.
+     * @param root is the rood of the node
+     * @param encoding is the empty array which maps ASCII character to its huffman code.
+     */
+    public static void assignCode(HuffmanTree.HuffmanNode root, String[] encoding) {
+        if (root.left != null) {
+            // add zeros going leftwards
+            root.left.code = root.code + "0";
+            assignCode(root.left, encoding);
+
+            // add ones going rightwards
+            root.right.code = root.code + "1";
+            assignCode(root.right, encoding);
+        } else {
+            // when you hit the leaf (containing characters), save the code that has been built
+            // in the recursive calls
+            encoding[(int) root.data] = root.code;
+        }
+    }
+
+    /**
+     * Need Inner Class for the HuffmanNode class
+     * Each HuffmanNode has a character, it's weight (frequency),
+     * a left and right child, and a string code which represents its Huffman code.
+     * @author Arshmeet Kaur */
+    class HuffmanNode implements Serializable {
+        /**
+         * data holds the character at each node.
+         * weight holds the weight of the node.
+         * left and right and the children of the node
+         * code is path of 0s or 1s that lead to the node.
+         */
+        char data;
+        int weight;
+        HuffmanNode left; HuffmanNode right;
+        String code = "";
+
+        /** default constructor. */
+        public HuffmanNode(){}
+
+        /** value constructor gives each node character and weight */
+        public HuffmanNode(int weight, char data) {
+            this.weight = weight;
+            this.data = data;
+        }
+    }
+}
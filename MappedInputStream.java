@@ -0,0 +1,94 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A MappedInputStream reads a file through memory-mapped regions instead of read() calls.
+ * <br> 1. Maps the file up to MAP_SIZE bytes at a time, so files larger than 2 GB work too.
+ * <br> 2. Copies bytes out of the mapping in bulk, with no system call per read.
+ * <p>
+ *     Mapping costs more than it saves on small files, so open() only maps files of at least
+ *     MAPPED_THRESHOLD bytes and returns a plain FileInputStream otherwise.
+ * </p>
+ */
+class MappedInputStream extends InputStream {
+
+    /** smallest file that open() memory-maps. */
+    static final long MAPPED_THRESHOLD = 8L << 20;
+    /** largest region mapped at once. */
+    static final int MAP_SIZE = 1 << 30;
+
+    private final FileChannel channel;
+    private final boolean closeChannel;
+    private long position; // position in the file of the first byte after the current mapping
+    private MappedByteBuffer mapping;
+
+    /**
+     * Opens a file for reading, memory-mapped if it is at least MAPPED_THRESHOLD bytes long.
+     * @param file the file to read.
+     * @return a stream of the file's bytes.
+     * @throws IOException if the file cannot be opened.
+     */
+    static InputStream open(File file) throws IOException {
+        if (file.length() < MAPPED_THRESHOLD)
+            return new FileInputStream(file);
+        return new MappedInputStream(new FileInputStream(file).getChannel(), 0, true);
+    }
+
+    /**
+     * Constructs a MappedInputStream that reads a channel from a position to its end.
+     * @param channel the channel to map, which must stay open while this stream is used.
+     * @param position the position of the first byte to read.
+     * @param closeChannel whether close() also closes the channel.
+     */
+    MappedInputStream(FileChannel channel, long position, boolean closeChannel) {
+        this.channel = channel;
+        this.position = position;
+        this.closeChannel = closeChannel;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!mapNext())
+            return -1;
+        return mapping.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (!mapNext())
+            return -1;
+        int count = Math.min(len, mapping.remaining());
+        mapping.get(b, off, count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return (mapping == null) ? 0 : mapping.remaining();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mapping = null;
+        if (closeChannel)
+            channel.close();
+    }
+
+    /** maps the next region once the current one is used up; returns false at the end of the file. */
+    private boolean mapNext() throws IOException {
+        if (mapping != null && mapping.hasRemaining())
+            return true;
+        long size = Math.min(MAP_SIZE, channel.size() - position);
+        if (size <= 0)
+            return false;
+        mapping = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        position += size;
+        return true;
+    }
+}
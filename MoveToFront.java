@@ -0,0 +1,65 @@
+import java.io.IOException;
+
+/**
+ * The move-to-front transform: each byte is replaced by its position in a list of the 256 byte
+ * values, and then moved to the front of the list.
+ * <p>
+ *     A byte that was seen recently becomes a small number, and a run of one byte becomes zeros,
+ *     so after the Burrows-Wheeler transform most bytes are 0 or close to it. The output has as
+ *     many bytes as the input.
+ * </p>
+ */
+class MoveToFront implements Transform {
+
+    static final int ID = 2;
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public String name() {
+        return "mtf";
+    }
+
+    @Override
+    public byte[] forward(byte[] data, int length) {
+        byte[] list = identity();
+        byte[] out = new byte[length];
+        for (int i = 0; i < length; i++) {
+            byte value = data[i];
+            int rank = 0;
+            while (list[rank] != value)
+                rank++;
+            System.arraycopy(list, 0, list, 1, rank);
+            list[0] = value;
+            out[i] = (byte) rank;
+        }
+        return out;
+    }
+
+    @Override
+    public byte[] inverse(byte[] data, int length, int maxLength) throws IOException {
+        if (length > maxLength)
+            throw new IOException("Corrupt transform: " + length + " bytes where at most " + maxLength + " fit");
+        byte[] list = identity();
+        byte[] out = new byte[length];
+        for (int i = 0; i < length; i++) {
+            int rank = data[i] & 0xFF;
+            byte value = list[rank];
+            System.arraycopy(list, 0, list, 1, rank);
+            list[0] = value;
+            out[i] = value;
+        }
+        return out;
+    }
+
+    /** the byte values in ascending order. */
+    private static byte[] identity() {
+        byte[] list = new byte[256];
+        for (int i = 0; i < 256; i++)
+            list[i] = (byte) i;
+        return list;
+    }
+}
@@ -0,0 +1,116 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Packs DNA sequences (the bytes A, C, G and T) 2 bits per base, 4 bases to a byte.
+ * <br> 1. Every other byte, such as a line break, a FASTA header or an N, is an exception. Each is
+ * stored as the number of bases since the previous exception and the byte itself.
+ * <br> 2. The bases are packed in order, the first in the high bits, the last byte padded with A.
+ * <p>
+ *     Layout: the number of bytes and of exceptions (varints, as in FallbackCodec), the gap of each
+ *     exception (varints), the exception bytes, then the packed bases. Gaps and exception bytes are
+ *     kept apart, so the regular line breaks of a FASTA file become repeats Huffman codes well.
+ * </p>
+ */
+class NucleotidePacking implements Transform {
+
+    static final int ID = 4;
+
+    private static final byte[] BASES = {'A', 'C', 'G', 'T'};
+    /** the 2-bit code of each byte value, or -1 for an exception. */
+    private static final int[] CODES = new int[256];
+
+    static {
+        Arrays.fill(CODES, -1);
+        for (int code = 0; code < BASES.length; code++)
+            CODES[BASES[code]] = code;
+    }
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public String name() {
+        return "dna";
+    }
+
+    @Override
+    public byte[] forward(byte[] data, int length) {
+        int exceptions = 0;
+        for (int i = 0; i < length; i++) {
+            if (CODES[data[i] & 0xFF] < 0)
+                exceptions++;
+        }
+        int bases = length - exceptions;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + 3 * exceptions + (bases + 3) / 4);
+        byte[] exceptionBytes = new byte[exceptions];
+        byte[] packed = new byte[(bases + 3) / 4];
+        try {
+            FallbackCodec.writeVarint(length, out);
+            FallbackCodec.writeVarint(exceptions, out);
+            int gap = 0;
+            int exception = 0;
+            int base = 0;
+            for (int i = 0; i < length; i++) {
+                int code = CODES[data[i] & 0xFF];
+                if (code < 0) {
+                    FallbackCodec.writeVarint(gap, out);
+                    exceptionBytes[exception++] = data[i];
+                    gap = 0;
+                } else {
+                    packed[base >> 2] |= (byte) (code << (6 - 2 * (base & 3)));
+                    base++;
+                    gap++;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // a ByteArrayOutputStream does not throw
+        }
+        out.write(exceptionBytes, 0, exceptions);
+        out.write(packed, 0, packed.length);
+        return out.toByteArray();
+    }
+
+    @Override
+    public byte[] inverse(byte[] data, int length, int maxLength) throws IOException {
+        PackedBitInputStream in = new PackedBitInputStream(ByteBuffer.wrap(data, 0, length));
+        long originalLength = FallbackCodec.readVarint(in);
+        long exceptions = FallbackCodec.readVarint(in);
+        if (originalLength > maxLength)
+            throw new IOException("Corrupt transform: " + originalLength + " bytes where at most " + maxLength + " fit");
+        if (exceptions > originalLength)
+            throw new IOException("Corrupt transform: " + exceptions + " exceptions in " + originalLength + " bytes");
+        int[] gaps = new int[(int) exceptions];
+        for (int e = 0; e < gaps.length; e++) {
+            long gap = FallbackCodec.readVarint(in);
+            if (gap > originalLength)
+                throw new IOException("Corrupt transform: gap of " + gap + " bases");
+            gaps[e] = (int) gap;
+        }
+        int exceptionStart = (int) (in.bitPosition() / 8);
+        int packedStart = exceptionStart + gaps.length;
+        int bases = (int) (originalLength - exceptions);
+        if (packedStart > length || length - packedStart != (bases + 3) / 4)
+            throw new IOException("Corrupt transform: " + (length - packedStart) + " bytes of packed bases");
+
+        byte[] out = new byte[(int) originalLength];
+        int o = 0;
+        int base = 0;
+        for (int e = 0; e <= gaps.length; e++) {
+            int run = (e < gaps.length) ? gaps[e] : bases - base;
+            if (run > bases - base)
+                throw new IOException("Corrupt transform: more gaps than bases");
+            for (int b = 0; b < run; b++, base++)
+                out[o++] = BASES[(data[packedStart + (base >> 2)] >> (6 - 2 * (base & 3))) & 3];
+            if (e < gaps.length)
+                out[o++] = data[exceptionStart + e];
+        }
+        return out;
+    }
+}
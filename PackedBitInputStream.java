@@ -0,0 +1,255 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Objects;
+
+/**
+ * A PackedBitInputStream reads bits from another stream through a 64-bit window.
+ * <br> 1. Bytes are read from the underlying stream into a buffer, 64 KB at a time.
+ * <br> 2. The window is refilled from that buffer 32 bits at a time, then bytewise up to 64 bits.
+ * <br> 3. Callers peek at the next few bits and then skip the ones they used, so a whole
+ * Huffman code can be looked up at once instead of reading it bit by bit.
+ * <p>
+ *     Bits are read most significant first, the order BitOutputStream and
+ *     PackedBitOutputStream write them in. Peeking past the end of the stream
+ *     returns zero bits, which lets a decoder look ahead near the end of a message.
+ * </p>
+ */
+class PackedBitInputStream extends InputStream {
+
+    private static final VarHandle INT_BIG_ENDIAN =
+            MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private final InputStream in;
+    private final byte[] buffer;
+    private int position; // index of the next unread byte in buffer
+    private int limit; // number of valid bytes in buffer
+    private boolean endOfStream;
+
+    private long window; // unread bits, right-aligned
+    private int available; // number of unread bits in the window
+    private long bytesLoaded; // number of bytes moved into the window so far
+
+    /**
+     * Constructs a PackedBitInputStream with a 64 KB buffer.
+     * @param in the stream to read packed bits from.
+     */
+    public PackedBitInputStream(InputStream in) {
+        this(in, 64 * 1024);
+    }
+
+    /**
+     * Constructs a PackedBitInputStream.
+     * @param in the stream to read packed bits from.
+     * @param bufferSize the number of bytes to read from in at a time.
+     */
+    public PackedBitInputStream(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buffer = new byte[Math.max(bufferSize, 8)];
+    }
+
+    /**
+     * Constructs a PackedBitInputStream that reads the bytes between the position and limit of
+     * a buffer, without moving its position. A heap buffer is read in place from its array.
+     * @param source the bytes to read packed bits from.
+     */
+    public PackedBitInputStream(ByteBuffer source) {
+        if (source.hasArray()) {
+            this.in = InputStream.nullInputStream();
+            this.buffer = source.array();
+            this.position = source.arrayOffset() + source.position();
+            this.limit = source.arrayOffset() + source.limit();
+        } else {
+            ByteBuffer bytes = source.duplicate();
+            this.in = new InputStream() {
+                @Override
+                public int read() {
+                    return bytes.hasRemaining() ? bytes.get() & 0xFF : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (!bytes.hasRemaining())
+                        return -1;
+                    len = Math.min(len, bytes.remaining());
+                    bytes.get(b, off, len);
+                    return len;
+                }
+            };
+            this.buffer = new byte[8 * 1024];
+        }
+    }
+
+    /**
+     * Returns the next count bits without consuming them.
+     * @param count the number of bits, 1 to 56.
+     * @return the bits, right-aligned, padded with zeros past the end of the stream.
+     * @throws IOException if the underlying stream fails.
+     */
+    public long peekBits(int count) throws IOException {
+        if (available < count) {
+            refill();
+            if (available < count)
+                return ((window & ((1L << available) - 1)) << (count - available)) & (-1L >>> (64 - count));
+        }
+        return (window >>> (available - count)) & (-1L >>> (64 - count));
+    }
+
+    /**
+     * Consumes bits that were returned by peekBits().
+     * @param count the number of bits to consume.
+     * @throws EOFException if fewer than count bits are left in the stream.
+     * @throws IOException if the underlying stream fails.
+     */
+    public void skipBits(int count) throws IOException {
+        if (available < count) {
+            refill();
+            if (available < count)
+                throw new EOFException("End of input reached");
+        }
+        available -= count;
+    }
+
+    /**
+     * Reads the next count bits.
+     * @param count the number of bits, 1 to 56.
+     * @return the bits, right-aligned.
+     * @throws EOFException if fewer than count bits are left in the stream.
+     * @throws IOException if the underlying stream fails.
+     */
+    public long readBits(int count) throws IOException {
+        long bits = peekBits(count);
+        skipBits(count);
+        return bits;
+    }
+
+    /**
+     * Reads the next bit.
+     * @return the next bit (0 or 1), or -1 if the end of the stream is reached.
+     * @throws IOException if the underlying stream fails.
+     */
+    public int readBit() throws IOException {
+        if (available == 0) {
+            refill();
+            if (available == 0)
+                return -1;
+        }
+        available--;
+        return (int) (window >>> available) & 1;
+    }
+
+    /**
+     * Reads the next 32 bits as an integer, most significant byte first.
+     * @return the integer.
+     * @throws EOFException if the end of the stream is reached first.
+     * @throws IOException if the underlying stream fails.
+     */
+    public int readInt() throws IOException {
+        return (int) readBits(32);
+    }
+
+    /**
+     * Reads the next 8 bits as a byte.
+     * @return the byte (0 to 255), or -1 if the end of the stream is reached.
+     * @throws IOException if the underlying stream fails.
+     */
+    @Override
+    public int read() throws IOException {
+        if (available < 8) {
+            refill();
+            if (available < 8)
+                return -1;
+        }
+        available -= 8;
+        return (int) (window >>> available) & 0xFF;
+    }
+
+    /**
+     * Reads bytes into an array until it has len of them. Whole bytes still in the window are
+     * taken first, then the rest is copied straight from the buffer.
+     * @param b the array the bytes are stored in.
+     * @param off the index in b of the first byte.
+     * @param len the number of bytes to read.
+     * @throws IllegalStateException if the stream is not at a byte boundary.
+     * @throws EOFException if the stream ends first.
+     * @throws IOException if the underlying stream fails.
+     */
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        if ((available & 7) != 0)
+            throw new IllegalStateException("Not at a byte boundary");
+        while (len > 0 && available > 0) {
+            available -= 8;
+            b[off++] = (byte) (window >>> available);
+            len--;
+        }
+        while (len > 0) {
+            if (position == limit && (endOfStream || !fillBuffer()))
+                throw new EOFException("End of input reached");
+            int n = Math.min(len, limit - position);
+            System.arraycopy(buffer, position, b, off, n);
+            position += n;
+            bytesLoaded += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Returns the number of bits consumed from this stream so far.
+     * @return the bit position of the next bit to be read.
+     */
+    public long bitPosition() {
+        return bytesLoaded * 8 - available;
+    }
+
+    /**
+     * Skips the rest of the current byte, so that the next read starts on a byte boundary.
+     */
+    public void alignToByte() {
+        available -= available & 7;
+    }
+
+    /**
+     * Closes the underlying stream.
+     * @throws IOException if the underlying stream fails.
+     */
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /** Moves whole bytes from the buffer into the window until it holds more than 56 bits. */
+    private void refill() throws IOException {
+        if (available <= 32 && limit - position >= 4) {
+            window = (window << 32) | ((int) INT_BIG_ENDIAN.get(buffer, position) & 0xFFFFFFFFL);
+            position += 4;
+            available += 32;
+            bytesLoaded += 4;
+        }
+        while (available <= 56) {
+            if (position == limit) {
+                if (endOfStream || !fillBuffer())
+                    return;
+            }
+            window = (window << 8) | (buffer[position++] & 0xFF);
+            available += 8;
+            bytesLoaded++;
+        }
+    }
+
+    private boolean fillBuffer() throws IOException {
+        int read = in.read(buffer, 0, buffer.length);
+        if (read <= 0) {
+            endOfStream = true;
+            return false;
+        }
+        position = 0;
+        limit = read;
+        return true;
+    }
+}
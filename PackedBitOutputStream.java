@@ -0,0 +1,175 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * A PackedBitOutputStream writes Huffman codes to another stream as packed bits.
+ * <br> 1. Codes are given as a (bits, length) pair and shifted into a 64-bit accumulator.
+ * <br> 2. Every time 32 bits are pending, the whole word is stored into a byte buffer at once.
+ * <br> 3. The byte buffer is handed to the underlying stream only when it is full.
+ * <p>
+ *     Bits are written most significant first, the same order as BitOutputStream, and plain
+ *     byte writes (for example from an ObjectOutputStream) go through the same buffer.
+ * </p>
+ */
+class PackedBitOutputStream extends OutputStream {
+
+    private static final VarHandle INT_BIG_ENDIAN =
+            MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private final OutputStream out;
+    private final byte[] buffer;
+    private int position; // number of bytes waiting in buffer
+
+    private long accumulator; // pending bits, right-aligned
+    private int bitCount; // number of pending bits in the accumulator, always less than 32
+
+    /**
+     * Constructs a PackedBitOutputStream with a 64 KB buffer.
+     * @param out the stream to write the packed bytes to.
+     */
+    public PackedBitOutputStream(OutputStream out) {
+        this(out, 64 * 1024);
+    }
+
+    /**
+     * Constructs a PackedBitOutputStream.
+     * @param out the stream to write the packed bytes to.
+     * @param bufferSize the number of bytes to collect before writing to out.
+     */
+    public PackedBitOutputStream(OutputStream out, int bufferSize) {
+        this.out = out;
+        this.buffer = new byte[Math.max(bufferSize, 8)];
+    }
+
+    /**
+     * Writes the lowest length bits of bits, most significant first.
+     * @param bits the code, right-aligned.
+     * @param length the number of bits to write, 0 to 64.
+     * @throws IOException if the underlying stream fails.
+     */
+    public void writeBits(long bits, int length) throws IOException {
+        if (length > 32) {
+            writeBits(bits >>> 32, length - 32);
+            length = 32;
+        }
+        accumulator = (accumulator << length) | (bits & (0xFFFFFFFFL >>> (32 - length)));
+        bitCount += length;
+        if (bitCount >= 32) {
+            bitCount -= 32;
+            int word = (int) (accumulator >>> bitCount);
+            if (position + 4 > buffer.length)
+                flushBuffer();
+            INT_BIG_ENDIAN.set(buffer, position, word);
+            position += 4;
+        }
+    }
+
+    /**
+     * Writes the code of one symbol from a code table.
+     * @param table the code table.
+     * @param symbol the byte value to write the code of.
+     * @throws IOException if the underlying stream fails.
+     */
+    public void writeCode(CodeTable table, int symbol) throws IOException {
+        writeBits(table.codes[symbol], table.lengths[symbol]);
+    }
+
+    /**
+     * Writes an integer as four bytes, most significant byte first, like BitOutputStream.writeInt().
+     * @param value the integer to write.
+     * @throws IOException if the underlying stream fails.
+     */
+    public void writeInt(int value) throws IOException {
+        writeBits(value, 32);
+    }
+
+    /**
+     * Writes one byte. When the stream is byte-aligned it is copied straight into the buffer.
+     * @param b the byte to write, in the low 8 bits.
+     * @throws IOException if the underlying stream fails.
+     */
+    @Override
+    public void write(int b) throws IOException {
+        if (bitCount == 0) {
+            if (position == buffer.length)
+                flushBuffer();
+            buffer[position++] = (byte) b;
+        } else {
+            writeBits(b, 8);
+        }
+    }
+
+    /**
+     * Writes a range of bytes.
+     * @param b the bytes to write.
+     * @param off the index of the first byte.
+     * @param len the number of bytes.
+     * @throws IOException if the underlying stream fails.
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (bitCount != 0) {
+            for (int i = 0; i < len; i++)
+                writeBits(b[off + i], 8);
+            return;
+        }
+        if (len > buffer.length - position) {
+            flushBuffer();
+            if (len >= buffer.length) {
+                out.write(b, off, len);
+                return;
+            }
+        }
+        System.arraycopy(b, off, buffer, position, len);
+        position += len;
+    }
+
+    /**
+     * Pads the last partial byte with zeros, so that the next write starts on a byte boundary.
+     * @throws IOException if the underlying stream fails.
+     */
+    public void alignToByte() throws IOException {
+        int padding = (8 - (bitCount & 7)) & 7;
+        if (padding > 0)
+            writeBits(0, padding);
+        while (bitCount > 0) {
+            bitCount -= 8;
+            if (position == buffer.length)
+                flushBuffer();
+            buffer[position++] = (byte) (accumulator >>> bitCount);
+        }
+    }
+
+    /**
+     * Writes the buffered bytes to the underlying stream and flushes it. Bits that do not yet
+     * fill a byte stay pending.
+     * @throws IOException if the underlying stream fails.
+     */
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    /**
+     * Pads the last byte with zeros, like BitOutputStream.close(), then flushes and closes
+     * the underlying stream.
+     * @throws IOException if the underlying stream fails.
+     */
+    @Override
+    public void close() throws IOException {
+        alignToByte();
+        flushBuffer();
+        out.close();
+    }
+
+    private void flushBuffer() throws IOException {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+}
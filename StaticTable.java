@@ -0,0 +1,104 @@
+import java.io.*;
+import java.util.zip.CRC32;
+
+/**
+ * A code table trained ahead of time on sample files and shared by compressor and decompressor,
+ * for small messages where a per-message code header would cost more than it saves.
+ * <br> 1. train() counts the bytes of every sample and builds one canonical code from the totals.
+ * Every byte value gets a code, so any message can be compressed with the table.
+ * <br> 2. save() and load() store the table in a small file: the magic bytes 'H' 'U' 'T', a version
+ * byte, the table ID (4 bytes), then the code length of each of the 256 byte values.
+ * <br> 3. A message compressed with the table (CompressedFormat.DICTIONARY) carries only the
+ * table ID, which is the CRC-32 of the code lengths, so a wrong table is detected.
+ */
+class StaticTable {
+
+    static final int MAGIC = ('H' << 16) | ('U' << 8) | 'T';
+    static final int VERSION = 1;
+    /** default longest code of a trained table. */
+    static final int DEFAULT_MAX_LENGTH = 15;
+
+    final int id;
+    final int[] lengths;
+    final CodeTable codeTable;
+    final DecodeTable decodeTable;
+
+    /**
+     * Constructs a table from its code lengths.
+     * @param lengths the code length of each of the 256 byte values.
+     */
+    StaticTable(int[] lengths) {
+        this.lengths = lengths.clone();
+        this.codeTable = CodeTable.canonical(this.lengths);
+        this.decodeTable = new DecodeTable(codeTable);
+        this.id = checksum(this.lengths);
+    }
+
+    /**
+     * Trains a table on sample files.
+     * @param samples the files whose bytes are typical of the messages to compress.
+     * @param maxLength the longest code allowed.
+     * @return the trained table.
+     * @throws IOException if a sample cannot be read.
+     */
+    static StaticTable train(File[] samples, int maxLength) throws IOException {
+        long[] counts = new long[256];
+        for (File sample : samples) {
+            long[] sampleCounts = CompressFile.calculateFrequencies(sample);
+            for (int i = 0; i < counts.length; i++)
+                counts[i] += sampleCounts[i];
+        }
+        // every byte value needs a code, including those the samples never use
+        for (int i = 0; i < counts.length; i++)
+            counts[i]++;
+        return new StaticTable(CompressFile.getCanonicalCode(counts, maxLength).lengths);
+    }
+
+    /**
+     * Writes the table to a file.
+     * @param file the file to write, replaced if it exists.
+     * @throws IOException if the file cannot be written.
+     */
+    void save(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt((MAGIC << 8) | VERSION);
+            out.writeInt(id);
+            for (int length : lengths)
+                out.write(length);
+        }
+    }
+
+    /**
+     * Reads a table written by save().
+     * @param file the table file.
+     * @return the table.
+     * @throws IOException if the file cannot be read or is not a valid table.
+     */
+    static StaticTable load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int start = in.readInt();
+            if ((start >>> 8) != MAGIC || (start & 0xFF) != VERSION)
+                throw new IOException(file + " is not a code table");
+            int id = in.readInt();
+            int[] lengths = new int[256];
+            double kraftSum = 0;
+            for (int i = 0; i < lengths.length; i++) {
+                lengths[i] = in.readUnsignedByte();
+                if (lengths[i] == 0 || lengths[i] > DecodeTable.MAX_CODE_LENGTH)
+                    throw new IOException("Corrupt code table: bad code length for byte " + i);
+                kraftSum += Math.scalb(1.0, -lengths[i]);
+            }
+            if (kraftSum > 1.0 || checksum(lengths) != id)
+                throw new IOException("Corrupt code table " + file);
+            return new StaticTable(lengths);
+        }
+    }
+
+    /** returns the CRC-32 of the code lengths, the ID of the table. */
+    private static int checksum(int[] lengths) {
+        CRC32 crc = new CRC32();
+        for (int length : lengths)
+            crc.update(length);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,41 @@
+import java.io.IOException;
+
+/**
+ * A reversible transform of the bytes of a block, applied before its Huffman codes are built
+ * so that order-0 codes find more redundancy in it (see TransformPipeline).
+ * <p>
+ *     A transform keeps no state between calls, so one instance can be used by any number of threads.
+ * </p>
+ */
+interface Transform {
+
+    /**
+     * Returns the number stored in a transformed block to say which transform was applied.
+     * @return the id, 1 to 255.
+     */
+    int id();
+
+    /**
+     * Returns the name of the transform on the command line.
+     * @return the name.
+     */
+    String name();
+
+    /**
+     * Transforms bytes.
+     * @param data the array holding the bytes.
+     * @param length the number of bytes.
+     * @return the transformed bytes, which inverse() turns back into the original ones.
+     */
+    byte[] forward(byte[] data, int length);
+
+    /**
+     * Turns bytes returned by forward() back into the original ones.
+     * @param data the array holding the transformed bytes.
+     * @param length the number of transformed bytes.
+     * @param maxLength the most original bytes there can be; no more than that is allocated for them.
+     * @return the original bytes.
+     * @throws IOException if the bytes cannot have been returned by forward(), or would be more than maxLength.
+     */
+    byte[] inverse(byte[] data, int length, int maxLength) throws IOException;
+}
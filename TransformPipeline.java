@@ -0,0 +1,167 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A sequence of reversible transforms applied to a block before its Huffman codes, chosen with
+ * CompressFile -blocks -transform.
+ * <br> 1. A pipeline is named by its stages joined with '+', for example bwt+mtf+rle0.
+ * <br> 2. Several pipelines, separated by ',', are candidates: each block is encoded with each of
+ * them and without any, and keeps whichever is smallest (see BlockCodec).
+ * <br> 3. A transformed block records its stages after its table byte, so the decoder applies the
+ * inverses in reverse order without being told the pipeline.
+ * <p>
+ *     The stages are BurrowsWheeler (bwt), MoveToFront (mtf), ZeroRunLength (rle0) and
+ *     NucleotidePacking (dna). AUTO, "auto" on the command line, tries bwt+mtf+rle0 and dna.
+ * </p>
+ */
+class TransformPipeline {
+
+    /** every transform, by the id stored in a block. */
+    private static final Transform[] TRANSFORMS = {
+            new BurrowsWheeler(), new MoveToFront(), new ZeroRunLength(), new NucleotidePacking()};
+
+    /** the candidates tried by -transform auto. */
+    static final String AUTO = "bwt+mtf+rle0,dna";
+
+    /** the most stages a block may record. */
+    static final int MAX_STAGES = 8;
+    /** bytes a stage may add to twice the length of the block, see maxStageLength(). */
+    private static final int STAGE_SLACK = 64;
+
+    private final Transform[] stages;
+
+    TransformPipeline(Transform... stages) {
+        if (stages.length == 0 || stages.length > MAX_STAGES)
+            throw new IllegalArgumentException("A pipeline has 1 to " + MAX_STAGES + " stages");
+        this.stages = stages.clone();
+    }
+
+    /**
+     * Parses the pipelines of the command line.
+     * @param spec pipelines separated by ',', each stages joined with '+'; "auto" stands for AUTO.
+     * @return the pipelines.
+     * @throws IllegalArgumentException if a stage has no transform of that name.
+     */
+    static TransformPipeline[] parse(String spec) {
+        List<TransformPipeline> pipelines = new ArrayList<>();
+        for (String pipeline : spec.replace("auto", AUTO).split(",")) {
+            String[] names = pipeline.split("\\+");
+            Transform[] stages = new Transform[names.length];
+            for (int i = 0; i < names.length; i++)
+                stages[i] = forName(names[i].trim());
+            pipelines.add(new TransformPipeline(stages));
+        }
+        return pipelines.toArray(new TransformPipeline[0]);
+    }
+
+    /**
+     * Returns the transform with a name.
+     * @param name the name, for example bwt.
+     * @return the transform.
+     * @throws IllegalArgumentException if there is no transform of that name.
+     */
+    static Transform forName(String name) {
+        for (Transform transform : TRANSFORMS) {
+            if (transform.name().equals(name))
+                return transform;
+        }
+        throw new IllegalArgumentException("Unknown transform: " + name);
+    }
+
+    /**
+     * Returns the most bytes any stage may return for a block, twice its length and a little more.
+     * A stage that grows a block further gains nothing, so forward() gives up on it, and the
+     * decoder never allocates more than this for a stage of a corrupt block.
+     * @param blockLength the number of original bytes in the block.
+     * @return the limit.
+     */
+    static int maxStageLength(int blockLength) {
+        return (int) Math.min(Integer.MAX_VALUE - 8, 2L * blockLength + STAGE_SLACK);
+    }
+
+    /**
+     * Applies the stages in order.
+     * @param data the array holding the bytes.
+     * @param length the number of bytes.
+     * @return the transformed bytes, or null if a stage returned more than maxStageLength(length) bytes.
+     */
+    byte[] forward(byte[] data, int length) {
+        int maxLength = maxStageLength(length);
+        for (Transform stage : stages) {
+            data = stage.forward(data, length);
+            length = data.length;
+            if (length > maxLength)
+                return null;
+        }
+        return data;
+    }
+
+    /**
+     * Applies the inverses of the stages in reverse order.
+     * @param data the array holding the transformed bytes.
+     * @param length the number of transformed bytes.
+     * @param blockLength the number of original bytes in the block.
+     * @return the original bytes.
+     * @throws IOException if the bytes cannot have been returned by forward(), or a stage would
+     *                     restore more than forward() allows.
+     */
+    byte[] inverse(byte[] data, int length, int blockLength) throws IOException {
+        int maxLength = maxStageLength(blockLength);
+        for (int i = stages.length - 1; i >= 0; i--) {
+            data = stages[i].inverse(data, length, (i == 0) ? blockLength : maxLength);
+            length = data.length;
+        }
+        return data;
+    }
+
+    /**
+     * Writes the number of stages and the id of each.
+     * @param out the stream to write to.
+     * @return the number of bytes written.
+     * @throws IOException if the stream fails.
+     */
+    int write(PackedBitOutputStream out) throws IOException {
+        out.write(stages.length);
+        for (Transform stage : stages)
+            out.write(stage.id());
+        return 1 + stages.length;
+    }
+
+    /** returns the number of bytes write() writes. */
+    int size() {
+        return 1 + stages.length;
+    }
+
+    /**
+     * Reads the stages written by write().
+     * @param in the stream positioned at the number of stages.
+     * @param block the number of the block, for the error message.
+     * @return the pipeline.
+     * @throws IOException if the stages are corrupt or the stream ends first.
+     */
+    static TransformPipeline read(PackedBitInputStream in, int block) throws IOException {
+        int count = in.read();
+        if (count < 1 || count > MAX_STAGES)
+            throw new IOException("Corrupt block " + block + ": " + count + " transforms");
+        Transform[] stages = new Transform[count];
+        for (int i = 0; i < count; i++) {
+            int id = in.read();
+            if (id < 1 || id > TRANSFORMS.length)
+                throw new IOException("Corrupt block " + block + ": unknown transform " + id);
+            stages[i] = TRANSFORMS[id - 1];
+        }
+        return new TransformPipeline(stages);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder name = new StringBuilder();
+        for (Transform stage : stages) {
+            if (name.length() > 0)
+                name.append('+');
+            name.append(stage.name());
+        }
+        return name.toString();
+    }
+}
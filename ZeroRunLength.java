@@ -0,0 +1,104 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Zero-run-length coding, as applied after move-to-front: runs of zeros become short sequences of
+ * two symbols, so a long run costs a few bytes instead of one code per zero.
+ * <br> 1. A run of n zeros is written as n in bijective base 2, least significant digit first,
+ * with RUN_A (0) for the digit 1 and RUN_B (1) for the digit 2.
+ * <br> 2. Every other byte v moves up one, to v + 1; 254 and 255 have no room above them, so they
+ * are written as ESCAPE (255) followed by v - 254.
+ */
+class ZeroRunLength implements Transform {
+
+    static final int ID = 3;
+
+    private static final int RUN_A = 0;
+    private static final int RUN_B = 1;
+    private static final int ESCAPE = 255;
+    /** written in pieces to restore a long run of zeros. */
+    private static final byte[] ZEROS = new byte[4096];
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public String name() {
+        return "rle0";
+    }
+
+    @Override
+    public byte[] forward(byte[] data, int length) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 16);
+        long run = 0;
+        for (int i = 0; i < length; i++) {
+            int value = data[i] & 0xFF;
+            if (value == 0) {
+                run++;
+                continue;
+            }
+            writeRun(run, out);
+            run = 0;
+            if (value < 254) {
+                out.write(value + 1);
+            } else {
+                out.write(ESCAPE);
+                out.write(value - 254);
+            }
+        }
+        writeRun(run, out);
+        return out.toByteArray();
+    }
+
+    @Override
+    public byte[] inverse(byte[] data, int length, int maxLength) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(length * 2L + 16, maxLength));
+        long run = 0;
+        int digit = 0;
+        for (int i = 0; i < length; i++) {
+            int symbol = data[i] & 0xFF;
+            if (symbol == RUN_A || symbol == RUN_B) {
+                if (digit > 40)
+                    throw new IOException("Corrupt transform: run of zeros too long");
+                run += (long) (symbol + 1) << digit++;
+                continue;
+            }
+            writeZeros(run, out, maxLength);
+            run = 0;
+            digit = 0;
+            if (symbol != ESCAPE) {
+                out.write(symbol - 1);
+            } else {
+                if (++i == length || (data[i] & 0xFF) > 1)
+                    throw new IOException("Corrupt transform: bad escape");
+                out.write(254 + data[i]);
+            }
+        }
+        writeZeros(run, out, maxLength);
+        // the bytes other than zeros are at most as many as the transformed bytes
+        if (out.size() > maxLength)
+            throw new IOException("Corrupt transform: " + out.size() + " bytes where at most " + maxLength + " fit");
+        return out.toByteArray();
+    }
+
+    private static void writeRun(long run, ByteArrayOutputStream out) {
+        while (run > 0) {
+            if ((run & 1) != 0) {
+                out.write(RUN_A);
+                run = (run - 1) >>> 1;
+            } else {
+                out.write(RUN_B);
+                run = (run - 2) >>> 1;
+            }
+        }
+    }
+
+    private static void writeZeros(long run, ByteArrayOutputStream out, int maxLength) throws IOException {
+        if (run > maxLength - out.size())
+            throw new IOException("Corrupt transform: run of zeros too long");
+        for (long left = run; left > 0; left -= ZEROS.length)
+            out.write(ZEROS, 0, (int) Math.min(left, ZEROS.length));
+    }
+}